@@ -0,0 +1,113 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.ArrayList;
+
+import com.garmin.fit.DateTime;
+import com.garmin.fit.RecordMesg;
+
+// Sample & generated inputs shared by the benchmarks. The sample files come from src/test/resources, the large ones
+// are generated on the fly into a temporary directory.
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class BenchmarkInputs {
+    public static final String LARGE_SWIM = "generated-large-swim";
+    private static final String LARGE_SWIM_BASE = "/multiple-lap-swim.fit";
+    private static final int LARGE_SWIM_RECORDS = 100000;
+
+    protected BenchmarkInputs() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static File createTempDirectory() throws IOException {
+        return Files.createTempDirectory("activity-manager-jmh").toFile();
+    }
+
+    public static void deleteTempDirectory(final File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // Either one of the sample files, or LARGE_SWIM
+    public static File getFitFile(final String name, final File tmpDirectory) throws IOException {
+        if (LARGE_SWIM.equals(name)) {
+            return generateLargeSwimFile(tmpDirectory);
+        }
+        return getSampleFile("/" + name);
+    }
+
+    public static File getSampleFile(final String resource) throws IOException {
+        URL url = BenchmarkInputs.class.getResource(resource);
+        if (url == null) {
+            throw new IOException("Sample file " + resource + " not found on the test classpath");
+        }
+        try {
+            return Paths.get(url.toURI()).toFile();
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    // A swim activity padded out with a second-by-second HR record stream, i.e. a little over a day's worth of records
+    public static File generateLargeSwimFile(final File tmpDirectory) throws IOException {
+        GarminSwimActivity activity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(getSampleFile(LARGE_SWIM_BASE), activity);
+        activity.deleteRecordMessages();
+
+        DateTime start = activity.getSessionMesg().getStartTime();
+        for (RecordMesg mesg : generateHrRecords(start, LARGE_SWIM_RECORDS, 0)) {
+            activity.addRecordMessage(mesg);
+        }
+
+        FitWriter writer = new FitWriter(activity, LARGE_SWIM + ".fit", tmpDirectory);
+        return new File(writer.writeFitFile());
+    }
+
+    // One HR record per second, leaving out a stretch of 30s after every gapInterval records (if non-zero)
+    public static List<RecordMesg> generateHrRecords(final DateTime start, final int numRecords,
+            final int gapInterval) {
+        List<RecordMesg> records = new ArrayList<RecordMesg>(numRecords);
+        long offset = 0;
+        for (int i = 0; i < numRecords; i++) {
+            if (gapInterval > 0 && i > 0 && i % gapInterval == 0) {
+                offset += 30;
+            }
+
+            DateTime timestamp = new DateTime(start);
+            timestamp.add(i + offset);
+            RecordMesg mesg = new RecordMesg();
+            mesg.setTimestamp(timestamp);
+            mesg.setHeartRate((short) (100 + (i % 60)));
+            records.add(mesg);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Loading & verifying whole FIT files
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FitFileBenchmark {
+    @Param({ "basic-swim.fit", "multiple-lap-swim.fit", "1_2347_20190621-hr.fit", BenchmarkInputs.LARGE_SWIM })
+    private String fileName;
+
+    private File tmpDirectory;
+    private File fitFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tmpDirectory = BenchmarkInputs.createTempDirectory();
+        fitFile = BenchmarkInputs.getFitFile(fileName, tmpDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkInputs.deleteTempDirectory(tmpDirectory);
+    }
+
+    @Benchmark
+    public GarminActivity loadActivity() throws IOException {
+        GarminGenericActivity activity = new GarminGenericActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(fitFile, activity);
+        return activity;
+    }
+
+    @Benchmark
+    public String loadActivitySummaryLazily() throws IOException {
+        GarminGenericActivity activity = new GarminGenericActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(fitFile, activity, true);
+        return activity.getActivitySummary();
+    }
+
+    @Benchmark
+    public boolean checkFitFileIntegrity() throws IOException {
+        return Utils.checkFitFileIntegrity(fitFile);
+    }
+}
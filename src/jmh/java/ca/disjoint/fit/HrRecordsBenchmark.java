@@ -0,0 +1,79 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.garmin.fit.DateTime;
+import com.garmin.fit.RecordMesg;
+
+// Filling in the gaps of a generated HR record stream, up to a full 24 hour recording
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HrRecordsBenchmark {
+    @Param({ "3600", "86400" })
+    private int numRecords;
+
+    @Param({ "0", "60" })
+    private int gapInterval;
+
+    @Param({ "LINEAR", "HOLD", "RANDOM" })
+    private HrGapFiller.Fill fill;
+
+    private List<RecordMesg> hrRecords;
+    private RecordColumns hrColumns;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public void setUp() {
+        hrRecords = BenchmarkInputs.generateHrRecords(new DateTime(900000000L), numRecords, gapInterval);
+        hrColumns = new RecordColumns(hrRecords.size());
+        for (RecordMesg mesg : hrRecords) {
+            hrColumns.add(mesg.getTimestamp().getTimestamp(), mesg.getHeartRate());
+        }
+    }
+
+    @Benchmark
+    public List<RecordMesg> getFilledInRecordMsgs() {
+        return Utils.getFilledInRecordMsgs(hrRecords);
+    }
+
+    @Benchmark
+    public RecordColumns fillHrColumns() {
+        return new HrGapFiller(fill).fill(hrColumns);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.garmin.fit.SessionMesg;
+
+// Editing & writing out an already loaded swim activity
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SwimActivityBenchmark {
+    @Param({ "basic-swim.fit", "multiple-lap-swim.fit", BenchmarkInputs.LARGE_SWIM })
+    private String fileName;
+
+    private File tmpDirectory;
+    private GarminSwimActivity activity;
+
+    // Only used by writeFitFile(), so that the (sub-millisecond) recalculation benchmarks don't pay for a fixture that
+    // runs around every single invocation
+    @State(Scope.Thread)
+    public static class WrittenFile {
+        private String fileName;
+
+        // FitWriter refuses to overwrite an existing file
+        @TearDown(Level.Invocation)
+        public void delete() {
+            if (fileName != null) {
+                new File(fileName).delete();
+                fileName = null;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tmpDirectory = BenchmarkInputs.createTempDirectory();
+        activity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(BenchmarkInputs.getFitFile(fileName, tmpDirectory),
+                activity);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkInputs.deleteTempDirectory(tmpDirectory);
+    }
+
+    @Benchmark
+    public SessionMesg recalculateActivityStats() {
+        activity.recalculateActivityStats();
+        return activity.getSessionMesg();
+    }
+
+    // What editing a single lap costs, i.e. only the one lap (in the middle of the activity) is recalculated
+    @Benchmark
+    public SessionMesg recalculateDirtyLapStats() {
+        activity.markLapDirty(activity.getGarminLaps().size() / 2);
+        activity.recalculateDirtyLapStats();
+        return activity.getSessionMesg();
+    }
+
+    @Benchmark
+    public String writeFitFile(final WrittenFile writtenFile) throws IOException {
+        writtenFile.fileName = new FitWriter(activity, "benchmark.fit", tmpDirectory).writeFitFile();
+        return writtenFile.fileName;
+    }
+}
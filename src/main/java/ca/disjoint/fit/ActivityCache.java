@@ -0,0 +1,411 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.garmin.fit.Factory;
+import com.garmin.fit.Field;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.Profile;
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.RecordMesg;
+import com.garmin.fit.EventMesg;
+import com.garmin.fit.DeviceInfoMesg;
+import com.garmin.fit.HrMesg;
+
+// An on-disk cache of decoded activities. Each entry is a compact binary snapshot of the raw field values of every
+// message in the activity, keyed by the SHA-256 of the source file, with a CRC-32 trailer that is checked on every load
+// (a bad entry is deleted, and the activity decoded again). Entries are written to a temporary file and then
+// atomically renamed into place, so concurrent processes never see a partial entry. The least recently used entries
+// are evicted once the cache grows beyond its size cap, under a file lock shared by all processes.
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class ActivityCache {
+    private static final Logger LOGGER = LogManager.getLogger(ActivityCache.class);
+    private static final int MAGIC = 0x414d4331; // "AMC1"
+    private static final int FORMAT_VERSION = 2;
+    private static final String ENTRY_SUFFIX = ".snapshot";
+    private static final String LOCK_FILE = ".lock";
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    // Value type tags
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_SHORT = 2;
+    private static final int TYPE_INTEGER = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_FLOAT = 5;
+    private static final int TYPE_DOUBLE = 6;
+    private static final int TYPE_STRING = 7;
+
+    private final File directory;
+    private final long maxSize;
+
+    public ActivityCache(final File directory, final long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    // The "activitymanager.cache.dir" system property overrides the default of ~/.cache/activity-manager
+    public static File getDefaultDirectory() {
+        String dir = System.getProperty("activitymanager.cache.dir");
+        if (dir != null) {
+            return new File(dir);
+        }
+        return new File(System.getProperty("user.home"), ".cache" + File.separator + "activity-manager");
+    }
+
+    public String getKey(final File file) throws FileNotFoundException, IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        try (InputStream in = new FitFileInputStream(file)) {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // Returns the cached messages in their original order, or null if the activity is not (or no longer) cached
+    public List<Mesg> load(final String key) {
+        File entry = new File(directory, key + ENTRY_SUFFIX);
+        List<Mesg> mesgs = new ArrayList<Mesg>();
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(entry.toPath()), STREAM_BUFFER_SIZE)) {
+            CheckedInputStream checked = new CheckedInputStream(file, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                LOGGER.log(Level.WARN, "Ignoring incompatible cache entry " + entry.getName());
+                return null;
+            }
+            int numMesgs = in.readInt();
+            for (int i = 0; i < numMesgs; i++) {
+                mesgs.add(readMesg(in));
+            }
+
+            long crc = checked.getChecksum().getValue();
+            if (new DataInputStream(file).readLong() != crc || file.read() != -1) {
+                deleteCorruptEntry(entry, "checksum mismatch");
+                return null;
+            }
+        } catch (NoSuchFileException ex) {
+            LOGGER.log(Level.DEBUG, "Cache miss for " + key);
+            return null;
+        } catch (EOFException ex) {
+            deleteCorruptEntry(entry, "truncated");
+            return null;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARN, "Unable to read cache entry " + entry.getName() + ": " + ex.getMessage());
+            return null;
+        } catch (RuntimeException ex) {
+            // e.g. a message or field number the SDK doesn't know, from a corrupt entry
+            deleteCorruptEntry(entry, ex.toString());
+            return null;
+        }
+
+        // Mark the entry as recently used, for the LRU eviction
+        if (!entry.setLastModified(System.currentTimeMillis())) {
+            LOGGER.log(Level.DEBUG, "Unable to update the access time of cache entry " + entry.getName());
+        }
+        LOGGER.log(Level.DEBUG, "Cache hit for " + key + ", " + mesgs.size() + " messages");
+        return mesgs;
+    }
+
+    // Failing to cache an activity is never fatal, the activity simply gets decoded again next time
+    public void store(final String key, final GarminActivity activity) {
+        if (activity.getRecordColumns() != null) {
+            LOGGER.log(Level.DEBUG, "Record columns only retain some of the record fields, not caching " + key);
+            return;
+        }
+
+        List<Mesg> mesgs = getSnapshotMesgs(activity);
+        for (Mesg mesg : mesgs) {
+            if (mesg.getDeveloperFields().iterator().hasNext()) {
+                LOGGER.log(Level.DEBUG, "Developer fields are not part of a snapshot, not caching " + key);
+                return;
+            }
+        }
+
+        Path tmpFile = null;
+        try {
+            Files.createDirectories(directory.toPath());
+            tmpFile = Files.createTempFile(directory.toPath(), key, ".tmp");
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(tmpFile), STREAM_BUFFER_SIZE)) {
+                CheckedOutputStream checked = new CheckedOutputStream(file, new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeInt(mesgs.size());
+                for (Mesg mesg : mesgs) {
+                    writeMesg(out, mesg);
+                }
+                out.flush();
+                new DataOutputStream(file).writeLong(checked.getChecksum().getValue());
+            }
+            Files.move(tmpFile, new File(directory, key + ENTRY_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.log(Level.DEBUG, "Cached " + mesgs.size() + " messages under " + key);
+            evict();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARN, "Unable to cache activity " + key + ": " + ex.getMessage());
+        } finally {
+            if (tmpFile != null) {
+                try {
+                    Files.deleteIfExists(tmpFile);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.DEBUG, "Unable to delete " + tmpFile + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    // The activity simply gets decoded (and cached) again
+    private void deleteCorruptEntry(final File entry, final String reason) {
+        LOGGER.log(Level.WARN, "Deleting corrupt cache entry " + entry.getName() + " (" + reason + ")");
+        if (!entry.delete()) {
+            LOGGER.log(Level.DEBUG, "Unable to delete cache entry " + entry.getName());
+        }
+    }
+
+    // The messages are stored in the same order as a decoder would deliver them, lengths before their lap
+    private List<Mesg> getSnapshotMesgs(final GarminActivity activity) {
+        List<Mesg> mesgs = new ArrayList<Mesg>();
+        if (activity.getFileIdMesg() != null) {
+            mesgs.add(activity.getFileIdMesg());
+        }
+        for (DeviceInfoMesg mesg : activity.getDeviceInfoMessages()) {
+            mesgs.add(mesg);
+        }
+        for (EventMesg mesg : activity.getEventMessages()) {
+            mesgs.add(mesg);
+        }
+        for (RecordMesg mesg : activity.getRecordMessages()) {
+            mesgs.add(mesg);
+        }
+        for (GarminLap lap : activity.getGarminLaps()) {
+            for (LengthMesg length : lap.getLengthMessages()) {
+                mesgs.add(length);
+            }
+            mesgs.add(lap.getLapMessage());
+        }
+        if (activity.getActivityMesg() != null) {
+            mesgs.add(activity.getActivityMesg());
+        }
+        if (activity.getSessionMesg() != null) {
+            mesgs.add(activity.getSessionMesg());
+        }
+        for (HrMesg mesg : activity.getHrMessages()) {
+            mesgs.add(mesg);
+        }
+        return mesgs;
+    }
+
+    private void writeMesg(final DataOutputStream out, final Mesg mesg) throws IOException {
+        Collection<Field> fields = mesg.getFields();
+        out.writeShort(mesg.getNum());
+        out.writeShort(fields.size());
+        for (Field field : fields) {
+            out.writeByte(field.getNum());
+            out.writeByte(field.getType());
+            out.writeByte(field.getNumValues());
+            for (int i = 0; i < field.getNumValues(); i++) {
+                writeValue(out, field.getRawValue(i));
+            }
+        }
+    }
+
+    private Mesg readMesg(final DataInputStream in) throws IOException {
+        int mesgNum = in.readUnsignedShort();
+        Mesg mesg = Factory.createMesg(mesgNum);
+        int numFields = in.readUnsignedShort();
+        for (int i = 0; i < numFields; i++) {
+            int fieldNum = in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            int numValues = in.readUnsignedByte();
+
+            // Fields missing from the profile keep the base type they were decoded with
+            Field field = Factory.createField(mesgNum, fieldNum);
+            if (field.getType() != type) {
+                field = new Field(field.getName(), fieldNum, type, 1, 0, "", false, Profile.Type.ENUM);
+            }
+            for (int j = 0; j < numValues; j++) {
+                field.setRawValue(j, readValue(in));
+            }
+            mesg.addField(field);
+        }
+        return mesg;
+    }
+
+    private void writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else {
+            throw new IOException("Unsupported field value type " + value.getClass().getName());
+        }
+    }
+
+    private Object readValue(final DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+        case TYPE_NULL:
+            return null;
+        case TYPE_BYTE:
+            return in.readByte();
+        case TYPE_SHORT:
+            return in.readShort();
+        case TYPE_INTEGER:
+            return in.readInt();
+        case TYPE_LONG:
+            return in.readLong();
+        case TYPE_FLOAT:
+            return in.readFloat();
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_STRING:
+            return in.readUTF();
+        default:
+            throw new IOException("Unknown field value type " + type);
+        }
+    }
+
+    // Deletes the least recently used entries until the cache fits within its size cap
+    private void evict() throws IOException {
+        if (getTotalSize(listEntries()) <= maxSize) {
+            return;
+        }
+
+        // Only one process evicts at a time, the entries are listed again as another one may just have done so
+        try (FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                File[] entries = listEntries();
+                long totalSize = getTotalSize(entries);
+
+                // Snapshot the access times, as they may change (in other processes) while sorting
+                long[] lastUsed = new long[entries.length];
+                Integer[] order = new Integer[entries.length];
+                for (int i = 0; i < entries.length; i++) {
+                    lastUsed[i] = entries[i].lastModified();
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    public int compare(final Integer a, final Integer b) {
+                        return Long.compare(lastUsed[a], lastUsed[b]);
+                    }
+                });
+
+                for (int i = 0; i < order.length && totalSize > maxSize; i++) {
+                    File entry = entries[order[i]];
+                    long size = entry.length();
+                    if (entry.delete()) {
+                        LOGGER.log(Level.DEBUG, "Evicted cache entry " + entry.getName());
+                    }
+                    totalSize -= size;
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private File[] listEntries() {
+        File[] entries = directory.listFiles(new FilenameFilter() {
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(ENTRY_SUFFIX);
+            }
+        });
+        if (entries == null) {
+            return new File[0];
+        }
+        return entries;
+    }
+
+    private static long getTotalSize(final File[] entries) {
+        long totalSize = 0;
+        for (File entry : entries) {
+            totalSize += entry.length();
+        }
+        return totalSize;
+    }
+}
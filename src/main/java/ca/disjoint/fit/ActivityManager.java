@@ -83,6 +83,9 @@ public class ActivityManager implements Callable<Integer> {
         CommandLine cli = new CommandLine(this);
         cli.addSubcommand(new SwimEditor(input, output, terminal, cliArgs));
         cli.addSubcommand(new FitDumper(input, output, terminal, cliArgs));
+        cli.addSubcommand(new BatchProcessor(input, output, terminal, cliArgs));
+        cli.addSubcommand(new FitVerifier(input, output, terminal, cliArgs));
+        cli.setCaseInsensitiveEnumValuesAllowed(true);
         return cli.execute(cliArgs);
     }
 
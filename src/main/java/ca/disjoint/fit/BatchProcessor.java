@@ -0,0 +1,294 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import com.garmin.fit.Sport;
+import com.garmin.fit.SubSport;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.ParameterException;
+
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+
+import org.jline.terminal.Terminal;
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+
+@Command(name = "batch", mixinStandardHelpOptions = true, description = "Apply the non-interactive swim edits to whole directories and zip archives of FIT files, in parallel.", usageHelpAutoWidth = true)
+public class BatchProcessor implements Callable<Integer> {
+    @Mixin
+    private ReusableOptions reusableOptionsMixin;
+
+    @Spec
+    private CommandSpec spec;
+
+    @Parameters(arity = "1..*", paramLabel = "PATH", description = "Pool swimming FIT files, directories, or zip archives to process.")
+    private List<File> paths;
+
+    @Option(names = { "-j",
+            "--jobs" }, paramLabel = "N", description = "Number of files to process concurrently. (default: ${DEFAULT-VALUE})")
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = { "-o",
+            "--output-dir" }, paramLabel = "DIR", description = "Directory to write the updated FIT files to. (default: current directory)")
+    private File outputDirectory = null;
+
+    @Option(names = "--pool-length", paramLabel = "METERS", description = "Update the pool length of every activity.")
+    private Float poolLength = null;
+
+    @Option(names = {
+            "--no-randomize-ctime" }, negatable = true, description = "Randomize the activity start time. This allows you to upload duplicate activities to Strava, Garmin Connect, and other similar services (default: ${DEFAULT-VALUE})")
+    private boolean randomizeCreationTime = true;
+
+    @Option(names = "--hr-data", paramLabel = "FILE[,RULE=VALUE...]", description = "FIT file containing HR data, added to every activity. Can be given more than once, in order of priority. Rules: min, max, max-delta (bpm/s), max-gap (seconds).")
+    private List<String> hrDataSpecs = new ArrayList<String>();
+
+    @Option(names = "--apply", paramLabel = "SPEC", description = "Apply the pool length, stroke edits and HR data in the given edit spec file to every activity. The spec is only read once.")
+    private File editSpecFile = null;
+
+    @Option(names = "--hr-fill", paramLabel = "STRATEGY", description = "How gaps in the HR data are filled in: ${COMPLETION-CANDIDATES}. (default: ${DEFAULT-VALUE})")
+    private HrGapFiller.Fill hrFill = HrGapFiller.Fill.RANDOM;
+
+    private static final Logger LOGGER = LogManager.getLogger(BatchProcessor.class);
+    private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private Terminal terminal;
+    private final InputStream input;
+    private final OutputStream output;
+    private final String[] cliArgs;
+    private List<HrSource> hrSources;
+    private EditSpec editSpec;
+
+    public BatchProcessor(final InputStream input, final OutputStream output, final Terminal terminal,
+            final String[] args) {
+        this.input = input;
+        this.output = output;
+        this.cliArgs = args;
+        this.terminal = terminal;
+    }
+
+    private static final class BatchResult {
+        private final FitSource source;
+        private String outputFileName;
+        private boolean renamed;
+        private String skippedReason;
+        private Exception error;
+
+        BatchResult(final FitSource source) {
+            this.source = source;
+        }
+    }
+
+    @SuppressWarnings("checkstyle:DesignForExtension")
+    public Integer call() {
+        Utils.setLogLevel(reusableOptionsMixin);
+
+        if (jobs < 1) {
+            throw new ParameterException(spec.commandLine(), "The number of jobs must be at least 1");
+        }
+        if (poolLength != null && poolLength <= 0f) {
+            throw new ParameterException(spec.commandLine(), "\"" + poolLength + "\" is not a valid pool length");
+        }
+
+        try {
+            if (outputDirectory != null && !outputDirectory.isDirectory()) {
+                throw new RuntimeException("Output directory \"" + outputDirectory + "\" does not exist");
+            }
+
+            List<FitSource> sources = FitSource.collect(paths);
+            if (editSpecFile != null) {
+                // Parsed once and shared (read-only) by all the workers
+                editSpec = EditSpec.parse(editSpecFile);
+                if (!editSpec.getHrSources().isEmpty() && !hrDataSpecs.isEmpty()) {
+                    throw new RuntimeException("HR data is given both by --hr-data and by " + editSpecFile.getName());
+                }
+                editSpec.preloadHrSources();
+            }
+            hrSources = SwimEditor.getHrSources(hrDataSpecs);
+            for (HrSource hrSource : hrSources) {
+                // Loaded once and shared (read-only) by all the workers, rather than streamed for every activity
+                hrSource.preload();
+            }
+
+            LOGGER.log(Level.DEBUG, "Processing " + sources.size() + " FIT files using " + jobs + " workers");
+            long startTime = System.nanoTime();
+            int numFailed = 0;
+            int numSkipped = 0;
+            long totalBytes = 0;
+
+            ExecutorService executor = Executors.newFixedThreadPool(jobs);
+            try {
+                CompletionService<BatchResult> completionService = new ExecutorCompletionService<BatchResult>(executor);
+                for (FitSource source : sources) {
+                    completionService.submit(new Callable<BatchResult>() {
+                        public BatchResult call() {
+                            return process(source);
+                        }
+                    });
+                }
+
+                // Results are reported as they complete, rather than in submission order
+                for (int i = 0; i < sources.size(); i++) {
+                    BatchResult result = completionService.take().get();
+                    totalBytes += result.source.getSize();
+                    if (result.error != null) {
+                        numFailed++;
+                    } else if (result.skippedReason != null) {
+                        numSkipped++;
+                    }
+                    printResult(result);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            printSummary(sources.size(), numFailed, numSkipped, totalBytes, System.nanoTime() - startTime);
+            if (numFailed > 0) {
+                return 1;
+            }
+        } catch (Exception ex) {
+            String exceptionMsg = ex.getMessage();
+            String msg = String.format("Error: %s", ex.getMessage());
+            if (exceptionMsg != "") {
+                System.err.println(msg);
+            }
+            LOGGER.log(Level.ERROR, msg);
+
+            if (reusableOptionsMixin.getVerbosity().length > 0) {
+                ex.printStackTrace();
+            }
+            return 1;
+        }
+
+        return 0;
+    }
+
+    @SuppressWarnings("checkstyle:DesignForExtension")
+    public int start() {
+        return new CommandLine(this).setCaseInsensitiveEnumValuesAllowed(true).execute(cliArgs);
+    }
+
+    // Runs on the worker threads, so any failure is captured in the result instead of aborting the whole batch
+    private BatchResult process(final FitSource source) {
+        BatchResult result = new BatchResult(source);
+        try {
+            LOGGER.log(Level.DEBUG, "Processing FIT file " + source.getName());
+            GarminSwimActivity garminSwimActivity = new GarminSwimActivity();
+            GarminActivityLoader gal = new GarminActivityLoader(source.open(), source.getName(), garminSwimActivity);
+
+            if (garminSwimActivity.getSessionMesg() == null || garminSwimActivity.getSport() != Sport.SWIMMING
+                    || garminSwimActivity.getSubSport() != SubSport.LAP_SWIMMING) {
+                result.skippedReason = "not a pool swimming activity";
+                return result;
+            }
+
+            if (randomizeCreationTime) {
+                garminSwimActivity.randomizeCreationTime();
+            }
+            if (poolLength != null) {
+                garminSwimActivity.updateSwimmingPoolLength(poolLength);
+            }
+            if (editSpec != null) {
+                editSpec.apply(garminSwimActivity);
+            }
+            if (!hrSources.isEmpty()) {
+                SwimEditor.addHrDataToSwimActivity(garminSwimActivity, hrSources, hrFill);
+            }
+
+            // The same activity may well come in twice (e.g. from a directory and from a zip export of it), the
+            // second copy is written under a numbered name rather than failing
+            FitWriter fr = new FitWriter(garminSwimActivity, source.getFileName(), outputDirectory);
+            fr.setNumberTakenNames(true);
+            result.outputFileName = fr.writeFitFile();
+            result.renamed = fr.isNumbered();
+        } catch (Exception ex) {
+            LOGGER.log(Level.ERROR, "Processing " + source.getName() + " failed: " + ex.getMessage());
+            result.error = ex;
+        }
+        return result;
+    }
+
+    private void printResult(final BatchResult result) {
+        if (result.error != null) {
+            AttributedStringBuilder asb = new AttributedStringBuilder();
+            asb.style(AttributedStyle.BOLD.foreground(AttributedStyle.RED));
+            asb.append("FAILED ");
+            asb.style(AttributedStyle.DEFAULT);
+            asb.append(String.format("%s: %s", result.source.getName(), result.error.getMessage()));
+            asb.append(System.lineSeparator());
+            terminal.writer().append(asb.toAnsi());
+        } else if (result.skippedReason != null) {
+            AttributedStringBuilder asb = new AttributedStringBuilder();
+            asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
+            asb.append("SKIPPED ");
+            asb.style(AttributedStyle.DEFAULT);
+            asb.append(String.format("%s: %s", result.source.getName(), result.skippedReason));
+            asb.append(System.lineSeparator());
+            terminal.writer().append(asb.toAnsi());
+        } else if (result.renamed) {
+            AttributedStringBuilder asb = new AttributedStringBuilder();
+            asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
+            asb.append("RENAMED ");
+            asb.style(AttributedStyle.DEFAULT);
+            asb.append(String.format("%s: output file name was already taken, written to %s", result.source.getName(),
+                    result.outputFileName));
+            asb.append(System.lineSeparator());
+            terminal.writer().append(asb.toAnsi());
+        } else {
+            LOGGER.log(Level.DEBUG, "Processed " + result.source.getName() + " into " + result.outputFileName);
+        }
+        terminal.flush();
+    }
+
+    private void printSummary(final int numFiles, final int numFailed, final int numSkipped, final long totalBytes,
+            final long elapsedNanos) {
+        double elapsedSeconds = Math.max(elapsedNanos, 1L) / NANOS_PER_SECOND;
+
+        AttributedStringBuilder asb = new AttributedStringBuilder();
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
+        asb.append(String.format("Processed %d files (%d failed, %d skipped) in %.2fs", numFiles, numFailed, numSkipped,
+                elapsedSeconds));
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
+        asb.append(String.format(" (%.1f files/s, %.2f MB/s)", numFiles / elapsedSeconds,
+                totalBytes / BYTES_PER_MEGABYTE / elapsedSeconds));
+        asb.append(System.lineSeparator());
+        terminal.writer().append(asb.toAnsi());
+        terminal.flush();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.File;
+
+@Command
+public class CacheOptions {
+    private static final long DEFAULT_CACHE_SIZE_MB = 256;
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    @Option(names = {
+            "--cache" }, negatable = true, description = "Cache decoded activities on disk, keyed by the contents of the FIT file. (default: ${DEFAULT-VALUE})")
+    private boolean cacheEnabled = false;
+
+    @Option(names = "--cache-dir", paramLabel = "DIR", description = "Directory holding the cached activities. (default: ${DEFAULT-VALUE})")
+    private File cacheDirectory = ActivityCache.getDefaultDirectory();
+
+    @Option(names = "--cache-size", paramLabel = "MB", description = "Maximum size of the activity cache, the least recently used activities are evicted first. (default: ${DEFAULT-VALUE})")
+    private long cacheSize = DEFAULT_CACHE_SIZE_MB;
+
+    // Returns null when caching is disabled
+    @SuppressWarnings("checkstyle:DesignForExtension")
+    public ActivityCache getActivityCache() {
+        if (!cacheEnabled) {
+            return null;
+        }
+        return new ActivityCache(cacheDirectory, cacheSize * BYTES_PER_MEGABYTE);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+// Formats durations (in seconds) as [HH:]mm:ss, appending the digits straight into the caller's StringBuilder. This
+// gives the same output as formatting the duration as a UTC time of day with an "HH:mm:ss" DateTimeFormatter (and
+// dropping a leading "00:" hour), minus the formatter, Instant & String allocated for every value.
+public final class DurationFormatter {
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long SECONDS_PER_MINUTE = 60L;
+    private static final long SECONDS_PER_HOUR = 60L * 60L;
+    private static final long SECONDS_PER_DAY = 24L * 60L * 60L;
+    private static final int RADIX = 10;
+
+    protected DurationFormatter() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static StringBuilder appendDuration(final StringBuilder sb, final float seconds) {
+        // Truncated to the millisecond and then rounded down to the second, wrapping around at 24h, as the
+        // DateTimeFormatter did
+        long millis = (long) (seconds * MILLIS_PER_SECOND);
+        long secondOfDay = Math.floorMod(Math.floorDiv(millis, MILLIS_PER_SECOND), SECONDS_PER_DAY);
+
+        int hours = (int) (secondOfDay / SECONDS_PER_HOUR);
+        if (hours > 0) {
+            appendTwoDigits(sb, hours);
+            sb.append(':');
+        }
+        appendTwoDigits(sb, (int) (secondOfDay % SECONDS_PER_HOUR / SECONDS_PER_MINUTE));
+        sb.append(':');
+        appendTwoDigits(sb, (int) (secondOfDay % SECONDS_PER_MINUTE));
+        return sb;
+    }
+
+    // Pace per 100m at the given speed (in m/s)
+    public static StringBuilder appendPace(final StringBuilder sb, final float speed) {
+        return appendDuration(sb, Utils.PACE_PER_HUNDRED_METERS / speed);
+    }
+
+    public static String formatDuration(final float seconds) {
+        return appendDuration(new StringBuilder(), seconds).toString();
+    }
+
+    private static void appendTwoDigits(final StringBuilder sb, final int value) {
+        sb.append((char) ('0' + value / RADIX));
+        sb.append((char) ('0' + value % RADIX));
+    }
+}
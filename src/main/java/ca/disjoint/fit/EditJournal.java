@@ -0,0 +1,167 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+
+import com.garmin.fit.SwimStroke;
+
+// Append-only record of the edits made during an editing session, written as an edit spec (see EditSpec) so that it
+// can be replayed with --journal or --apply. The journal starts off with the lap structure of the activity it was
+// recorded against, so it can only be replayed onto that activity or one with the same laps & lengths.
+//
+// Every edit goes out to the file as soon as it's made, but the file is only synced to disk at lap boundaries (when
+// an edit comes in for another lap, when a lap is finished, and after anything that spans laps). That way a session
+// that dies part way through loses at most the lap being edited, without paying for a sync on every length.
+public final class EditJournal implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger(EditJournal.class);
+
+    private final File file;
+    private final FileChannel channel;
+    private int currentLap = -1;
+    private boolean unsynced;
+    private int numEntries;
+
+    private EditJournal(final File file, final FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    // Opens the journal for appending, starting it off with a header if it's new
+    public static EditJournal open(final File file, final GarminSwimActivity activity, final String sourceName)
+            throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        EditJournal journal = new EditJournal(file, channel);
+        if (channel.size() == 0) {
+            journal.append("# Swim edit journal for " + sourceName);
+            journal.append(EditSpec.LAPS + " = " + EditSpec.getLapStructure(activity));
+            journal.sync();
+            journal.numEntries = 0;
+        }
+        LOGGER.log(Level.DEBUG, "Opened edit journal " + file.getPath() + " (" + channel.size() + " bytes)");
+        return journal;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public void recordPoolLength(final float poolLength) {
+        endLap();
+        append(EditSpec.POOL_LENGTH + " = " + poolLength);
+        sync();
+    }
+
+    // A single length (both numbered from 0) set to the given stroke
+    public void recordLengthStroke(final int lapIndex, final int lengthIndex, final SwimStroke stroke) {
+        recordEdit(lapIndex, "lap " + (lapIndex + 1) + " " + (lengthIndex + 1) + " " + stroke);
+    }
+
+    // Every length in the lap set to the given stroke
+    public void recordLapStroke(final int lapIndex, final SwimStroke stroke) {
+        recordEdit(lapIndex, "lap " + (lapIndex + 1) + " = " + stroke);
+    }
+
+    // An edit command that was applied to the given laps, when it doesn't name its own
+    public void recordCommand(final SwimEditCommand command, final List<Integer> laps) {
+        if (!command.hasLaps() && laps.size() == 1) {
+            recordEdit(laps.get(0), "lap " + (laps.get(0) + 1) + " " + command);
+            return;
+        }
+
+        // Otherwise the command goes in as is, the default laps for a spec being every active lap (same as at the
+        // lap prompt)
+        endLap();
+        append(EditSpec.EDIT + " = " + command);
+        sync();
+    }
+
+    public void recordHrData(final List<String> hrDataSpecs, final HrGapFiller.Fill hrFill) {
+        endLap();
+        for (String hrDataSpec : hrDataSpecs) {
+            append(EditSpec.HR_DATA + " = " + hrDataSpec);
+        }
+        append(EditSpec.HR_FILL + " = " + hrFill.toString().toLowerCase());
+        sync();
+    }
+
+    // Syncs the edits made to the current lap
+    public void endLap() {
+        if (unsynced) {
+            sync();
+        }
+        currentLap = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            endLap();
+        } finally {
+            channel.close();
+        }
+        LOGGER.log(Level.DEBUG, "Closed edit journal " + file.getPath() + " after " + numEntries + " entries");
+    }
+
+    private void recordEdit(final int lapIndex, final String command) {
+        if (lapIndex != currentLap) {
+            endLap();
+            currentLap = lapIndex;
+        }
+        append(EditSpec.EDIT + " = " + command);
+    }
+
+    private void append(final String line) {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to write to edit journal " + file.getName() + ": " + ex.getMessage());
+        }
+        unsynced = true;
+        numEntries++;
+    }
+
+    private void sync() {
+        try {
+            channel.force(true);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to sync edit journal " + file.getName() + ": " + ex.getMessage());
+        }
+        unsynced = false;
+    }
+}
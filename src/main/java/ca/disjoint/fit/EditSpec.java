@@ -0,0 +1,220 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+
+// A set of edits to apply to swim activities without any prompts, read from a file of KEY = VALUE lines:
+//
+//   # the pool was 25m, not 25yd
+//   pool-length = 25
+//   edit = lap 5 = im
+//   edit = lap 3 4-6 fr
+//   edit = fill-invalid fr
+//   hr-data = chest-strap.fit,max-gap=3
+//   hr-data = watch.fit
+//   hr-fill = linear
+//
+// "laps" optionally pins the spec to a lap structure (the number of lengths in each lap, e.g. "laps = 4,0,8"), so that
+// it is only ever applied to activities with those same laps. "edit" takes a stroke edit command (see SwimEditCommand)
+// and, like "hr-data", can be given more than once; they're applied in the order given. The spec is parsed once and is
+// read-only afterwards, so a single instance can be shared by any number of activities (and threads).
+public final class EditSpec {
+    private static final Logger LOGGER = LogManager.getLogger(EditSpec.class);
+    static final String POOL_LENGTH = "pool-length";
+    static final String EDIT = "edit";
+    static final String HR_DATA = "hr-data";
+    static final String HR_FILL = "hr-fill";
+    static final String LAPS = "laps";
+
+    private final File file;
+    private Float poolLength;
+    private String lapStructure;
+    private final List<SwimEditCommand> edits = new ArrayList<SwimEditCommand>();
+    private final List<HrSource> hrSources = new ArrayList<HrSource>();
+    private HrGapFiller.Fill hrFill = HrGapFiller.Fill.RANDOM;
+
+    private EditSpec(final File file) {
+        this.file = file;
+    }
+
+    public static EditSpec parse(final File file) throws IOException {
+        EditSpec spec = new EditSpec(file);
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    spec.parseLine(line);
+                } catch (RuntimeException ex) {
+                    throw new RuntimeException(file.getName() + ":" + lineNumber + ": " + ex.getMessage());
+                }
+            }
+        }
+        LOGGER.log(Level.DEBUG, "Parsed edit spec " + spec);
+        return spec;
+    }
+
+    private void parseLine(final String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return;
+        }
+
+        String[] entry = trimmed.split("=", 2);
+        if (entry.length != 2) {
+            throw new IllegalArgumentException("Expected KEY = VALUE, got \"" + trimmed + "\"");
+        }
+        String key = entry[0].trim().toLowerCase();
+        String value = entry[1].trim();
+
+        if (key.equals(POOL_LENGTH)) {
+            float length;
+            try {
+                length = Float.parseFloat(value);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("\"" + value + "\" is not a valid pool length");
+            }
+            if (length <= 0f) {
+                throw new IllegalArgumentException("\"" + value + "\" is not a valid pool length");
+            }
+            poolLength = length;
+        } else if (key.equals(EDIT)) {
+            edits.add(SwimEditCommand.parse(value));
+        } else if (key.equals(HR_DATA)) {
+            hrSources.add(HrSource.parse(value));
+        } else if (key.equals(HR_FILL)) {
+            try {
+                hrFill = HrGapFiller.Fill.valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Unknown HR fill strategy \"" + value + "\"");
+            }
+        } else if (key.equals(LAPS)) {
+            lapStructure = parseLapStructure(value);
+        } else {
+            throw new IllegalArgumentException("Unknown key \"" + key + "\"");
+        }
+    }
+
+    // Normalized to the same form as getLapStructure(), so the two can be compared as strings
+    private static String parseLapStructure(final String value) {
+        StringBuilder sb = new StringBuilder();
+        for (String numLengths : value.split(",")) {
+            try {
+                int n = Integer.parseInt(numLengths.trim());
+                if (n < 0) {
+                    throw new NumberFormatException();
+                }
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(n);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("\"" + value + "\" is not a valid lap structure");
+            }
+        }
+        return sb.toString();
+    }
+
+    // The number of lengths in each of the activity's laps, e.g. "4,0,8"
+    static String getLapStructure(final GarminSwimActivity activity) {
+        StringBuilder sb = new StringBuilder();
+        for (GarminLap lap : activity.getGarminLaps()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(lap.getLengthMessages().size());
+        }
+        return sb.toString();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // null when the pool length is to be left alone
+    public Float getPoolLength() {
+        return poolLength;
+    }
+
+    public List<SwimEditCommand> getEdits() {
+        return edits;
+    }
+
+    public List<HrSource> getHrSources() {
+        return hrSources;
+    }
+
+    public HrGapFiller.Fill getHrFill() {
+        return hrFill;
+    }
+
+    // Decodes the HR sources up front, for when the spec is applied to more than a handful of activities
+    public void preloadHrSources() throws IOException {
+        for (HrSource hrSource : hrSources) {
+            hrSource.preload();
+        }
+    }
+
+    // null when the spec can be applied to any activity
+    public String getLapStructure() {
+        return lapStructure;
+    }
+
+    public void apply(final GarminSwimActivity activity) throws IOException {
+        if (lapStructure != null && !lapStructure.equals(getLapStructure(activity))) {
+            throw new RuntimeException(file.getName() + " was made for laps " + lapStructure
+                    + " but the activity has laps " + getLapStructure(activity));
+        }
+
+        if (poolLength != null) {
+            activity.updateSwimmingPoolLength(poolLength);
+        }
+
+        // Each edit recalculates only the laps it touched
+        for (SwimEditCommand edit : edits) {
+            try {
+                edit.apply(activity, activity.getActiveSwimLaps());
+            } catch (IllegalArgumentException ex) {
+                throw new RuntimeException(file.getName() + ": \"" + edit + "\": " + ex.getMessage());
+            }
+        }
+
+        if (!hrSources.isEmpty()) {
+            SwimEditor.addHrDataToSwimActivity(activity, hrSources, hrFill);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (pool-length=%s, %d edits, %d HR sources)", file.getPath(), poolLength, edits.size(),
+                hrSources.size());
+    }
+}
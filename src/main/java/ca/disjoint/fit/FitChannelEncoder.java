@@ -0,0 +1,339 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.garmin.fit.CRC;
+import com.garmin.fit.Decode;
+import com.garmin.fit.Fit;
+import com.garmin.fit.FitRuntimeException;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.MesgDefinition;
+
+// Encodes FIT messages straight into a FileChannel, a chunk at a time, instead of building up the whole file in memory
+// like BufferEncoder does. Message definitions are written the same way BufferEncoder writes them. The file CRC is
+// computed as the chunks go out and the header (which holds the data size) is only filled in once everything has been
+// written, so memory use doesn't depend on the size of the activity. Optionally, every chunk is run through a decoder
+// and a CRC of its own before it's handed to the channel, so that a bad encoding or file CRC is caught without ever
+// reading the file back.
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class FitChannelEncoder {
+    private static final Logger LOGGER = LogManager.getLogger(FitChannelEncoder.class);
+    private static final int HEADER_SIZE = 14;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CRC_BITS = 16;
+    private static final int CRC_POLYNOMIAL = 0xA001;
+    private static final int VERIFICATION_DATA_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final Fit.ProtocolVersion protocolVersion;
+    private final ChunkOutputStream out;
+    private final MesgDefinition[] lastMesgDefinition = new MesgDefinition[Fit.MAX_LOCAL_MESGS];
+    private final Verifier verifier;
+    private long numRecordsWritten;
+    private boolean closed;
+
+    public FitChannelEncoder(final FileChannel channel, final Fit.ProtocolVersion protocolVersion) throws IOException {
+        this(channel, protocolVersion, false);
+    }
+
+    public FitChannelEncoder(final FileChannel channel, final Fit.ProtocolVersion protocolVersion, final boolean verify)
+            throws IOException {
+        this.channel = channel;
+        this.protocolVersion = protocolVersion;
+        if (verify) {
+            this.verifier = new Verifier(getHeader(VERIFICATION_DATA_SIZE));
+        } else {
+            this.verifier = null;
+        }
+
+        // Placeholder header, filled in once the data size is known
+        channel.position(0);
+        writeFully(ByteBuffer.wrap(getHeader(0)));
+        this.out = new ChunkOutputStream();
+    }
+
+    // Decodes the encoded data as it goes by, counting the definition & data messages that come out the other end.
+    // The decoder is handed a header of its own, claiming more data than will ever be written, so that it never
+    // expects the file CRC. The file CRC is checked instead against a CRC of the same bytes that is computed here,
+    // bit by bit, rather than with the SDK's CRC.
+    private static final class Verifier {
+        private final Decode decode = new Decode();
+        private long numRecordsDecoded;
+        private long dataSize;
+        private int dataCrc;
+
+        Verifier(final byte[] header) {
+            decode(header, header.length);
+        }
+
+        void update(final byte[] bytes, final int length) {
+            decode(bytes, length);
+            for (int i = 0; i < length; i++) {
+                dataCrc = updateCrc(dataCrc, bytes[i]);
+            }
+            dataSize += length;
+        }
+
+        private void decode(final byte[] bytes, final int length) {
+            try {
+                for (int i = 0; i < length; i++) {
+                    Decode.RETURN ret = decode.read(bytes[i]);
+                    if (ret == Decode.RETURN.MESG || ret == Decode.RETURN.MESG_DEF) {
+                        numRecordsDecoded++;
+                    }
+                }
+            } catch (FitRuntimeException ex) {
+                throw new RuntimeException("Encoded FIT data failed verification: " + ex.getMessage(), ex);
+            }
+        }
+
+        // The file CRC has to match the CRC of the final header followed by all the data that went by. Rather than
+        // relying on combineCrc(), the header's CRC is carried through the data the long way, one zero byte at a time.
+        void verify(final long numRecordsWritten, final byte[] header, final int fileCrc) {
+            if (numRecordsDecoded != numRecordsWritten) {
+                throw new RuntimeException("Encoded FIT data failed verification: " + numRecordsWritten
+                        + " messages were written but " + numRecordsDecoded + " were decoded");
+            }
+
+            int crc = 0;
+            for (byte b : header) {
+                crc = updateCrc(crc, b);
+            }
+            for (long i = 0; i < dataSize; i++) {
+                crc = updateCrc(crc, (byte) 0);
+            }
+            if ((crc ^ dataCrc) != fileCrc) {
+                throw new RuntimeException("Encoded FIT data failed verification: file CRC mismatch");
+            }
+        }
+
+        // CRC-16/ARC, one bit at a time
+        private static int updateCrc(final int crc, final byte b) {
+            int value = crc ^ (b & 0xFF);
+            for (int bit = 0; bit < 8; bit++) {
+                if ((value & 1) != 0) {
+                    value = (value >>> 1) ^ CRC_POLYNOMIAL;
+                } else {
+                    value >>>= 1;
+                }
+            }
+            return value;
+        }
+    }
+
+    // Buffers the encoded messages and hands them to the channel a chunk at a time, keeping track of the CRC (of the
+    // data only) along the way
+    private final class ChunkOutputStream extends OutputStream {
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int position;
+        private long dataSize;
+        private int dataCrc;
+
+        @Override
+        public void write(final int b) throws IOException {
+            chunk[position++] = (byte) b;
+            if (position == chunk.length) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int written = 0;
+            while (written < len) {
+                int count = Math.min(len - written, chunk.length - position);
+                System.arraycopy(b, off + written, chunk, position, count);
+                position += count;
+                written += count;
+                if (position == chunk.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (position == 0) {
+                return;
+            }
+            for (int i = 0; i < position; i++) {
+                dataCrc = CRC.get16(dataCrc, chunk[i]);
+            }
+            if (verifier != null) {
+                verifier.update(chunk, position);
+            }
+            writeFully(ByteBuffer.wrap(chunk, 0, position));
+            dataSize += position;
+            position = 0;
+        }
+    }
+
+    public void write(final Mesg mesg) {
+        checkOpen();
+        int localNum = mesg.getLocalNum();
+        if (lastMesgDefinition[localNum] == null || !lastMesgDefinition[localNum].supports(mesg)) {
+            write(new MesgDefinition(mesg));
+        }
+        mesg.write(out, lastMesgDefinition[localNum]);
+        numRecordsWritten++;
+    }
+
+    public void write(final MesgDefinition mesgDefinition) {
+        checkOpen();
+        mesgDefinition.write(out);
+        lastMesgDefinition[mesgDefinition.getLocalNum()] = mesgDefinition;
+        numRecordsWritten++;
+    }
+
+    // Writes out the remaining data, the file CRC and the final header. Returns the size of the FIT file, the channel
+    // itself is left open.
+    public long close() throws IOException {
+        checkOpen();
+        closed = true;
+        out.flush();
+
+        if (out.dataSize > Fit.UINT32_INVALID) {
+            throw new RuntimeException("FIT file data size " + out.dataSize + " exceeds the maximum FIT file size");
+        }
+        byte[] header = getHeader(out.dataSize);
+        int crc = combineCrc(getCrc(header), out.dataCrc, out.dataSize);
+        if (verifier != null) {
+            verifier.verify(numRecordsWritten, header, crc);
+        }
+        writeFully(ByteBuffer.wrap(new byte[] { (byte) crc, (byte) (crc >> 8) }));
+        long fileSize = channel.position();
+
+        channel.position(0);
+        writeFully(ByteBuffer.wrap(header));
+        channel.position(fileSize);
+
+        LOGGER.log(Level.DEBUG, "Encoded " + out.dataSize + " bytes of FIT data (" + fileSize + " bytes in total)");
+        return fileSize;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new RuntimeException("FIT encoder has already been closed");
+        }
+    }
+
+    private byte[] getHeader(final long dataSize) {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = (byte) HEADER_SIZE;
+        header[1] = protocolVersion.getVersion();
+        header[2] = (byte) Fit.PROFILE_VERSION;
+        header[3] = (byte) (Fit.PROFILE_VERSION >> 8);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) (dataSize >> (8 * i));
+        }
+        header[8] = '.';
+        header[9] = 'F';
+        header[10] = 'I';
+        header[11] = 'T';
+        int headerCrc = 0;
+        for (int i = 0; i < 12; i++) {
+            headerCrc = CRC.get16(headerCrc, header[i]);
+        }
+        header[12] = (byte) headerCrc;
+        header[13] = (byte) (headerCrc >> 8);
+        return header;
+    }
+
+    private static int getCrc(final byte[] bytes) {
+        int crc = 0;
+        for (byte b : bytes) {
+            crc = CRC.get16(crc, b);
+        }
+        return crc;
+    }
+
+    // The FIT CRC (CRC-16/ARC) starts at 0 and is linear, so the CRC of A followed by B is the CRC of A carried through
+    // as many zero bytes as B has, combined with the CRC of B on its own. That way the header doesn't need to be known
+    // until the very end, and the data never has to be read back. Carrying the CRC through the zero bytes is done
+    // with repeated squaring of the single zero bit operator (as in zlib's crc32_combine), in O(log n) steps.
+    static int combineCrc(final int crcA, final int crcB, final long lengthB) {
+        if (lengthB <= 0) {
+            return crcA ^ crcB;
+        }
+
+        int[] odd = new int[CRC_BITS];
+        int[] even = new int[CRC_BITS];
+        odd[0] = CRC_POLYNOMIAL;
+        int row = 1;
+        for (int n = 1; n < CRC_BITS; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        squareMatrix(even, odd);
+        squareMatrix(odd, even);
+
+        int crc = crcA;
+        long length = lengthB;
+        while (length != 0) {
+            // The first squaring here gives the operator for a single zero byte
+            squareMatrix(even, odd);
+            if ((length & 1) != 0) {
+                crc = multiplyMatrix(even, crc);
+            }
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+            squareMatrix(odd, even);
+            if ((length & 1) != 0) {
+                crc = multiplyMatrix(odd, crc);
+            }
+            length >>= 1;
+        }
+        return crc ^ crcB;
+    }
+
+    private static int multiplyMatrix(final int[] matrix, final int vector) {
+        int sum = 0;
+        int vec = vector;
+        for (int i = 0; vec != 0; i++) {
+            if ((vec & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vec >>>= 1;
+        }
+        return sum;
+    }
+
+    private static void squareMatrix(final int[] square, final int[] matrix) {
+        for (int n = 0; n < CRC_BITS; n++) {
+            square[n] = multiplyMatrix(matrix, matrix[n]);
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
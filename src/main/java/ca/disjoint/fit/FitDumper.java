@@ -21,15 +21,26 @@ package ca.disjoint.fit;
 import picocli.CommandLine;
 import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Spec;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.garmin.fit.Decode;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -37,14 +48,34 @@ import org.apache.logging.log4j.Level;
 
 import org.jline.terminal.Terminal;
 
-@Command(name = "dump", mixinStandardHelpOptions = true, description = "Dump raw fit data directly to the log file.", usageHelpAutoWidth = true)
+@Command(name = "dump", mixinStandardHelpOptions = true, description = "Dump raw fit data to the log file, or stream it out as NDJSON or CSV.", usageHelpAutoWidth = true)
 public class FitDumper implements Callable<Integer> {
     @Mixin
     private ReusableOptions reusableOptionsMixin;
 
-    @Parameters(arity = "1", paramLabel = "FILE", description = "FIT file to process.")
+    @Parameters(arity = "1", paramLabel = "FILE", description = "FIT file to process. Directories and zip archives are streamed file by file with the ndjson & csv formats.")
     private File fitFile;
 
+    @Option(names = { "-f",
+            "--format" }, paramLabel = "FORMAT", description = "Output format: ${COMPLETION-CANDIDATES}. (default: ${DEFAULT-VALUE})")
+    private DumpFormat format = DumpFormat.LOG;
+
+    @Option(names = { "-o",
+            "--output" }, paramLabel = "FILE", description = "File to write the ndjson or csv output to. (default: stdout)")
+    private File outputFile = null;
+
+    @Option(names = "--type", split = ",", paramLabel = "MESSAGE", description = "Only dump these messages, by name (e.g. record) or number.")
+    private List<String> types = Collections.emptyList();
+
+    @Option(names = "--field", split = ",", paramLabel = "FIELD", description = "Only dump these fields, by name (e.g. heart_rate).")
+    private List<String> fields = Collections.emptyList();
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    public enum DumpFormat {
+        LOG, NDJSON, CSV
+    }
+
     @Spec
     private CommandSpec spec;
 
@@ -67,14 +98,19 @@ public class FitDumper implements Callable<Integer> {
     public Integer call() {
         Utils.setLogLevel(reusableOptionsMixin);
 
-        if (reusableOptionsMixin.getVerbosity().length <= 0) {
+        if (format == DumpFormat.LOG && reusableOptionsMixin.getVerbosity().length <= 0) {
             throw new ParameterException(spec.commandLine(),
                     "Verbose mode needs to be enabled in order for this command to work.");
         }
 
         try {
+            if (format != DumpFormat.LOG) {
+                return streamMessages();
+            }
+
             garminActivity = new GarminGenericActivity();
             GarminActivityLoader gal = new GarminActivityLoader(fitFile, garminActivity);
+            FitMessageDumper.logSummary();
             terminal.writer().append(garminActivity.getActivitySummary());
             terminal.writer().append(System.lineSeparator());
             terminal.flush();
@@ -95,8 +131,53 @@ public class FitDumper implements Callable<Integer> {
         return 0;
     }
 
+    // Decodes every FIT file straight into the output, one message at a time, without building up an activity. A
+    // file that fails to decode is reported and skipped.
+    private int streamMessages() throws IOException {
+        FitMessageStreamer.Format streamFormat = FitMessageStreamer.Format.NDJSON;
+        if (format == DumpFormat.CSV) {
+            streamFormat = FitMessageStreamer.Format.CSV;
+        }
+
+        OutputStream os = output;
+        if (outputFile != null) {
+            LOGGER.log(Level.DEBUG, "Writing " + format + " output to " + outputFile.getPath());
+            os = new FileOutputStream(outputFile);
+        }
+
+        int numFailed = 0;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+        FitMessageStreamer streamer = new FitMessageStreamer(writer, streamFormat, types, fields);
+        try {
+            streamer.writeHeader();
+            for (FitSource source : FitSource.collect(Collections.singletonList(fitFile))) {
+                LOGGER.log(Level.DEBUG, "Streaming messages from " + source.getName());
+                streamer.setSource(source.getName());
+                try (InputStream in = source.open()) {
+                    new Decode().read(in, streamer);
+                } catch (RuntimeException ex) {
+                    System.err.println(String.format("Error: %s: %s", source.getName(), ex.getMessage()));
+                    LOGGER.log(Level.ERROR, "Unable to stream messages from " + source.getName(), ex);
+                    numFailed++;
+                }
+            }
+        } finally {
+            writer.flush();
+            if (outputFile != null) {
+                writer.close();
+            }
+        }
+
+        LOGGER.log(Level.DEBUG, String.format("Wrote %d of %d decoded messages", streamer.getNumMesgsWritten(),
+                streamer.getNumMesgsDecoded()));
+        if (numFailed > 0) {
+            return 1;
+        }
+        return 0;
+    }
+
     @SuppressWarnings("checkstyle:DesignForExtension")
     public int start() {
-        return new CommandLine(this).execute(cliArgs);
+        return new CommandLine(this).setCaseInsensitiveEnumValuesAllowed(true).execute(cliArgs);
     }
 }
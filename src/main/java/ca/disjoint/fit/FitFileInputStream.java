@@ -0,0 +1,123 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.NoSuchFileException;
+
+// Reads a FIT file through a FileChannel, either directly from a memory mapping (large files) or from a heap buffer
+// filled with a single bulk read (small files, where the cost of setting up a mapping outweighs the benefit)
+public final class FitFileInputStream extends InputStream {
+    private static final Logger LOGGER = LogManager.getLogger(FitFileInputStream.class);
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public static final long MAPPED_SIZE_THRESHOLD = 1024L * 1024L;
+
+    private ByteBuffer buffer;
+    private final boolean mapped;
+
+    public FitFileInputStream(final File file) throws IOException {
+        this(file, MAPPED_SIZE_THRESHOLD);
+    }
+
+    public FitFileInputStream(final File file, final long mappedSizeThreshold) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + file.getName() + " is too large to be a FIT file");
+            }
+
+            if (size >= mappedSizeThreshold) {
+                LOGGER.log(Level.DEBUG, "Memory-mapping " + size + " byte file " + file.getName());
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mapped = true;
+            } else {
+                LOGGER.log(Level.DEBUG, "Reading " + size + " byte file " + file.getName() + " into a heap buffer");
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException("Unexpected end of file while reading " + file.getName());
+                    }
+                }
+                buffer.flip();
+                mapped = false;
+            }
+        } catch (NoSuchFileException ex) {
+            throw new FileNotFoundException(file.getPath());
+        }
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    @Override
+    @SuppressWarnings("checkstyle:MagicNumber")
+    public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public long skip(final long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        int count = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        // Drop the reference so that the mapping can be released as soon as possible
+        buffer = ByteBuffer.allocate(0);
+    }
+}
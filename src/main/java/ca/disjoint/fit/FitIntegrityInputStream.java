@@ -0,0 +1,208 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import com.garmin.fit.CRC;
+
+// Verifies the FIT header and file CRC of everything read through it, so that the integrity of a FIT file can be
+// checked in the same pass that decodes it
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class FitIntegrityInputStream extends FilterInputStream {
+    private static final Logger LOGGER = LogManager.getLogger(FitIntegrityInputStream.class);
+    private static final int MIN_HEADER_SIZE = 12;
+    private static final int HEADER_CRC_SIZE = 14;
+    private static final int FILE_CRC_SIZE = 2;
+    private static final byte[] FIT_SIGNATURE = { '.', 'F', 'I', 'T' };
+
+    private enum State {
+        HEADER, DATA, FILE_CRC
+    }
+
+    private State state = State.HEADER;
+    private byte[] header = new byte[HEADER_CRC_SIZE];
+    private int headerSize;
+    private int headerBytesRead;
+    private long dataBytesLeft;
+    private int crcBytesRead;
+    private int storedCrc;
+    private int crc;
+    private int filesVerified;
+    private boolean valid = true;
+
+    public FitIntegrityInputStream(final InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int data = super.read();
+        if (data != -1) {
+            update((byte) data);
+        }
+        return data;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        int count = super.read(b, off, len);
+        for (int i = 0; i < count; i++) {
+            update(b[off + i]);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        // Every byte has to pass through the CRC, so skipped bytes are read (and checked) all the same
+        long skipped = 0;
+        while (skipped < n && read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    // Consume (and verify) any bytes the decoder did not read, e.g. chained FIT files or trailing garbage
+    public void drain() throws IOException {
+        byte[] buf = new byte[8192];
+        while (read(buf, 0, buf.length) != -1) {
+            continue;
+        }
+    }
+
+    // Only true once the final file CRC has been consumed, so that truncated files are reported as invalid
+    public boolean isIntegrityValid() {
+        return valid && filesVerified > 0 && state == State.HEADER && headerBytesRead == 0;
+    }
+
+    // Whether the stream ended before the end of a FIT file (or before any FIT file at all), as opposed to a FIT file
+    // which was read completely but failed one of the checks
+    public boolean isTruncated() {
+        return filesVerified == 0 || state != State.HEADER || headerBytesRead != 0;
+    }
+
+    private void update(final byte data) {
+        switch (state) {
+        case HEADER:
+            updateHeader(data);
+            break;
+        case DATA:
+            crc = CRC.get16(crc, data);
+            dataBytesLeft--;
+            if (dataBytesLeft <= 0) {
+                state = State.FILE_CRC;
+            }
+            break;
+        case FILE_CRC:
+            storedCrc |= (data & 0xFF) << (8 * crcBytesRead);
+            crcBytesRead++;
+            if (crcBytesRead == FILE_CRC_SIZE) {
+                finishFile();
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void updateHeader(final byte data) {
+        if (headerBytesRead == 0) {
+            headerSize = data & 0xFF;
+            crc = 0;
+            if (headerSize < MIN_HEADER_SIZE) {
+                LOGGER.log(Level.ERROR, "Invalid FIT header size: " + headerSize);
+                valid = false;
+            }
+        }
+
+        if (headerBytesRead < header.length) {
+            header[headerBytesRead] = data;
+        }
+        crc = CRC.get16(crc, data);
+        headerBytesRead++;
+
+        if (headerBytesRead < Math.max(headerSize, MIN_HEADER_SIZE)) {
+            return;
+        }
+
+        verifyHeader();
+        dataBytesLeft = (header[4] & 0xFFL) | ((header[5] & 0xFFL) << 8) | ((header[6] & 0xFFL) << 16)
+                | ((header[7] & 0xFFL) << 24);
+        headerBytesRead = 0;
+        crcBytesRead = 0;
+        storedCrc = 0;
+        if (dataBytesLeft > 0) {
+            state = State.DATA;
+        } else {
+            state = State.FILE_CRC;
+        }
+    }
+
+    private void verifyHeader() {
+        for (int i = 0; i < FIT_SIGNATURE.length; i++) {
+            if (header[8 + i] != FIT_SIGNATURE[i]) {
+                LOGGER.log(Level.ERROR, "FIT header is missing the \".FIT\" signature");
+                valid = false;
+                return;
+            }
+        }
+
+        if (headerSize < HEADER_CRC_SIZE) {
+            return;
+        }
+
+        // A zero header CRC means the header CRC was not computed, which the FIT protocol allows
+        int headerCrc = (header[12] & 0xFF) | ((header[13] & 0xFF) << 8);
+        if (headerCrc == 0) {
+            return;
+        }
+
+        int computedCrc = 0;
+        for (int i = 0; i < MIN_HEADER_SIZE; i++) {
+            computedCrc = CRC.get16(computedCrc, header[i]);
+        }
+        if (computedCrc != headerCrc) {
+            LOGGER.log(Level.ERROR, "FIT header CRC mismatch");
+            valid = false;
+        }
+    }
+
+    private void finishFile() {
+        if (storedCrc != crc) {
+            LOGGER.log(Level.ERROR, "FIT file CRC mismatch");
+            valid = false;
+        } else {
+            LOGGER.log(Level.DEBUG, "FIT file CRC verified");
+        }
+        filesVerified++;
+        state = State.HEADER;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.garmin.fit.Mesg;
+import com.garmin.fit.Field;
+import com.garmin.fit.DateTime;
+
+// Debug logs the contents of FIT messages. The getters for each message type and field are resolved once and cached,
+// and nothing at all happens unless DEBUG logging is enabled.
+public final class FitMessageDumper {
+    private static final Logger LOGGER = LogManager.getLogger(FitMessageDumper.class);
+    // Shared by all threads, putIfAbsent() is atomic as this is a ConcurrentHashMap
+    private static final Map<Integer, FitMessageDumper> DUMPERS = new ConcurrentHashMap<Integer, FitMessageDumper>();
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Mesg.class);
+    private static final AtomicLong NUM_FIELDS_DUMPED = new AtomicLong();
+
+    private final String className;
+    private final Class<?> classType;
+    private final ConcurrentMap<Integer, Getter> getters = new ConcurrentHashMap<Integer, Getter>();
+    private final AtomicLong numMesgsDumped = new AtomicLong();
+
+    // A getter without a method handle marks a field that could not be resolved, so that it is only looked up once
+    private static final class Getter {
+        private final String name;
+        private final MethodHandle handle;
+
+        Getter(final String name, final MethodHandle handle) {
+            this.name = name;
+            this.handle = handle;
+        }
+    }
+
+    private FitMessageDumper(final String mesgName) {
+        LOGGER.log(Level.TRACE, "Raw message name:" + mesgName);
+        String name = Utils.titleCaseString(mesgName) + "Mesg";
+        Class<?> type = null;
+        try {
+            LOGGER.log(Level.TRACE, "Converted string into Garmin class name: " + name);
+            type = Class.forName("com.garmin.fit." + name);
+        } catch (ClassNotFoundException ex) {
+            LOGGER.log(Level.TRACE, "Could not determine class type for message: " + name);
+        }
+        this.className = name;
+        this.classType = type;
+    }
+
+    public static void dump(final Mesg mesg) {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+
+        FitMessageDumper dumper = DUMPERS.get(mesg.getNum());
+        if (dumper == null) {
+            FitMessageDumper newDumper = new FitMessageDumper(mesg.getName());
+            dumper = DUMPERS.putIfAbsent(mesg.getNum(), newDumper);
+            if (dumper == null) {
+                dumper = newDumper;
+            }
+        }
+        dumper.dumpMesg(mesg);
+    }
+
+    // Number of messages dumped so far, keyed by their Garmin class name
+    public static Map<String, Long> getMesgCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (FitMessageDumper dumper : DUMPERS.values()) {
+            if (dumper.numMesgsDumped.get() > 0) {
+                counts.put(dumper.className, dumper.numMesgsDumped.get());
+            }
+        }
+        return counts;
+    }
+
+    public static long getNumMesgsDumped() {
+        long total = 0;
+        for (FitMessageDumper dumper : DUMPERS.values()) {
+            total += dumper.numMesgsDumped.get();
+        }
+        return total;
+    }
+
+    public static long getNumFieldsDumped() {
+        return NUM_FIELDS_DUMPED.get();
+    }
+
+    public static void logSummary() {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        LOGGER.log(Level.DEBUG,
+                String.format("Dumped %d messages (%d fields)", getNumMesgsDumped(), getNumFieldsDumped()));
+        for (Map.Entry<String, Long> entry : getMesgCounts().entrySet()) {
+            LOGGER.log(Level.DEBUG, String.format("    %s: %d", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private void dumpMesg(final Mesg mesg) {
+        numMesgsDumped.incrementAndGet();
+        if (classType == null) {
+            return;
+        }
+        LOGGER.log(Level.DEBUG, "Message: " + className);
+
+        // Messages that were never converted to their Garmin subclass have no getters to invoke
+        if (!classType.isInstance(mesg)) {
+            LOGGER.log(Level.TRACE, "Message is not an instance of " + className + ", skipping its fields");
+            return;
+        }
+
+        for (Field f : mesg.getFields()) {
+            Getter getter = getGetter(f);
+            if (getter.handle == null) {
+                continue;
+            }
+
+            Object output;
+            try {
+                output = (Object) getter.handle.invokeExact(mesg);
+            } catch (Throwable ex) {
+                LOGGER.log(Level.TRACE, "Error: " + ex.getMessage());
+                continue;
+            }
+            if (output == null) {
+                continue;
+            }
+            NUM_FIELDS_DUMPED.incrementAndGet();
+
+            // Convert the array output into something printable
+            if (output instanceof Object[]) {
+                output = Arrays.toString((Object[]) output);
+            }
+
+            LOGGER.log(Level.DEBUG, String.format("    %s: %s", getter.name, output));
+
+            // Special case for getters that return a Garmin DateTime object
+            if (output instanceof DateTime) {
+                DateTime d = (DateTime) output;
+                LOGGER.log(Level.DEBUG, String.format("       - raw timestamp: %s", d.getTimestamp()));
+            }
+        }
+    }
+
+    private Getter getGetter(final Field f) {
+        Getter getter = getters.get(f.getNum());
+        if (getter != null) {
+            return getter;
+        }
+
+        // Attempt to determine the getter using the raw field name
+        String fn = "get" + Utils.titleCaseString(f.getName());
+        MethodHandle handle = null;
+        try {
+            Method method = classType.getDeclaredMethod(fn);
+            handle = MethodHandles.publicLookup().unreflect(method).asType(GETTER_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            LOGGER.log(Level.TRACE,
+                    "Getter method name " + fn + " for field " + f.getName() + " appears to be incorrect, moving on.");
+        }
+
+        getter = new Getter(fn, handle);
+        getters.putIfAbsent(f.getNum(), getter);
+        return getter;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+
+import com.garmin.fit.FitRuntimeException;
+import com.garmin.fit.MesgNum;
+
+// A compact index of the data messages in a FIT file. A single pass over the raw bytes records the offset and the
+// definition of every message without decoding any of them, so that a subset of the message types can later be cut
+// out into a small FIT file of its own and handed to the regular decoder.
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class FitMessageIndex {
+    private static final Logger LOGGER = LogManager.getLogger(FitMessageIndex.class);
+    private static final int MIN_HEADER_SIZE = 12;
+    private static final int CRC_SIZE = 2;
+    private static final int LOCAL_MESG_TYPES = 16;
+    private static final int COMPRESSED_HEADER_MASK = 0x80;
+    private static final int DEFINITION_MASK = 0x40;
+    private static final int DEV_DATA_MASK = 0x20;
+    private static final int LOCAL_NUM_MASK = 0x0F;
+    private static final int FIELD_DEFINITION_SIZE = 3;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final byte[] fitFile;
+    private final List<Definition> definitions;
+    private int[] mesgOffsets;
+    private int[] mesgDefinitions;
+    private int numMesgs;
+    private boolean compressedTimestamps;
+
+    private static final class Definition {
+        private final int offset;
+        private final int length;
+        private final int localNum;
+        private final int globalNum;
+        private final int size;
+
+        Definition(final int offset, final int length, final int localNum, final int globalNum, final int size) {
+            this.offset = offset;
+            this.length = length;
+            this.localNum = localNum;
+            this.globalNum = globalNum;
+            this.size = size;
+        }
+    }
+
+    private FitMessageIndex(final byte[] fitFile) {
+        this.fitFile = fitFile;
+        definitions = new ArrayList<Definition>();
+        mesgOffsets = new int[INITIAL_CAPACITY];
+        mesgDefinitions = new int[INITIAL_CAPACITY];
+    }
+
+    // The file is expected to have passed the integrity check already, only its structure is validated here
+    public static FitMessageIndex scan(final byte[] fitFile) {
+        FitMessageIndex index = new FitMessageIndex(fitFile);
+
+        // Chained FIT files are indexed one after the other
+        int pos = 0;
+        while (pos < fitFile.length) {
+            pos = index.scanFile(pos);
+        }
+
+        LOGGER.log(Level.DEBUG, "Indexed " + index.numMesgs + " messages and " + index.definitions.size()
+                + " definitions in " + fitFile.length + " bytes");
+        return index;
+    }
+
+    private int scanFile(final int start) {
+        int headerSize = fitFile[start] & 0xFF;
+        if (headerSize < MIN_HEADER_SIZE || start + headerSize > fitFile.length) {
+            throw new FitRuntimeException("FIT decode error: Invalid header size " + headerSize);
+        }
+        long dataEnd = start + headerSize + FitProjectionFilter.readUnsignedInt(fitFile, start + 4);
+        if (dataEnd + CRC_SIZE > fitFile.length) {
+            throw new FitRuntimeException("FIT decode error: Unexpected end of file");
+        }
+
+        // Local message numbers do not carry over from one chained file to the next
+        int[] localDefinitions = new int[LOCAL_MESG_TYPES];
+        Arrays.fill(localDefinitions, -1);
+
+        int pos = start + headerSize;
+        while (pos < dataEnd) {
+            int recordHeader = fitFile[pos] & 0xFF;
+            if ((recordHeader & COMPRESSED_HEADER_MASK) != 0) {
+                compressedTimestamps = true;
+                pos += addMesg(pos, localDefinitions[(recordHeader >> 5) & 0x03]);
+            } else if ((recordHeader & DEFINITION_MASK) != 0) {
+                pos += addDefinition(pos, recordHeader, localDefinitions);
+            } else {
+                pos += addMesg(pos, localDefinitions[recordHeader & LOCAL_NUM_MASK]);
+            }
+        }
+        if (pos != dataEnd) {
+            throw new FitRuntimeException("FIT decode error: Unexpected end of file");
+        }
+
+        return (int) dataEnd + CRC_SIZE;
+    }
+
+    private int addDefinition(final int offset, final int recordHeader, final int[] localDefinitions) {
+        int architecture = readByte(offset + 2);
+        int globalNum;
+        if (architecture == 0) {
+            globalNum = readByte(offset + 3) | (readByte(offset + 4) << 8);
+        } else {
+            globalNum = (readByte(offset + 3) << 8) | readByte(offset + 4);
+        }
+
+        int numFields = readByte(offset + 5);
+        int pos = offset + 6;
+        int size = 0;
+        for (int i = 0; i < numFields; i++) {
+            size += readByte(pos + 1);
+            pos += FIELD_DEFINITION_SIZE;
+        }
+        if ((recordHeader & DEV_DATA_MASK) != 0) {
+            int numDevFields = readByte(pos);
+            pos++;
+            for (int i = 0; i < numDevFields; i++) {
+                size += readByte(pos + 1);
+                pos += FIELD_DEFINITION_SIZE;
+            }
+        }
+
+        int localNum = recordHeader & LOCAL_NUM_MASK;
+        localDefinitions[localNum] = definitions.size();
+        definitions.add(new Definition(offset, pos - offset, localNum, globalNum, size));
+        return pos - offset;
+    }
+
+    private int addMesg(final int offset, final int definitionId) {
+        if (definitionId < 0) {
+            throw new FitRuntimeException("FIT decode error: Missing definition for message at offset " + offset);
+        }
+
+        if (numMesgs == mesgOffsets.length) {
+            mesgOffsets = Arrays.copyOf(mesgOffsets, numMesgs * 2);
+            mesgDefinitions = Arrays.copyOf(mesgDefinitions, numMesgs * 2);
+        }
+        mesgOffsets[numMesgs] = offset;
+        mesgDefinitions[numMesgs] = definitionId;
+        numMesgs++;
+        return 1 + definitions.get(definitionId).size;
+    }
+
+    private int readByte(final int offset) {
+        if (offset >= fitFile.length) {
+            throw new FitRuntimeException("FIT decode error: Unexpected end of file");
+        }
+        return fitFile[offset] & 0xFF;
+    }
+
+    // Compressed timestamps are resolved against the previous message, so they cannot be decoded out of context
+    public boolean hasCompressedTimestamps() {
+        return compressedTimestamps;
+    }
+
+    public int getNumMesgs() {
+        return numMesgs;
+    }
+
+    public int getNumMesgs(final int mesgNum) {
+        int count = 0;
+        for (int i = 0; i < numMesgs; i++) {
+            if (definitions.get(mesgDefinitions[i]).globalNum == mesgNum) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Builds a FIT file containing only the given message types, in their original order. The developer data
+    // messages always come along, as the developer fields of any message depend on them.
+    public byte[] extract(final int... mesgNums) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[FitProjectionFilter.HEADER_SIZE], 0, FitProjectionFilter.HEADER_SIZE);
+
+        int[] emittedDefinitions = new int[LOCAL_MESG_TYPES];
+        Arrays.fill(emittedDefinitions, -1);
+        for (int i = 0; i < numMesgs; i++) {
+            int definitionId = mesgDefinitions[i];
+            Definition def = definitions.get(definitionId);
+            if (!isExtracted(def.globalNum, mesgNums)) {
+                continue;
+            }
+
+            if (emittedDefinitions[def.localNum] != definitionId) {
+                out.write(fitFile, def.offset, def.length);
+                emittedDefinitions[def.localNum] = definitionId;
+            }
+            out.write(fitFile, mesgOffsets[i], 1 + def.size);
+        }
+
+        return FitProjectionFilter.completeFitFile(fitFile, out.toByteArray());
+    }
+
+    private static boolean isExtracted(final int globalNum, final int[] mesgNums) {
+        if (globalNum == MesgNum.DEVELOPER_DATA_ID || globalNum == MesgNum.FIELD_DESCRIPTION) {
+            return true;
+        }
+        for (int mesgNum : mesgNums) {
+            if (mesgNum == globalNum) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
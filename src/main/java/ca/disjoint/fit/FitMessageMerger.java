@@ -0,0 +1,229 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.garmin.fit.Fit;
+import com.garmin.fit.Mesg;
+
+// Merges runs of FIT messages by timestamp, pulling the next message from whichever run has the earliest one. Runs are
+// merged in the order they're added and equal timestamps are taken from the earlier run first, so the result is the
+// same as a stable sort of all the runs concatenated together. Runs that turn out not to be in timestamp order are
+// sorted up front.
+public final class FitMessageMerger implements Iterator<Mesg> {
+    private static final Logger LOGGER = LogManager.getLogger(FitMessageMerger.class);
+
+    private final PriorityQueue<Run> heap = new PriorityQueue<Run>(new Comparator<Run>() {
+        public int compare(final Run r1, final Run r2) {
+            int cmp = Long.compare(r1.timestamp, r2.timestamp);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Integer.compare(r1.order, r2.order);
+        }
+    });
+    private int numRuns;
+
+    private abstract static class Run {
+        private long timestamp;
+        private int order;
+
+        // Moves on to the next message of the run, returning false once there are none left
+        abstract boolean advance();
+
+        abstract long currentTimestamp();
+
+        abstract Mesg current();
+
+        abstract void reset();
+    }
+
+    private static final class ListRun extends Run {
+        private final List<? extends Mesg> mesgs;
+        private int index = -1;
+
+        ListRun(final List<? extends Mesg> mesgs) {
+            this.mesgs = mesgs;
+        }
+
+        boolean advance() {
+            index++;
+            return index < mesgs.size();
+        }
+
+        long currentTimestamp() {
+            return getTimestamp(mesgs.get(index));
+        }
+
+        Mesg current() {
+            return mesgs.get(index);
+        }
+
+        void reset() {
+            index = -1;
+        }
+    }
+
+    // Record samples are only turned into a RecordMesg once they're actually taken off the run
+    private static final class RecordColumnsRun extends Run {
+        private final RecordColumns records;
+        private int index = -1;
+
+        RecordColumnsRun(final RecordColumns records) {
+            this.records = records;
+        }
+
+        boolean advance() {
+            index++;
+            return index < records.size();
+        }
+
+        long currentTimestamp() {
+            return records.getTimestamp(index);
+        }
+
+        Mesg current() {
+            return records.toRecordMesg(index);
+        }
+
+        void reset() {
+            index = -1;
+        }
+    }
+
+    // Every lap's lengths, followed by the lap itself
+    private static final class LapRun extends Run {
+        private final List<GarminLap> laps;
+        private int lapIndex;
+        private int lengthIndex = -1;
+
+        LapRun(final List<GarminLap> laps) {
+            this.laps = laps;
+        }
+
+        boolean advance() {
+            if (lapIndex >= laps.size()) {
+                return false;
+            }
+            lengthIndex++;
+            if (lengthIndex > laps.get(lapIndex).getLengthMessages().size()) {
+                lapIndex++;
+                lengthIndex = 0;
+            }
+            return lapIndex < laps.size();
+        }
+
+        long currentTimestamp() {
+            return getTimestamp(current());
+        }
+
+        Mesg current() {
+            GarminLap lap = laps.get(lapIndex);
+            if (lengthIndex < lap.getLengthMessages().size()) {
+                return lap.getLengthMessages().get(lengthIndex);
+            }
+            return lap.getLapMessage();
+        }
+
+        void reset() {
+            lapIndex = 0;
+            lengthIndex = -1;
+        }
+    }
+
+    private static long getTimestamp(final Mesg mesg) {
+        Long timestamp = mesg.getFieldLongValue(Fit.FIELD_NUM_TIMESTAMP);
+        if (timestamp == null) {
+            throw new RuntimeException("Unable to write " + mesg.getName() + " message without a timestamp");
+        }
+        return timestamp;
+    }
+
+    public void addMessages(final List<? extends Mesg> mesgs) {
+        addRun(new ListRun(mesgs));
+    }
+
+    public void addRecords(final RecordColumns records) {
+        addRun(new RecordColumnsRun(records));
+    }
+
+    public void addLaps(final List<GarminLap> laps) {
+        addRun(new LapRun(laps));
+    }
+
+    private void addRun(final Run run) {
+        Run sortedRun = run;
+        if (!isSorted(run)) {
+            LOGGER.log(Level.DEBUG, "Run " + numRuns + " is not in timestamp order, sorting it before merging");
+            List<Mesg> mesgs = new ArrayList<Mesg>();
+            while (run.advance()) {
+                mesgs.add(run.current());
+            }
+            GarminTimestampSorter.sort(mesgs);
+            sortedRun = new ListRun(mesgs);
+        }
+
+        sortedRun.order = numRuns++;
+        if (sortedRun.advance()) {
+            sortedRun.timestamp = sortedRun.currentTimestamp();
+            heap.add(sortedRun);
+        }
+    }
+
+    // Walks the run once, leaving it reset to its start
+    private static boolean isSorted(final Run run) {
+        long previous = Long.MIN_VALUE;
+        boolean sorted = true;
+        while (sorted && run.advance()) {
+            long timestamp = run.currentTimestamp();
+            sorted = timestamp >= previous;
+            previous = timestamp;
+        }
+        run.reset();
+        return sorted;
+    }
+
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    public Mesg next() {
+        Run run = heap.poll();
+        if (run == null) {
+            throw new NoSuchElementException();
+        }
+
+        Mesg mesg = run.current();
+        if (run.advance()) {
+            run.timestamp = run.currentTimestamp();
+            heap.add(run);
+        }
+        return mesg;
+    }
+}
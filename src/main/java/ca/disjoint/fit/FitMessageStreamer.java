@@ -0,0 +1,278 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.HashSet;
+
+import com.garmin.fit.Mesg;
+import com.garmin.fit.MesgListener;
+import com.garmin.fit.Field;
+
+// Writes decoded FIT messages straight out as NDJSON (one object per message) or CSV (one row per field), without
+// holding on to any of them. Messages & fields can be restricted by name (or message number).
+public final class FitMessageStreamer implements MesgListener {
+    private static final Logger LOGGER = LogManager.getLogger(FitMessageStreamer.class);
+    private static final String UNKNOWN_NAME = "unknown";
+    private static final String CSV_HEADER = "source,sequence,message,field,value,units";
+    private static final char ARRAY_SEPARATOR = '|';
+
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    private final Writer out;
+    private final Format format;
+    private final Set<String> types = new HashSet<String>();
+    private final Set<String> fields = new HashSet<String>();
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder cell = new StringBuilder();
+    private String source = "";
+    private long sequence;
+    private long numMesgsDecoded;
+    private long numMesgsWritten;
+
+    public FitMessageStreamer(final Writer out, final Format format, final Iterable<String> types,
+            final Iterable<String> fields) {
+        this.out = out;
+        this.format = format;
+        if (types != null) {
+            for (String type : types) {
+                this.types.add(type.toLowerCase());
+            }
+        }
+        if (fields != null) {
+            for (String field : fields) {
+                this.fields.add(field.toLowerCase());
+            }
+        }
+    }
+
+    public void writeHeader() throws IOException {
+        if (format == Format.CSV) {
+            out.write(CSV_HEADER);
+            out.write(System.lineSeparator());
+        }
+    }
+
+    // Messages are numbered per source, so that CSV rows can be grouped back into their messages
+    public void setSource(final String source) {
+        this.source = source;
+        this.sequence = 0;
+    }
+
+    public long getNumMesgsDecoded() {
+        return numMesgsDecoded;
+    }
+
+    public long getNumMesgsWritten() {
+        return numMesgsWritten;
+    }
+
+    public void onMesg(final Mesg mesg) {
+        numMesgsDecoded++;
+        sequence++;
+        String mesgName = getMesgName(mesg);
+        if (!types.isEmpty() && !types.contains(mesgName) && !types.contains(String.valueOf(mesg.getNum()))) {
+            return;
+        }
+
+        line.setLength(0);
+        boolean written;
+        if (format == Format.NDJSON) {
+            written = appendJson(mesg, mesgName);
+        } else {
+            written = appendCsv(mesg, mesgName);
+        }
+        if (!written) {
+            return;
+        }
+
+        try {
+            out.append(line);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        numMesgsWritten++;
+        LOGGER.log(Level.TRACE, "Wrote message " + mesgName + " from " + source);
+    }
+
+    private boolean appendJson(final Mesg mesg, final String mesgName) {
+        line.append("{\"source\":");
+        appendJsonString(source);
+        line.append(",\"sequence\":").append(sequence);
+        line.append(",\"message\":");
+        appendJsonString(mesgName);
+        line.append(",\"fields\":{");
+
+        int numFields = 0;
+        for (Field f : mesg.getFields()) {
+            String fieldName = getFieldName(f);
+            if (!isFieldSelected(fieldName) || f.getNumValues() == 0) {
+                continue;
+            }
+            if (numFields > 0) {
+                line.append(',');
+            }
+            appendJsonString(fieldName);
+            line.append(':');
+            if (f.getNumValues() > 1) {
+                line.append('[');
+                for (int i = 0; i < f.getNumValues(); i++) {
+                    if (i > 0) {
+                        line.append(',');
+                    }
+                    appendJsonValue(f.getValue(i));
+                }
+                line.append(']');
+            } else {
+                appendJsonValue(f.getValue(0));
+            }
+            numFields++;
+        }
+        line.append('}');
+
+        if (numFields == 0 && !fields.isEmpty()) {
+            return false;
+        }
+        line.append('}').append(System.lineSeparator());
+        return true;
+    }
+
+    private boolean appendCsv(final Mesg mesg, final String mesgName) {
+        int numFields = 0;
+        for (Field f : mesg.getFields()) {
+            String fieldName = getFieldName(f);
+            if (!isFieldSelected(fieldName) || f.getNumValues() == 0) {
+                continue;
+            }
+            appendCsvString(source);
+            line.append(',').append(sequence).append(',');
+            appendCsvString(mesgName);
+            line.append(',');
+            appendCsvString(fieldName);
+            line.append(',');
+
+            cell.setLength(0);
+            for (int i = 0; i < f.getNumValues(); i++) {
+                if (i > 0) {
+                    cell.append(ARRAY_SEPARATOR);
+                }
+                Object v = f.getValue(i);
+                if (v != null) {
+                    cell.append(v);
+                }
+            }
+            appendCsvString(cell);
+            line.append(',');
+            if (f.getUnits() != null) {
+                appendCsvString(f.getUnits());
+            }
+            line.append(System.lineSeparator());
+            numFields++;
+        }
+        return numFields > 0;
+    }
+
+    private boolean isFieldSelected(final String fieldName) {
+        return fields.isEmpty() || fields.contains(fieldName);
+    }
+
+    // Messages & fields missing from the SDK profile are all called "unknown", so they are told apart by number
+    private static String getMesgName(final Mesg mesg) {
+        String name = mesg.getName();
+        if (name == null || UNKNOWN_NAME.equals(name)) {
+            return UNKNOWN_NAME + "_" + mesg.getNum();
+        }
+        return name;
+    }
+
+    private static String getFieldName(final Field field) {
+        String name = field.getName();
+        if (name == null || UNKNOWN_NAME.equals(name)) {
+            return UNKNOWN_NAME + "_" + field.getNum();
+        }
+        return name;
+    }
+
+    private void appendJsonValue(final Object value) {
+        if (value == null) {
+            line.append("null");
+        } else if (value instanceof Float && !Float.isFinite((Float) value)) {
+            line.append("null");
+        } else if (value instanceof Double && !Double.isFinite((Double) value)) {
+            line.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            line.append(value);
+        } else {
+            appendJsonString(value.toString());
+        }
+    }
+
+    @SuppressWarnings("checkstyle:MagicNumber")
+    private void appendJsonString(final String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else if (c == '\t') {
+                line.append("\\t");
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private void appendCsvString(final CharSequence value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+}
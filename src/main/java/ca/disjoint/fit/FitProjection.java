@@ -0,0 +1,60 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.garmin.fit.Fit;
+
+// Declares which message types (and which of their fields) a caller needs from a FIT file. Everything else is
+// skipped before it reaches the decoder, so no Mesg objects get allocated for it.
+public final class FitProjection {
+    private final Map<Integer, Set<Integer>> mesgFields;
+
+    public FitProjection() {
+        mesgFields = new HashMap<Integer, Set<Integer>>();
+    }
+
+    // Include the given message type, limited to the given field numbers (or all of its fields if none are given)
+    public FitProjection include(final int mesgNum, final int... fieldNums) {
+        Set<Integer> fields = new HashSet<Integer>();
+        for (int fieldNum : fieldNums) {
+            fields.add(fieldNum);
+        }
+        mesgFields.put(mesgNum, fields);
+        return this;
+    }
+
+    public boolean includesMesg(final int mesgNum) {
+        return mesgFields.containsKey(mesgNum);
+    }
+
+    public boolean includesField(final int mesgNum, final int fieldNum) {
+        Set<Integer> fields = mesgFields.get(mesgNum);
+        if (fields == null) {
+            return false;
+        }
+
+        // The timestamp is always kept, as the decoder needs it to resolve any compressed timestamps
+        return fields.isEmpty() || fieldNum == Fit.FIELD_NUM_TIMESTAMP || fields.contains(fieldNum);
+    }
+}
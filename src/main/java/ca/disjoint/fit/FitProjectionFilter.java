@@ -0,0 +1,334 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+
+import com.garmin.fit.CRC;
+import com.garmin.fit.Fit;
+import com.garmin.fit.FitRuntimeException;
+
+// Rewrites a FIT file so that it only contains the message types and fields of a FitProjection. Definition messages
+// are trimmed down to the projected fields, data messages of any other type are skipped over without being decoded,
+// and developer fields are dropped altogether. The result is a (much smaller) valid FIT file with a fresh header and
+// CRC, which can be handed to the regular decoder.
+@SuppressWarnings("checkstyle:MagicNumber")
+public final class FitProjectionFilter {
+    private static final Logger LOGGER = LogManager.getLogger(FitProjectionFilter.class);
+    static final int HEADER_SIZE = 14;
+    private static final int MIN_HEADER_SIZE = 12;
+    private static final int LOCAL_MESG_TYPES = 16;
+    private static final int COMPRESSED_HEADER_MASK = 0x80;
+    private static final int DEFINITION_MASK = 0x40;
+    private static final int DEV_DATA_MASK = 0x20;
+    private static final int LOCAL_NUM_MASK = 0x0F;
+    private static final int FIELD_DEFINITION_SIZE = 3;
+    private static final int INITIAL_DATA_BUFFER_SIZE = 256;
+    // Claimed by streamed projections, whose data size isn't known up front
+    private static final long STREAM_DATA_SIZE = Integer.MAX_VALUE;
+
+    private final FitProjection projection;
+    private final LocalDefinition[] definitions;
+    private boolean timestampSkipped;
+    private boolean projectionExact = true;
+    // Data messages are read into this buffer, which only grows when a definition needs more room
+    private byte[] dataBuffer = new byte[INITIAL_DATA_BUFFER_SIZE];
+
+    private static final class LocalDefinition {
+        private int globalNum;
+        private boolean included;
+        private boolean hasTimestamp;
+        private int size;
+        private int[] fieldSizes;
+        private boolean[] keepField;
+    }
+
+    public FitProjectionFilter(final FitProjection projection) {
+        this.projection = projection;
+        definitions = new LocalDefinition[LOCAL_MESG_TYPES];
+    }
+
+    // Returns the projected FIT file, or null if it cannot be projected exactly. This happens when a compressed
+    // timestamp follows a skipped timestamp, as the decoder would then resolve it against the wrong reference time.
+    public byte[] filter(final InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            byte[] header = readHeader(in);
+            long dataBytesLeft = readUnsignedInt(header, 4);
+
+            out.write(new byte[HEADER_SIZE]);
+            while (dataBytesLeft > 0) {
+                int recordSize = filterRecord(in, out);
+                if (recordSize < 0) {
+                    return null;
+                }
+                dataBytesLeft -= recordSize;
+            }
+
+            // Consume the file CRC, it was already verified as the bytes went by
+            in.readFully(new byte[2]);
+            LOGGER.log(Level.DEBUG, "Projected " + readUnsignedInt(header, 4) + " bytes of FIT data down to "
+                    + (out.size() - HEADER_SIZE) + " bytes");
+            return completeFitFile(header, out.toByteArray());
+        } catch (EOFException ex) {
+            throw new FitRuntimeException("FIT decode error: Unexpected end of file");
+        }
+    }
+
+    // Returns the projected FIT file as a stream, which only reads the input as far as the next projected record, so
+    // that neither file is ever held in memory. As the projected size isn't known up front, the header claims more
+    // data than will ever follow and there is no file CRC: the stream just ends with the (first) FIT file, leaving the
+    // input's own CRC to the caller (e.g. a FitIntegrityInputStream underneath). Where filter() would return null, the
+    // stream ends early instead and isProjectionExact() turns false.
+    public InputStream stream(final InputStream input) {
+        return new ProjectedInputStream(new DataInputStream(input));
+    }
+
+    public boolean isProjectionExact() {
+        return projectionExact;
+    }
+
+    private byte[] readHeader(final DataInputStream in) throws IOException {
+        int headerSize = in.readUnsignedByte();
+        if (headerSize < MIN_HEADER_SIZE) {
+            throw new FitRuntimeException("FIT decode error: Invalid header size " + headerSize);
+        }
+        byte[] header = new byte[Math.max(headerSize, HEADER_SIZE)];
+        header[0] = (byte) headerSize;
+        in.readFully(header, 1, headerSize - 1);
+        return header;
+    }
+
+    // Filters a single record, returning how many bytes of FIT data it took up, or -1 if it cannot be projected
+    private int filterRecord(final DataInputStream in, final ByteArrayOutputStream out) throws IOException {
+        int recordHeader = in.readUnsignedByte();
+
+        if ((recordHeader & COMPRESSED_HEADER_MASK) != 0) {
+            LocalDefinition def = getDefinition((recordHeader >> 5) & 0x03);
+            if (def.included && timestampSkipped) {
+                LOGGER.log(Level.DEBUG, "Compressed timestamp follows a skipped timestamp, cannot project");
+                projectionExact = false;
+                return -1;
+            }
+            return 1 + filterDataMesg(in, out, recordHeader, def, false);
+        } else if ((recordHeader & DEFINITION_MASK) != 0) {
+            return 1 + filterDefinitionMesg(in, out, recordHeader);
+        }
+        return 1 + filterDataMesg(in, out, recordHeader, getDefinition(recordHeader & LOCAL_NUM_MASK), true);
+    }
+
+    private LocalDefinition getDefinition(final int localNum) {
+        LocalDefinition def = definitions[localNum];
+        if (def == null) {
+            throw new FitRuntimeException("FIT decode error: Missing definition for local message number " + localNum);
+        }
+        return def;
+    }
+
+    private int filterDefinitionMesg(final DataInputStream in, final ByteArrayOutputStream out, final int recordHeader)
+            throws IOException {
+        LocalDefinition def = new LocalDefinition();
+        int reserved = in.readUnsignedByte();
+        int architecture = in.readUnsignedByte();
+        byte[] globalNum = new byte[2];
+        in.readFully(globalNum);
+        if (architecture == 0) {
+            def.globalNum = (globalNum[0] & 0xFF) | ((globalNum[1] & 0xFF) << 8);
+        } else {
+            def.globalNum = ((globalNum[0] & 0xFF) << 8) | (globalNum[1] & 0xFF);
+        }
+        def.included = projection.includesMesg(def.globalNum);
+
+        int numFields = in.readUnsignedByte();
+        byte[] fields = new byte[numFields * FIELD_DEFINITION_SIZE];
+        in.readFully(fields);
+        def.fieldSizes = new int[numFields];
+        def.keepField = new boolean[numFields];
+        int numKeptFields = 0;
+        for (int i = 0; i < numFields; i++) {
+            int fieldNum = fields[i * FIELD_DEFINITION_SIZE] & 0xFF;
+            def.fieldSizes[i] = fields[i * FIELD_DEFINITION_SIZE + 1] & 0xFF;
+            def.keepField[i] = projection.includesField(def.globalNum, fieldNum);
+            def.hasTimestamp |= fieldNum == Fit.FIELD_NUM_TIMESTAMP;
+            def.size += def.fieldSizes[i];
+            if (def.keepField[i]) {
+                numKeptFields++;
+            }
+        }
+        int bytesRead = 5 + fields.length;
+
+        // Developer fields are never part of a projection, only their size matters
+        if ((recordHeader & DEV_DATA_MASK) != 0) {
+            int numDevFields = in.readUnsignedByte();
+            byte[] devFields = new byte[numDevFields * FIELD_DEFINITION_SIZE];
+            in.readFully(devFields);
+            for (int i = 0; i < numDevFields; i++) {
+                def.size += devFields[i * FIELD_DEFINITION_SIZE + 1] & 0xFF;
+            }
+            bytesRead += 1 + devFields.length;
+        }
+        definitions[recordHeader & LOCAL_NUM_MASK] = def;
+
+        if (def.included) {
+            out.write(recordHeader & ~DEV_DATA_MASK);
+            out.write(reserved);
+            out.write(architecture);
+            out.write(globalNum);
+            out.write(numKeptFields);
+            for (int i = 0; i < numFields; i++) {
+                if (def.keepField[i]) {
+                    out.write(fields, i * FIELD_DEFINITION_SIZE, FIELD_DEFINITION_SIZE);
+                }
+            }
+        }
+
+        return bytesRead;
+    }
+
+    private int filterDataMesg(final DataInputStream in, final ByteArrayOutputStream out, final int recordHeader,
+            final LocalDefinition def, final boolean isNormalHeader) throws IOException {
+        if (dataBuffer.length < def.size) {
+            dataBuffer = new byte[def.size];
+        }
+        byte[] data = dataBuffer;
+        in.readFully(data, 0, def.size);
+
+        if (!def.included) {
+            if (def.hasTimestamp || !isNormalHeader) {
+                timestampSkipped = true;
+            }
+            return def.size;
+        }
+
+        out.write(recordHeader);
+        int offset = 0;
+        for (int i = 0; i < def.fieldSizes.length; i++) {
+            if (def.keepField[i]) {
+                out.write(data, offset, def.fieldSizes[i]);
+            }
+            offset += def.fieldSizes[i];
+        }
+        if (def.hasTimestamp) {
+            timestampSkipped = false;
+        }
+        return def.size;
+    }
+
+    // Hands out the projected file a record at a time
+    private final class ProjectedInputStream extends InputStream {
+        private final DataInputStream in;
+        private final RecordBuffer record = new RecordBuffer();
+        private int position;
+        private long dataBytesLeft = -1;
+
+        ProjectedInputStream(final DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (position == record.size()) {
+                if (!readRecord()) {
+                    return -1;
+                }
+            }
+            return record.getBuffer()[position++] & 0xFF;
+        }
+
+        private boolean readRecord() throws IOException {
+            record.reset();
+            position = 0;
+            try {
+                if (dataBytesLeft < 0) {
+                    byte[] header = readHeader(in);
+                    dataBytesLeft = readUnsignedInt(header, 4);
+                    byte[] streamHeader = new byte[HEADER_SIZE];
+                    writeHeader(header, streamHeader, STREAM_DATA_SIZE);
+                    record.write(streamHeader);
+                    return true;
+                }
+                if (dataBytesLeft == 0 || !projectionExact) {
+                    return false;
+                }
+
+                // Records that are skipped altogether leave the buffer empty, and the next one is read right away
+                int recordSize = filterRecord(in, record);
+                if (recordSize < 0) {
+                    return false;
+                }
+                dataBytesLeft -= recordSize;
+                return true;
+            } catch (EOFException ex) {
+                throw new FitRuntimeException("FIT decode error: Unexpected end of file");
+            }
+        }
+    }
+
+    // Hands out its buffer, so that a record can be read back without copying it
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    // Fills in the (placeholder) header of a rewritten FIT file and appends its file CRC
+    static byte[] completeFitFile(final byte[] originalHeader, final byte[] projectedFile) {
+        writeHeader(originalHeader, projectedFile, projectedFile.length - HEADER_SIZE);
+
+        int crc = 0;
+        for (byte b : projectedFile) {
+            crc = CRC.get16(crc, b);
+        }
+        byte[] result = new byte[projectedFile.length + 2];
+        System.arraycopy(projectedFile, 0, result, 0, projectedFile.length);
+        result[projectedFile.length] = (byte) crc;
+        result[projectedFile.length + 1] = (byte) (crc >> 8);
+        return result;
+    }
+
+    private static void writeHeader(final byte[] originalHeader, final byte[] file, final long dataSize) {
+        // Protocol & profile version are carried over, the header CRC is left as 0 (i.e. not computed)
+        file[0] = (byte) HEADER_SIZE;
+        file[1] = originalHeader[1];
+        file[2] = originalHeader[2];
+        file[3] = originalHeader[3];
+        for (int i = 0; i < 4; i++) {
+            file[4 + i] = (byte) (dataSize >> (8 * i));
+        }
+        file[8] = '.';
+        file[9] = 'F';
+        file[10] = 'I';
+        file[11] = 'T';
+    }
+
+    static long readUnsignedInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFFL) | ((bytes[offset + 1] & 0xFFL) << 8) | ((bytes[offset + 2] & 0xFFL) << 16)
+                | ((bytes[offset + 3] & 0xFFL) << 24);
+    }
+}
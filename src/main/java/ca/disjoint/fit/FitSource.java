@@ -0,0 +1,197 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// A single FIT file to be processed, either a file on disk (optionally gzipped) or an entry of a zip archive. The
+// entries of an archive share one ZipFile, which is only kept open while some of its entries are still being read.
+public final class FitSource {
+    private static final Logger LOGGER = LogManager.getLogger(FitSource.class);
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final Archive archive;
+    private final String entryName;
+    private final long size;
+
+    private FitSource(final File file, final Archive archive, final String entryName, final long size) {
+        this.file = file;
+        this.archive = archive;
+        this.entryName = entryName;
+        this.size = size;
+    }
+
+    private static final class Archive {
+        private final File file;
+        private int pendingEntries;
+        private ZipFile zipFile;
+
+        Archive(final File file) {
+            this.file = file;
+        }
+
+        synchronized InputStream open(final String entryName) throws IOException {
+            if (zipFile == null) {
+                LOGGER.log(Level.DEBUG, "Opening zip archive " + file.getPath());
+                try {
+                    zipFile = new ZipFile(file);
+                } catch (IOException ex) {
+                    pendingEntries--;
+                    throw ex;
+                }
+            }
+
+            ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                release();
+                throw new FileNotFoundException(file.getPath() + "!" + entryName);
+            }
+            return new FilterInputStream(new BufferedInputStream(zipFile.getInputStream(entry), STREAM_BUFFER_SIZE)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+
+        synchronized void release() throws IOException {
+            pendingEntries--;
+            if (pendingEntries == 0 && zipFile != null) {
+                LOGGER.log(Level.DEBUG, "Closing zip archive " + file.getPath());
+                zipFile.close();
+                zipFile = null;
+            }
+        }
+    }
+
+    // Expands the given files & directories into the FIT files they contain, in a stable (sorted) order. Directories
+    // are walked recursively and every .fit entry of a zip archive becomes a source of its own.
+    public static List<FitSource> collect(final List<File> paths) throws IOException {
+        List<FitSource> sources = new ArrayList<FitSource>();
+        for (File path : paths) {
+            collect(path, sources);
+        }
+        LOGGER.log(Level.DEBUG, "Collected " + sources.size() + " FIT files");
+        return sources;
+    }
+
+    private static void collect(final File path, final List<FitSource> sources) throws IOException {
+        if (path.isDirectory()) {
+            File[] children = path.listFiles();
+            if (children == null) {
+                throw new IOException("Unable to list directory " + path.getPath());
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.isDirectory() || isFitFileName(child.getName()) || isZipFileName(child.getName())) {
+                    collect(child, sources);
+                }
+            }
+        } else if (!path.exists()) {
+            throw new FileNotFoundException(path.getPath());
+        } else if (isZipFileName(path.getName())) {
+            collectZipEntries(path, sources);
+        } else {
+            sources.add(new FitSource(path, null, null, path.length()));
+        }
+    }
+
+    private static void collectZipEntries(final File path, final List<FitSource> sources) throws IOException {
+        Archive archive = new Archive(path);
+        Map<String, Long> entries = new TreeMap<String, Long>();
+        try (ZipFile zipFile = new ZipFile(path)) {
+            Enumeration<? extends ZipEntry> e = zipFile.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".fit")) {
+                    entries.put(entry.getName(), entry.getCompressedSize());
+                }
+            }
+        }
+
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            sources.add(new FitSource(path, archive, entry.getKey(), entry.getValue()));
+        }
+        archive.pendingEntries = entries.size();
+        LOGGER.log(Level.DEBUG, "Zip archive " + path.getPath() + " contains " + entries.size() + " FIT files");
+    }
+
+    private static boolean isFitFileName(final String name) {
+        String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.endsWith(".fit") || lowerCaseName.endsWith(".fit.gz");
+    }
+
+    private static boolean isZipFileName(final String name) {
+        return name.toLowerCase().endsWith(".zip");
+    }
+
+    // Each source is expected to be opened (and closed) exactly once
+    public InputStream open() throws FileNotFoundException, IOException {
+        if (archive == null) {
+            return Utils.openFitInputStream(file);
+        }
+        return archive.open(entryName);
+    }
+
+    public String getName() {
+        if (archive == null) {
+            return file.getPath();
+        }
+        return file.getPath() + "!" + entryName;
+    }
+
+    // The bare FIT file name, without any directories or compression suffix
+    public String getFileName() {
+        String name = file.getName();
+        if (archive != null) {
+            name = new File(entryName).getName();
+        }
+        if (name.toLowerCase().endsWith(".gz")) {
+            name = name.substring(0, name.length() - ".gz".length());
+        }
+        return name;
+    }
+
+    // The number of bytes read from disk, i.e. the compressed size for zip entries
+    public long getSize() {
+        return size;
+    }
+}
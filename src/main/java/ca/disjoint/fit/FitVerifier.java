@@ -0,0 +1,282 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.ParameterException;
+
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+
+import org.jline.terminal.Terminal;
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+
+@Command(name = "verify", mixinStandardHelpOptions = true, description = "Verify the integrity (CRC) of whole directories and zip archives of FIT files, in parallel.", usageHelpAutoWidth = true)
+public class FitVerifier implements Callable<Integer> {
+    @Mixin
+    private ReusableOptions reusableOptionsMixin;
+
+    @Spec
+    private CommandSpec spec;
+
+    @Parameters(arity = "1..*", paramLabel = "PATH", description = "FIT files, directories, or zip archives to verify.")
+    private List<File> paths;
+
+    @Option(names = { "-j",
+            "--jobs" }, paramLabel = "N", description = "Number of files to verify concurrently. (default: ${DEFAULT-VALUE})")
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = { "-q",
+            "--quiet" }, description = "Only report the files which failed verification. (default: ${DEFAULT-VALUE})")
+    private boolean quiet = false;
+
+    private static final Logger LOGGER = LogManager.getLogger(FitVerifier.class);
+    private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+    private static final long RESULT_POLL_MILLIS = 100;
+
+    private Terminal terminal;
+    private final InputStream input;
+    private final OutputStream output;
+    private final String[] cliArgs;
+    private final BlockingQueue<VerifyResult> results;
+
+    public FitVerifier(final InputStream input, final OutputStream output, final Terminal terminal,
+            final String[] args) {
+        this.input = input;
+        this.output = output;
+        this.cliArgs = args;
+        this.terminal = terminal;
+        results = new LinkedBlockingQueue<VerifyResult>();
+    }
+
+    private enum Status {
+        OK, CORRUPT, TRUNCATED, UNREADABLE
+    }
+
+    private static final class VerifyResult {
+        private final FitSource source;
+        private final Status status;
+        private final String message;
+
+        VerifyResult(final FitSource source, final Status status, final String message) {
+            this.source = source;
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    // Splits the list of sources in halves until single files remain, so that idle workers steal the (large) pending
+    // halves of busy ones. Only the files currently being verified are open, i.e. at most one per worker.
+    private final class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<FitSource> sources;
+        private final int from;
+        private final int to;
+
+        VerifyTask(final List<FitSource> sources, final int from, final int to) {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                // A result is queued whatever happens, as call() waits for one per file
+                VerifyResult result = null;
+                try {
+                    result = verify(sources.get(from));
+                } finally {
+                    if (result == null) {
+                        result = new VerifyResult(sources.get(from), Status.UNREADABLE, "verification aborted");
+                    }
+                    results.add(result);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new VerifyTask(sources, from, middle), new VerifyTask(sources, middle, to));
+        }
+    }
+
+    @SuppressWarnings("checkstyle:DesignForExtension")
+    public Integer call() {
+        Utils.setLogLevel(reusableOptionsMixin);
+
+        if (jobs < 1) {
+            throw new ParameterException(spec.commandLine(), "The number of jobs must be at least 1");
+        }
+
+        try {
+            List<FitSource> sources = FitSource.collect(paths);
+            LOGGER.log(Level.DEBUG, "Verifying " + sources.size() + " FIT files using " + jobs + " workers");
+            long startTime = System.nanoTime();
+            long totalBytes = 0;
+            List<VerifyResult> failedResults = new ArrayList<VerifyResult>();
+
+            ForkJoinPool pool = new ForkJoinPool(jobs);
+            try {
+                VerifyTask root = new VerifyTask(sources, 0, sources.size());
+                if (!sources.isEmpty()) {
+                    pool.execute(root);
+                }
+
+                // Results are streamed out as soon as each file has been verified. Should a task die (e.g. with an
+                // Error) before some of the files got verified, its failure is reported instead of waiting forever.
+                int numResults = 0;
+                while (numResults < sources.size()) {
+                    VerifyResult result = results.poll(RESULT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (result == null) {
+                        if (root.isCompletedAbnormally()) {
+                            throw new RuntimeException("Verification aborted: " + root.getException(),
+                                    root.getException());
+                        }
+                        continue;
+                    }
+                    numResults++;
+                    totalBytes += result.source.getSize();
+                    if (result.status != Status.OK) {
+                        failedResults.add(result);
+                    }
+                    printResult(result);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+
+            printSummary(sources.size(), failedResults, totalBytes, System.nanoTime() - startTime);
+            if (!failedResults.isEmpty()) {
+                return 1;
+            }
+        } catch (Exception ex) {
+            String exceptionMsg = ex.getMessage();
+            String msg = String.format("Error: %s", ex.getMessage());
+            if (exceptionMsg != "") {
+                System.err.println(msg);
+            }
+            LOGGER.log(Level.ERROR, msg);
+
+            if (reusableOptionsMixin.getVerbosity().length > 0) {
+                ex.printStackTrace();
+            }
+            return 1;
+        }
+
+        return 0;
+    }
+
+    @SuppressWarnings("checkstyle:DesignForExtension")
+    public int start() {
+        return new CommandLine(this).execute(cliArgs);
+    }
+
+    // The CRCs are checked on the raw bytes, nothing is decoded
+    private VerifyResult verify(final FitSource source) {
+        LOGGER.log(Level.DEBUG, "Verifying FIT file " + source.getName());
+        try (FitIntegrityInputStream in = new FitIntegrityInputStream(source.open())) {
+            in.drain();
+            if (in.isIntegrityValid()) {
+                return new VerifyResult(source, Status.OK, null);
+            }
+            if (in.isTruncated()) {
+                return new VerifyResult(source, Status.TRUNCATED, "unexpected end of file");
+            }
+            return new VerifyResult(source, Status.CORRUPT, "CRC or header mismatch");
+        } catch (Exception ex) {
+            LOGGER.log(Level.ERROR, "Verifying " + source.getName() + " failed: " + ex.getMessage());
+            return new VerifyResult(source, Status.UNREADABLE, ex.getMessage());
+        }
+    }
+
+    private void appendStatus(final AttributedStringBuilder asb, final VerifyResult result) {
+        if (result.status == Status.OK) {
+            asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
+        } else {
+            asb.style(AttributedStyle.BOLD.foreground(AttributedStyle.RED));
+        }
+        asb.append(String.format("%-10s ", result.status));
+        asb.style(AttributedStyle.DEFAULT);
+        asb.append(result.source.getName());
+        if (result.message != null) {
+            asb.append(": " + result.message);
+        }
+        asb.append(System.lineSeparator());
+    }
+
+    private void printResult(final VerifyResult result) {
+        if (quiet && result.status == Status.OK) {
+            return;
+        }
+
+        AttributedStringBuilder asb = new AttributedStringBuilder();
+        appendStatus(asb, result);
+        terminal.writer().append(asb.toAnsi());
+        terminal.flush();
+    }
+
+    private void printSummary(final int numFiles, final List<VerifyResult> failedResults, final long totalBytes,
+            final long elapsedNanos) {
+        double elapsedSeconds = Math.max(elapsedNanos, 1L) / NANOS_PER_SECOND;
+
+        AttributedStringBuilder asb = new AttributedStringBuilder();
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
+        asb.append(String.format("Verified %d files in %.2fs", numFiles, elapsedSeconds));
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
+        asb.append(String.format(" (%.1f files/s, %.2f MB/s)", numFiles / elapsedSeconds,
+                totalBytes / BYTES_PER_MEGABYTE / elapsedSeconds));
+        asb.append(System.lineSeparator());
+
+        if (failedResults.isEmpty()) {
+            asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
+            asb.append("All files passed verification");
+            asb.append(System.lineSeparator());
+        } else {
+            asb.style(AttributedStyle.BOLD.foreground(AttributedStyle.RED));
+            asb.append(String.format("%d files failed verification:", failedResults.size()));
+            asb.append(System.lineSeparator());
+            for (VerifyResult result : failedResults) {
+                appendStatus(asb, result);
+            }
+        }
+        terminal.writer().append(asb.toAnsi());
+        terminal.flush();
+    }
+}
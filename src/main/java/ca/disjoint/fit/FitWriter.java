@@ -19,80 +19,122 @@
 package ca.disjoint.fit;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.List;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 
 import com.garmin.fit.Fit;
-import com.garmin.fit.BufferEncoder;
 import com.garmin.fit.Mesg;
 import com.garmin.fit.HrMesg;
-import com.garmin.fit.LengthMesg;
-import com.garmin.fit.EventMesg;
-import com.garmin.fit.DeviceInfoMesg;
-import com.garmin.fit.RecordMesg;
 
 public final class FitWriter {
     private static final Logger LOGGER = LogManager.getLogger(FitWriter.class);
+    private static final int MAX_NAME_ATTEMPTS = 99;
     private GarminActivity garminActivity;
     private String originalFileName;
+    private File outputDirectory;
+    private boolean numberTakenNames;
+    private boolean numbered;
 
     public FitWriter(final GarminActivity garminActivity, final String originalFileName) {
+        this(garminActivity, originalFileName, null);
+    }
+
+    // A null output directory writes the new FIT file to the current directory
+    public FitWriter(final GarminActivity garminActivity, final String originalFileName, final File outputDirectory) {
         this.garminActivity = garminActivity;
         this.originalFileName = originalFileName;
+        this.outputDirectory = outputDirectory;
     }
 
-    public String writeFitFile() throws FileNotFoundException, IOException {
-        BufferEncoder fitFile = new BufferEncoder(Fit.ProtocolVersion.V2_0);
-        List<Mesg> sortedMsgList = new ArrayList<Mesg>();
-        String newFilename = getNewFileName();
+    // Instead of failing when the new file's name is already taken, try numbered names (-1, -2, ...) until one is free
+    public void setNumberTakenNames(final boolean numberTakenNames) {
+        this.numberTakenNames = numberTakenNames;
+    }
 
-        // File ID message
-        fitFile.write(garminActivity.getFileIdMesg());
+    // Whether the last written file got a numbered name, as its own name was already taken
+    public boolean isNumbered() {
+        return numbered;
+    }
 
-        // All the event messages
-        for (EventMesg msg : garminActivity.getEventMessages()) {
-            sortedMsgList.add(msg);
-        }
+    public String writeFitFile() throws FileNotFoundException, IOException {
+        String newFilename = getNewFileName();
+        Path newFile = new File(newFilename).getAbsoluteFile().toPath();
+
+        // The new file's name has been reserved with an empty placeholder (see getNewFileName()), and the encoded data
+        // is verified (decoded & CRC checked) on its way out to a temporary sibling file. The temporary file only
+        // replaces the placeholder once it's safely on disk, so a failed write never leaves a partial FIT file
+        // behind, and nothing else is ever overwritten.
+        boolean published = false;
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(newFile.getParent(), "." + newFile.getFileName() + ".", ".tmp");
+            LOGGER.log(Level.DEBUG, "Writing updated FIT contents out to temporary file " + tempFile);
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                FitChannelEncoder fitFile = new FitChannelEncoder(channel, Fit.ProtocolVersion.V2_0, true);
+                writeMessages(fitFile);
+                fitFile.close();
+                channel.force(true);
+            }
 
-        // All the device info messages
-        for (DeviceInfoMesg msg : garminActivity.getDeviceInfoMessages()) {
-            sortedMsgList.add(msg);
+            // Replaces this writer's own placeholder
+            Files.move(tempFile, newFile, StandardCopyOption.ATOMIC_MOVE);
+            published = true;
+            LOGGER.log(Level.DEBUG, "Moved " + tempFile + " into place as " + newFilename);
+        } finally {
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+            if (!published) {
+                Files.deleteIfExists(newFile);
+            }
         }
+        syncDirectory(newFile.getParent());
 
-        // All the record messages
-        for (RecordMesg msg : garminActivity.getRecordMessages()) {
-            sortedMsgList.add(msg);
-        }
+        return newFilename;
+    }
 
-        // All the individual laps and their corresponding lengths
-        List<GarminLap> garminLaps = garminActivity.getGarminLaps();
-        for (GarminLap lap : garminLaps) {
-            for (LengthMesg length : lap.getLengthMessages()) {
-                sortedMsgList.add(length);
-            }
-            sortedMsgList.add(lap.getLapMessage());
+    // Makes the rename itself durable. Not every platform allows a directory to be opened, which is fine to skip.
+    private static void syncDirectory(final Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            LOGGER.log(Level.TRACE, "Unable to sync directory " + directory + ": " + ex.getMessage());
         }
+    }
 
-        // Activity message
-        sortedMsgList.add(garminActivity.getActivityMesg());
-
-        // Session message
-        sortedMsgList.add(garminActivity.getSessionMesg());
+    private void writeMessages(final FitChannelEncoder fitFile) {
+        // File ID message
+        fitFile.write(garminActivity.getFileIdMesg());
 
-        // Sort all the messages according to their timestamp
-        sortedMsgList.sort(new GarminDateTimeComparator<Mesg>());
+        // Every other message is merged in by timestamp. Each list is already (mostly) in timestamp order, so they are
+        // merged as they are rather than copied into one list and sorted.
+        FitMessageMerger merger = new FitMessageMerger();
+        merger.addMessages(garminActivity.getEventMessages());
+        merger.addMessages(garminActivity.getDeviceInfoMessages());
+        RecordColumns recordColumns = garminActivity.getRecordColumns();
+        if (recordColumns != null) {
+            merger.addRecords(recordColumns);
+        } else {
+            merger.addMessages(garminActivity.getRecordMessages());
+        }
+        merger.addLaps(garminActivity.getGarminLaps());
+        merger.addMessages(Arrays.asList(garminActivity.getActivityMesg(), garminActivity.getSessionMesg()));
 
         LOGGER.log(Level.DEBUG, "=========== Debug logging sorted messages ===========");
-        for (Mesg m : sortedMsgList) {
-            Utils.logFitMessage(m);
+        while (merger.hasNext()) {
+            Mesg m = merger.next();
+            FitMessageDumper.dump(m);
             fitFile.write(m);
         }
         LOGGER.log(Level.DEBUG, "=========== Debug logging sorted messages complete ===========");
@@ -121,39 +163,45 @@ public final class FitWriter {
             // newMsg.setEventTimestamp12(i, m.getEventTimestamp12(i));
             // }
 
-            Utils.logFitMessage(newMsg);
+            FitMessageDumper.dump(newMsg);
             fitFile.write(newMsg);
         }
-
-        byte[] rawBytes = fitFile.close();
-        OutputStream os = new FileOutputStream(newFilename);
-        LOGGER.log(Level.DEBUG, "Writing updated FIT contents out to file " + newFilename);
-        os.write(rawBytes);
-        os.close();
-
-        boolean fitIntegrityStatus = Utils.checkFitFileIntegrity(newFilename);
-        if (!fitIntegrityStatus) {
-            throw new RuntimeException("FIT file integrity check failed");
-        }
-
-        return newFilename;
     }
 
-    private String getNewFileName() {
+    private String getNewFileName() throws IOException {
         LOGGER.log(Level.DEBUG, "Determining file name for update FIT file (original: " + originalFileName + ")");
 
         String[] tokens = originalFileName.split("\\.(?=[^\\.]+$)");
         String base = tokens[0];
         String ext = tokens[1];
-        String newFileName = base + "-" + garminActivity.getCreationTime().getTimestamp() + ".fit";
-        LOGGER.log(Level.DEBUG, "Checking to see if filename \"" + newFileName + "\" is useable");
-
-        File newFile = new File(newFileName);
-        if (newFile.exists()) {
-            throw new RuntimeException("File \"" + newFileName + "\" already exists and will not be overwritten");
+        String name = base + "-" + garminActivity.getCreationTime().getTimestamp();
+
+        // The name is reserved by atomically creating an empty placeholder, so that parallel writers (e.g. batch
+        // workers given the same activity twice) can never pick the same one. A taken name is an error, unless
+        // numbered names were asked for.
+        numbered = false;
+        for (int attempt = 0; attempt <= MAX_NAME_ATTEMPTS; attempt++) {
+            String suffix = "";
+            if (attempt > 0) {
+                suffix = "-" + attempt;
+            }
+            File newFile = new File(outputDirectory, name + suffix + ".fit");
+            LOGGER.log(Level.DEBUG, "Checking to see if filename \"" + newFile.getPath() + "\" is useable");
+            try {
+                Files.createFile(newFile.toPath());
+                LOGGER.log(Level.DEBUG, "Reserved filename \"" + newFile.getPath() + "\"");
+                numbered = attempt > 0;
+                return newFile.getPath();
+            } catch (FileAlreadyExistsException ex) {
+                if (!numberTakenNames) {
+                    throw new RuntimeException(
+                            "File \"" + newFile.getPath() + "\" already exists and will not be overwritten");
+                }
+                LOGGER.log(Level.DEBUG, "Filename \"" + newFile.getPath() + "\" is already taken");
+            }
         }
 
-        LOGGER.log(Level.DEBUG, "Filename \"" + newFileName + "\" appears to be useable");
-        return newFileName;
+        throw new RuntimeException("File \"" + new File(outputDirectory, name + ".fit").getPath()
+                + "\" and its numbered variants already exist and will not be overwritten");
     }
 }
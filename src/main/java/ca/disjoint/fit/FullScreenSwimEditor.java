@@ -0,0 +1,388 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.LengthType;
+import com.garmin.fit.SwimStroke;
+
+import org.jline.keymap.BindingReader;
+import org.jline.keymap.KeyMap;
+import org.jline.terminal.Attributes;
+import org.jline.terminal.Size;
+import org.jline.terminal.Terminal;
+import org.jline.utils.AttributedString;
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+import org.jline.utils.Display;
+import org.jline.utils.InfoCmp.Capability;
+
+// Full-screen editor for the strokes of a swim activity. Every lap and length is a row in one scrolling list, but only
+// the rows that fit on the screen are ever rendered, and Display only repaints the lines that actually changed. An
+// edit recalculates the one lap it touched, so a keypress costs the same for a 20 length swim as for 2000 lengths.
+public final class FullScreenSwimEditor {
+    private static final Logger LOGGER = LogManager.getLogger(FullScreenSwimEditor.class);
+    private static final int DEFAULT_ROWS = 24;
+    private static final int DEFAULT_COLUMNS = 80;
+    private static final int NUM_HEADER_ROWS = 1;
+    private static final int NUM_FOOTER_ROWS = 1;
+    private static final String HELP = " Up/Down/PgUp/PgDn/Home/End: move  n/p: next/prev lap  "
+            + "1:FR 2:BK 3:BR 4:FL 5:DR 6:IM  q: done";
+    // Indexed by the number key
+    private static final SwimStroke[] STROKE_KEYS = { null, SwimStroke.FREESTYLE, SwimStroke.BACKSTROKE,
+            SwimStroke.BREASTSTROKE, SwimStroke.BUTTERFLY, SwimStroke.DRILL, SwimStroke.IM };
+
+    private enum Operation {
+        UP, DOWN, PAGE_UP, PAGE_DOWN, HOME, END, NEXT_LAP, PREVIOUS_LAP, STROKE, DONE, INTERRUPT, IGNORE
+    }
+
+    private final Terminal terminal;
+    private final GarminSwimActivity activity;
+    private final EditJournal journal; // optional
+    private final Display display;
+    private final Size size = new Size();
+
+    // One row per active lap, followed by one per length in that lap
+    private final int[] rowLaps;
+    private final int[] rowLengths;
+    private int cursor;
+    private int top;
+    private String status = "";
+    private int numEdits;
+
+    public FullScreenSwimEditor(final Terminal terminal, final GarminSwimActivity activity) {
+        this(terminal, activity, null);
+    }
+
+    public FullScreenSwimEditor(final Terminal terminal, final GarminSwimActivity activity, final EditJournal journal) {
+        this.terminal = terminal;
+        this.activity = activity;
+        this.journal = journal;
+        this.display = new Display(terminal, true);
+
+        List<Integer> activeLaps = activity.getActiveSwimLaps();
+        int numRows = 0;
+        for (int lapIndex : activeLaps) {
+            numRows += 1 + activity.getGarminLap(lapIndex).getLengthMessages().size();
+        }
+        rowLaps = new int[numRows];
+        rowLengths = new int[numRows];
+        int row = 0;
+        for (int lapIndex : activeLaps) {
+            int numLengths = activity.getGarminLap(lapIndex).getLengthMessages().size();
+            for (int length = -1; length < numLengths; length++) {
+                rowLaps[row] = lapIndex;
+                rowLengths[row] = length;
+                row++;
+            }
+        }
+        LOGGER.log(Level.DEBUG, "Full-screen editor has " + numRows + " rows (" + activeLaps.size() + " laps)");
+    }
+
+    // Returns the number of edits that were made
+    public int run() {
+        if (rowLaps.length == 0) {
+            return 0;
+        }
+
+        Attributes attributes = terminal.enterRawMode();
+        Terminal.SignalHandler previousWinchHandler = terminal.handle(Terminal.Signal.WINCH,
+                new Terminal.SignalHandler() {
+                    public void handle(final Terminal.Signal signal) {
+                        redraw();
+                    }
+                });
+        terminal.puts(Capability.enter_ca_mode);
+        terminal.puts(Capability.keypad_xmit);
+        terminal.puts(Capability.cursor_invisible);
+        terminal.flush();
+
+        try {
+            KeyMap<Operation> keyMap = getKeyMap();
+            BindingReader bindingReader = new BindingReader(terminal.reader());
+            display.clear();
+            redraw();
+
+            while (true) {
+                Operation op = bindingReader.readBinding(keyMap);
+                if (op == null || op == Operation.DONE) {
+                    break;
+                }
+                if (op == Operation.INTERRUPT) {
+                    throw new RuntimeException("");
+                }
+                handle(op, bindingReader.getLastBinding());
+                redraw();
+            }
+        } finally {
+            terminal.setAttributes(attributes);
+            terminal.handle(Terminal.Signal.WINCH, previousWinchHandler);
+            terminal.puts(Capability.cursor_visible);
+            terminal.puts(Capability.keypad_local);
+            terminal.puts(Capability.exit_ca_mode);
+            terminal.flush();
+        }
+
+        if (journal != null) {
+            journal.endLap();
+        }
+        LOGGER.log(Level.DEBUG, "Full-screen editor made " + numEdits + " edits");
+        return numEdits;
+    }
+
+    private KeyMap<Operation> getKeyMap() {
+        KeyMap<Operation> keyMap = new KeyMap<Operation>();
+        keyMap.setNomatch(Operation.IGNORE);
+        bind(keyMap, Operation.UP, Capability.key_up, "\033[A", "k");
+        bind(keyMap, Operation.DOWN, Capability.key_down, "\033[B", "j");
+        bind(keyMap, Operation.PAGE_UP, Capability.key_ppage, "\033[5~");
+        bind(keyMap, Operation.PAGE_DOWN, Capability.key_npage, "\033[6~", " ");
+        bind(keyMap, Operation.HOME, Capability.key_home, "\033[H", "g");
+        bind(keyMap, Operation.END, Capability.key_end, "\033[F", "G");
+        keyMap.bind(Operation.NEXT_LAP, "n", "\t");
+        keyMap.bind(Operation.PREVIOUS_LAP, "p");
+        for (int i = 1; i < STROKE_KEYS.length; i++) {
+            keyMap.bind(Operation.STROKE, String.valueOf(i));
+        }
+        keyMap.bind(Operation.DONE, "q", KeyMap.ctrl('D'));
+        keyMap.bind(Operation.INTERRUPT, KeyMap.ctrl('C'));
+        return keyMap;
+    }
+
+    private void bind(final KeyMap<Operation> keyMap, final Operation op, final Capability capability,
+            final String... keys) {
+        String key = KeyMap.key(terminal, capability);
+        if (key != null && !key.isEmpty()) {
+            keyMap.bind(op, key);
+        }
+        keyMap.bind(op, keys);
+    }
+
+    private void handle(final Operation op, final String key) {
+        status = "";
+        switch (op) {
+        case UP:
+            moveTo(cursor - 1);
+            break;
+        case DOWN:
+            moveTo(cursor + 1);
+            break;
+        case PAGE_UP:
+            moveTo(cursor - getPageSize());
+            break;
+        case PAGE_DOWN:
+            moveTo(cursor + getPageSize());
+            break;
+        case HOME:
+            moveTo(0);
+            break;
+        case END:
+            moveTo(rowLaps.length - 1);
+            break;
+        case NEXT_LAP:
+            int next = cursor + 1;
+            while (next < rowLaps.length && rowLengths[next] != -1) {
+                next++;
+            }
+            moveTo(next);
+            break;
+        case PREVIOUS_LAP:
+            int previous = cursor - 1;
+            while (previous > 0 && rowLengths[previous] != -1) {
+                previous--;
+            }
+            moveTo(previous);
+            break;
+        case STROKE:
+            setStroke(STROKE_KEYS[key.charAt(0) - '0']);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void moveTo(final int row) {
+        cursor = Math.max(0, Math.min(row, rowLaps.length - 1));
+    }
+
+    // On a length row this sets that length's stroke and moves on to the next length, on a lap row it sets the
+    // stroke of every length in the lap
+    private void setStroke(final SwimStroke stroke) {
+        int lapIndex = rowLaps[cursor];
+        List<LengthMesg> lengths = activity.getGarminLap(lapIndex).getLengthMessages();
+        int from = rowLengths[cursor];
+        int to = from + 1;
+        if (from == -1) {
+            from = 0;
+            to = lengths.size();
+        }
+
+        for (int i = from; i < to; i++) {
+            LengthMesg length = lengths.get(i);
+            length.setSwimStroke(stroke);
+            length.setLengthType(LengthType.ACTIVE);
+        }
+        activity.updateLapSwimStroke(lapIndex);
+        activity.markLapDirty(lapIndex);
+        activity.recalculateDirtyLapStats();
+        numEdits++;
+
+        if (journal != null) {
+            if (rowLengths[cursor] == -1) {
+                journal.recordLapStroke(lapIndex, stroke);
+            } else {
+                journal.recordLengthStroke(lapIndex, from, stroke);
+            }
+        }
+
+        status = "Lap " + (lapIndex + 1) + ": " + (to - from) + " length(s) set to "
+                + GarminSwimStroke.getByValue(stroke.getValue());
+        LOGGER.log(Level.DEBUG, status);
+        if (rowLengths[cursor] != -1) {
+            moveTo(cursor + 1);
+        }
+    }
+
+    private int getPageSize() {
+        return Math.max(size.getRows() - NUM_HEADER_ROWS - NUM_FOOTER_ROWS, 1);
+    }
+
+    // Only the visible window of rows is rendered, Display works out which lines changed
+    private synchronized void redraw() {
+        size.copy(terminal.getSize());
+        if (size.getRows() <= 0 || size.getColumns() <= 0) {
+            size.setRows(DEFAULT_ROWS);
+            size.setColumns(DEFAULT_COLUMNS);
+        }
+        display.resize(size.getRows(), size.getColumns());
+
+        int pageSize = getPageSize();
+        if (cursor < top) {
+            top = cursor;
+        } else if (cursor >= top + pageSize) {
+            top = cursor - pageSize + 1;
+        }
+        top = Math.max(0, Math.min(top, rowLaps.length - pageSize));
+
+        List<AttributedString> lines = new ArrayList<AttributedString>(size.getRows());
+        lines.add(fit(renderHeader()));
+        for (int row = top; row < top + pageSize; row++) {
+            if (row < rowLaps.length) {
+                lines.add(fit(renderRow(row)));
+            } else {
+                lines.add(AttributedString.EMPTY);
+            }
+        }
+        lines.add(fit(renderFooter()));
+        display.update(lines, size.cursorPos(0, 0));
+        terminal.flush();
+    }
+
+    private AttributedString fit(final AttributedStringBuilder asb) {
+        if (asb.columnLength() > size.getColumns()) {
+            return asb.columnSubSequence(0, size.getColumns());
+        }
+        return asb.toAttributedString();
+    }
+
+    private AttributedStringBuilder renderHeader() {
+        AttributedStringBuilder asb = new AttributedStringBuilder();
+        asb.style(AttributedStyle.BOLD.foreground(AttributedStyle.GREEN));
+        StringBuilder sb = new StringBuilder();
+        sb.append(" Pool length: ").append(activity.getPoolLength()).append("m  Distance: ")
+                .append(Math.round(activity.getTotalDistance())).append("m  Moving time: ");
+        DurationFormatter.appendDuration(sb, activity.getMovingTime());
+        sb.append("  Avg pace: ");
+        DurationFormatter.appendPace(sb, activity.getAvgSpeed()).append("/100m");
+        asb.append(sb);
+        return asb;
+    }
+
+    private AttributedStringBuilder renderRow(final int row) {
+        AttributedStringBuilder asb = new AttributedStringBuilder();
+        GarminLap garminLap = activity.getGarminLap(rowLaps[row]);
+        if (rowLengths[row] == -1) {
+            GarminSwimActivity.appendLapHeader(asb, garminLap.getLapMessage());
+        } else {
+            appendLength(asb, garminLap.getLengthMessages(), rowLengths[row]);
+        }
+
+        if (row == cursor) {
+            AttributedStringBuilder selected = new AttributedStringBuilder();
+            selected.style(AttributedStyle.INVERSE);
+            selected.append(AttributedString.stripAnsi(asb.toAnsi()));
+            return selected;
+        }
+        return asb;
+    }
+
+    // e.g. Length 3/8 BR (time 00:32, pace 02:11/100m)
+    private static void appendLength(final AttributedStringBuilder asb, final List<LengthMesg> lengths,
+            final int index) {
+        LengthMesg length = lengths.get(index);
+        GarminSwimStroke stroke = GarminSwimStroke.INV;
+        if (length.getLengthType() == LengthType.ACTIVE) {
+            stroke = GarminSwimStroke.getByValue(length.getSwimStroke().getValue());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("         Length ").append(index + 1).append('/').append(lengths.size()).append("   ");
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
+        asb.append(sb);
+        asb.style(AttributedStyle.BOLD.foreground(AttributedStyle.YELLOW));
+        asb.append(stroke.toString());
+        for (int i = stroke.toString().length(); i < GarminSwimStroke.INV.toString().length() + 2; i++) {
+            asb.append(' ');
+        }
+
+        sb.setLength(0);
+        sb.append("(time ");
+        DurationFormatter.appendDuration(sb, length.getTotalElapsedTime());
+        sb.append(", pace ");
+        if (length.getAvgSpeed() != null) {
+            DurationFormatter.appendPace(sb, length.getAvgSpeed());
+        } else {
+            DurationFormatter.appendDuration(sb, 0f);
+        }
+        sb.append("/100m)");
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.CYAN));
+        asb.append(sb);
+    }
+
+    private AttributedStringBuilder renderFooter() {
+        AttributedStringBuilder asb = new AttributedStringBuilder();
+        asb.style(AttributedStyle.INVERSE);
+        if (status.isEmpty()) {
+            asb.append(HELP);
+        } else {
+            asb.append(" ").append(status);
+        }
+        for (int i = asb.columnLength(); i < size.getColumns(); i++) {
+            asb.append(' ');
+        }
+        return asb;
+    }
+}
@@ -32,14 +32,19 @@ import com.garmin.fit.RecordMesg;
 import com.garmin.fit.EventMesg;
 import com.garmin.fit.DeviceInfoMesg;
 import com.garmin.fit.HrMesg;
+import com.garmin.fit.Mesg;
 import com.garmin.fit.Sport;
 import com.garmin.fit.SubSport;
 import com.garmin.fit.Manufacturer;
 import com.garmin.fit.GarminProduct;
+import com.garmin.fit.MesgNum;
 
 import java.util.List;
 import java.util.Random;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Arrays;
 
 import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
@@ -51,11 +56,15 @@ public abstract class GarminActivity {
     private SessionMesg sessionMesg;
     private List<GarminLap> garminLaps; // one lap has many lengths
     private List<RecordMesg> recordMessages;
+    private RecordColumns recordColumns; // optional, replaces recordMessages when enabled
     private List<EventMesg> eventMessages;
     private List<DeviceInfoMesg> deviceInfoMessages;
     private List<HrMesg> hrMessages;
+    private GarminActivityLoader lazyLoader; // set while some message types have not been decoded yet
+    private Set<Integer> pendingMesgs;
 
     public GarminActivity() {
+        pendingMesgs = new HashSet<Integer>();
         garminLaps = new ArrayList<GarminLap>();
         recordMessages = new ArrayList<RecordMesg>();
         eventMessages = new ArrayList<EventMesg>();
@@ -63,6 +72,22 @@ public abstract class GarminActivity {
         hrMessages = new ArrayList<HrMesg>();
     }
 
+    public final void clear() {
+        lazyLoader = null;
+        pendingMesgs.clear();
+        fileIdMesg = null;
+        activityMesg = null;
+        sessionMesg = null;
+        garminLaps.clear();
+        recordMessages.clear();
+        if (recordColumns != null) {
+            recordColumns.clear();
+        }
+        eventMessages.clear();
+        deviceInfoMessages.clear();
+        hrMessages.clear();
+    }
+
     public final String getActivitySummaryHeader() {
         AttributedStringBuilder asb = new AttributedStringBuilder();
         asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN | AttributedStyle.BRIGHT));
@@ -77,13 +102,34 @@ public abstract class GarminActivity {
 
     public abstract String getActivitySummary();
 
+    final void setLazyLoader(final GarminActivityLoader loader) {
+        lazyLoader = loader;
+        pendingMesgs.addAll(Arrays.asList(MesgNum.FILE_ID, MesgNum.ACTIVITY, MesgNum.SESSION, MesgNum.LAP,
+                MesgNum.RECORD, MesgNum.EVENT, MesgNum.DEVICE_INFO, MesgNum.HR));
+    }
+
+    // Decodes the given message type on first access, so that anything added or replaced afterwards stays in order
+    private void materialize(final int mesgNum) {
+        if (lazyLoader == null || !pendingMesgs.remove(mesgNum)) {
+            return;
+        }
+
+        GarminActivityLoader loader = lazyLoader;
+        if (pendingMesgs.isEmpty()) {
+            lazyLoader = null;
+        }
+        loader.materialize(mesgNum);
+    }
+
     public final void setFileIdMesg(final FileIdMesg mesg) {
-        Utils.logFitMessage(mesg);
+        materialize(MesgNum.FILE_ID);
+        FitMessageDumper.dump(mesg);
         fileIdMesg = mesg;
     }
 
     @SuppressWarnings("checkstyle:MagicNumber")
     public final void randomizeCreationTime() {
+        materialize(MesgNum.FILE_ID);
         DateTime creationTime = fileIdMesg.getTimeCreated();
 
         Random r = new Random();
@@ -96,106 +142,180 @@ public abstract class GarminActivity {
     }
 
     public final DateTime getCreationTime() {
+        materialize(MesgNum.FILE_ID);
         return fileIdMesg.getTimeCreated();
     }
 
     public final FileIdMesg getFileIdMesg() {
+        materialize(MesgNum.FILE_ID);
         return fileIdMesg;
     }
 
     public final void setActivityMesg(final ActivityMesg mesg) {
-        Utils.logFitMessage(mesg);
+        materialize(MesgNum.ACTIVITY);
+        FitMessageDumper.dump(mesg);
         activityMesg = mesg;
     }
 
     public final ActivityMesg getActivityMesg() {
+        materialize(MesgNum.ACTIVITY);
         return activityMesg;
     }
 
     public final void setSessionMesg(final SessionMesg mesg) {
-        Utils.logFitMessage(mesg);
+        materialize(MesgNum.SESSION);
+        FitMessageDumper.dump(mesg);
         sessionMesg = mesg;
     }
 
     public final SessionMesg getSessionMesg() {
+        materialize(MesgNum.SESSION);
         return sessionMesg;
     }
 
     public final void addGarminLap(final LapMesg lapMesg, final List<LengthMesg> lengthMessages) {
-        Utils.logFitMessage(lapMesg);
+        materialize(MesgNum.LAP);
+        FitMessageDumper.dump(lapMesg);
         for (LengthMesg m : lengthMessages) {
-            Utils.logFitMessage(m);
+            FitMessageDumper.dump(m);
         }
         garminLaps.add(new GarminLap(lapMesg, lengthMessages));
     }
 
     public final List<GarminLap> getGarminLaps() {
+        materialize(MesgNum.LAP);
         return garminLaps;
     }
 
     public final GarminLap getGarminLap(final int index) {
+        materialize(MesgNum.LAP);
         return garminLaps.get(index);
     }
 
     public final void replaceGarminLap(final int index, final GarminLap lap) {
+        materialize(MesgNum.LAP);
         garminLaps.set(index, lap);
     }
 
+    // Store the record messages in primitive columns rather than as individual RecordMesg objects. Note that only the
+    // fields supported by RecordColumns are retained.
+    public final void enableRecordColumns() {
+        if (recordColumns != null) {
+            return;
+        }
+
+        recordColumns = new RecordColumns();
+        for (RecordMesg mesg : recordMessages) {
+            recordColumns.add(mesg);
+        }
+        recordMessages.clear();
+    }
+
+    // Whether records are kept in columns, without decoding any pending records
+    final boolean hasRecordColumns() {
+        return recordColumns != null;
+    }
+
+    public final RecordColumns getRecordColumns() {
+        materialize(MesgNum.RECORD);
+        return recordColumns;
+    }
+
     public final void addRecordMessage(final RecordMesg mesg) {
-        Utils.logFitMessage(mesg);
+        materialize(MesgNum.RECORD);
+        FitMessageDumper.dump(mesg);
+        if (recordColumns != null) {
+            recordColumns.add(mesg);
+            return;
+        }
         recordMessages.add(mesg);
     }
 
+    // Adds a record message straight from the decoder to the record columns, which must be enabled
+    final void addRecordSample(final Mesg mesg) {
+        materialize(MesgNum.RECORD);
+        FitMessageDumper.dump(mesg);
+        recordColumns.add(mesg);
+    }
+
+    // Appends the given samples to this activity's record columns (enabling them if needed)
+    public final void addRecordColumns(final RecordColumns records) {
+        materialize(MesgNum.RECORD);
+        enableRecordColumns();
+        LOGGER.log(Level.DEBUG, "Adding " + records.size() + " record samples");
+        recordColumns.addAll(records);
+    }
+
+    // When record columns are enabled, this is a read-only view that builds a new RecordMesg on every access. Such a
+    // message only holds the fields kept by RecordColumns, and changes made through its setters are lost: edit the
+    // records before enabling the columns, or work on getRecordColumns() instead.
     public final List<RecordMesg> getRecordMessages() {
+        materialize(MesgNum.RECORD);
+        if (recordColumns != null) {
+            return recordColumns.asRecordMessages();
+        }
         return recordMessages;
     }
 
     public final List<RecordMesg> deleteRecordMessages() {
-        List<RecordMesg> clonedList = new ArrayList<RecordMesg>(recordMessages);
+        List<RecordMesg> clonedList = new ArrayList<RecordMesg>(getRecordMessages());
         recordMessages.clear();
+        if (recordColumns != null) {
+            recordColumns.clear();
+        }
         return clonedList;
     }
 
     public final void addEventMessage(final EventMesg mesg) {
-        Utils.logFitMessage(mesg);
+        materialize(MesgNum.EVENT);
+        FitMessageDumper.dump(mesg);
         eventMessages.add(mesg);
     }
 
     public final List<EventMesg> getEventMessages() {
+        materialize(MesgNum.EVENT);
         return eventMessages;
     }
 
     public final void addDeviceInfoMessage(final DeviceInfoMesg mesg) {
-        Utils.logFitMessage(mesg);
+        materialize(MesgNum.DEVICE_INFO);
+        FitMessageDumper.dump(mesg);
         deviceInfoMessages.add(mesg);
     }
 
     public final List<DeviceInfoMesg> getDeviceInfoMessages() {
+        materialize(MesgNum.DEVICE_INFO);
         return deviceInfoMessages;
     }
 
     public final void addHrMessage(final HrMesg mesg) {
-        Utils.logFitMessage(mesg);
+        materialize(MesgNum.HR);
+        FitMessageDumper.dump(mesg);
         hrMessages.add(mesg);
     }
 
     public final List<HrMesg> getHrMessages() {
+        materialize(MesgNum.HR);
         return hrMessages;
     }
 
     public final Sport getSport() {
+        materialize(MesgNum.SESSION);
         return sessionMesg.getSport();
     }
 
     public final SubSport getSubSport() {
+        materialize(MesgNum.SESSION);
         return sessionMesg.getSubSport();
     }
 
     public final String getDeviceManufacturer() {
+        materialize(MesgNum.FILE_ID);
         return Manufacturer.getStringFromValue(fileIdMesg.getManufacturer());
     }
 
     public final String getDeviceName() {
+        materialize(MesgNum.FILE_ID);
         if (fileIdMesg.getManufacturer() == Manufacturer.GARMIN) {
             return GarminProduct.getStringFromValue(fileIdMesg.getProduct());
         }
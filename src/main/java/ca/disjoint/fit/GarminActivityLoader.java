@@ -25,8 +25,12 @@ import org.apache.logging.log4j.LogManager;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Map;
 import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.ArrayList;
 
 import com.garmin.fit.FileIdMesgListener;
@@ -44,7 +48,11 @@ import com.garmin.fit.LengthMesg;
 import com.garmin.fit.SessionMesg;
 import com.garmin.fit.FileIdMesg;
 import com.garmin.fit.Decode;
+import com.garmin.fit.FitRuntimeException;
+import com.garmin.fit.Mesg;
 import com.garmin.fit.MesgBroadcaster;
+import com.garmin.fit.MesgListener;
+import com.garmin.fit.MesgNum;
 import com.garmin.fit.RecordMesgListener;
 import com.garmin.fit.RecordMesg;
 import com.garmin.fit.HrMesg;
@@ -52,43 +60,307 @@ import com.garmin.fit.HrMesgListener;
 
 public class GarminActivityLoader {
     private static final Logger LOGGER = LogManager.getLogger(GarminActivityLoader.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
     private DataReader reader;
     private List<LengthMesg> lengthMessages;
     private GarminActivity garminActivity;
+    private Decode decode;
+    private MesgBroadcaster mesgBroadcaster;
+    private MesgListener mesgListener;
+    private boolean recordsIncluded;
+    private FitMessageIndex messageIndex;
+    private Map<Integer, List<Mesg>> cachedMesgs;
 
     public GarminActivityLoader(final File inputFile, final GarminActivity garminActivity)
             throws FileNotFoundException, IOException {
-        Decode decode = new Decode();
-        MesgBroadcaster mesgBroadcaster = new MesgBroadcaster(decode);
+        this(inputFile, garminActivity, (FitProjection) null);
+    }
+
+    public GarminActivityLoader(final File inputFile, final GarminActivity garminActivity,
+            final FitProjection projection) throws FileNotFoundException, IOException {
+        this(garminActivity, projection);
+
+        if (projection != null && loadProjectedFitFile(inputFile, projection)) {
+            return;
+        }
+        loadFitFile(Utils.openFitInputStream(inputFile), inputFile.getName());
+    }
+
+    // In lazy mode the file is only indexed up front, each message type is decoded the first time the activity asks
+    // for it
+    public GarminActivityLoader(final File inputFile, final GarminActivity garminActivity, final boolean lazy)
+            throws FileNotFoundException, IOException {
+        this(garminActivity, null);
+
+        if (lazy) {
+            loadIndexedFitFile(inputFile);
+            return;
+        }
+        loadFitFile(Utils.openFitInputStream(inputFile), inputFile.getName());
+    }
+
+    // Serves the activity from the cache when a snapshot of the same file contents exists, and caches it otherwise.
+    // As in lazy mode, each cached message type is only handed to the activity the first time it asks for it.
+    public GarminActivityLoader(final File inputFile, final GarminActivity garminActivity, final ActivityCache cache)
+            throws FileNotFoundException, IOException {
+        this(garminActivity, null);
+
+        String key = cache.getKey(inputFile);
+        List<Mesg> mesgs = cache.load(key);
+        if (mesgs != null) {
+            LOGGER.log(Level.DEBUG, "Loading FIT file " + inputFile.getName() + " from the cache");
+            cachedMesgs = new HashMap<Integer, List<Mesg>>();
+            for (Mesg mesg : mesgs) {
+                // Lengths come along with their lap
+                int mesgNum = mesg.getNum();
+                if (mesgNum == MesgNum.LENGTH) {
+                    mesgNum = MesgNum.LAP;
+                }
+                List<Mesg> group = cachedMesgs.get(mesgNum);
+                if (group == null) {
+                    group = new ArrayList<Mesg>();
+                    cachedMesgs.put(mesgNum, group);
+                }
+                group.add(mesg);
+            }
+            garminActivity.setLazyLoader(this);
+            return;
+        }
+
+        loadFitFile(Utils.openFitInputStream(inputFile), inputFile.getName());
+        cache.store(key, garminActivity);
+    }
+
+    // Loads an already opened FIT stream (e.g. a zip archive entry), the stream is closed once decoded
+    public GarminActivityLoader(final InputStream input, final String name, final GarminActivity garminActivity)
+            throws IOException {
+        this(garminActivity, null);
+        loadFitFile(input, name);
+    }
+
+    private GarminActivityLoader(final GarminActivity garminActivity, final FitProjection projection) {
+        decode = new Decode();
+        mesgBroadcaster = new MesgBroadcaster(decode);
         reader = new DataReader();
         this.garminActivity = garminActivity;
         lengthMessages = new ArrayList<LengthMesg>();
-        File fitFile = Utils.extractZippedFitFile(inputFile);
+        recordsIncluded = projection == null || projection.includesMesg(MesgNum.RECORD);
+        mesgListener = new RecordColumnsListener(mesgBroadcaster);
+
+        LOGGER.log(Level.DEBUG, "Adding event listeners");
+        addListeners(mesgBroadcaster, projection);
+    }
+
+    private void addListeners(final MesgBroadcaster broadcaster, final FitProjection projection) {
+        if (projection == null || projection.includesMesg(MesgNum.FILE_ID)) {
+            broadcaster.addListener((FileIdMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.LAP)) {
+            broadcaster.addListener((LapMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.LENGTH)) {
+            broadcaster.addListener((LengthMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.SESSION)) {
+            broadcaster.addListener((SessionMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.ACTIVITY)) {
+            broadcaster.addListener((ActivityMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.EVENT)) {
+            broadcaster.addListener((EventMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.DEVICE_INFO)) {
+            broadcaster.addListener((DeviceInfoMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.RECORD)) {
+            broadcaster.addListener((RecordMesgListener) reader);
+        }
+        if (projection == null || projection.includesMesg(MesgNum.HR)) {
+            broadcaster.addListener((HrMesgListener) reader);
+        }
+    }
+
+    private void loadFitFile(final InputStream input, final String name) throws IOException {
+        // The header & file CRCs are verified while decoding, instead of in a separate pass over the file
+        FitIntegrityInputStream in = new FitIntegrityInputStream(input);
+
+        LOGGER.log(Level.DEBUG, "Decoding FIT file: " + name);
+        FitRuntimeException decodeException = null;
+        try {
+            boolean status = decode.read(in, mesgListener, mesgBroadcaster);
+            LOGGER.log(Level.DEBUG, "FIT file decoding complete for file " + name + ", status: " + status);
+        } catch (FitRuntimeException ex) {
+            LOGGER.log(Level.ERROR, "FIT file decoding failed: " + ex.getMessage());
+            decodeException = ex;
+        }
+
+        try {
+            in.drain();
+        } finally {
+            in.close();
+            LOGGER.log(Level.DEBUG, "FIT file handle successfully closed");
+        }
+
+        verifyIntegrity(in, decodeException);
+    }
+
+    private boolean loadProjectedFitFile(final File inputFile, final FitProjection projection)
+            throws FileNotFoundException, IOException {
+        FitIntegrityInputStream in = new FitIntegrityInputStream(Utils.openFitInputStream(inputFile));
+
+        LOGGER.log(Level.DEBUG, "Projecting FIT file: " + inputFile.getName());
+        byte[] projectedFile = null;
+        FitRuntimeException filterException = null;
+        try {
+            try {
+                projectedFile = new FitProjectionFilter(projection).filter(in);
+            } catch (FitRuntimeException ex) {
+                LOGGER.log(Level.ERROR, "FIT file projection failed: " + ex.getMessage());
+                filterException = ex;
+            }
+
+            if (projectedFile == null && filterException == null) {
+                LOGGER.log(Level.DEBUG, "FIT file " + inputFile.getName() + " cannot be projected, decoding it fully");
+                return false;
+            }
+            in.drain();
+        } finally {
+            in.close();
+            LOGGER.log(Level.DEBUG, "FIT file handle successfully closed");
+        }
+        verifyIntegrity(in, filterException);
+
+        LOGGER.log(Level.DEBUG, "Decoding projected FIT file: " + inputFile.getName());
+        try {
+            decode.read(new ByteArrayInputStream(projectedFile), mesgListener, mesgBroadcaster);
+        } catch (FitRuntimeException ex) {
+            garminActivity.clear();
+            throw ex;
+        }
+        return true;
+    }
+
+    private void loadIndexedFitFile(final File inputFile) throws FileNotFoundException, IOException {
+        FitIntegrityInputStream in = new FitIntegrityInputStream(Utils.openFitInputStream(inputFile));
+
+        LOGGER.log(Level.DEBUG, "Reading FIT file: " + inputFile.getName());
+        // Read straight into a single array sized from the file, an uncompressed file is never copied
+        byte[] fitFile = new byte[(int) inputFile.length()];
+        int size = 0;
+        try {
+            while (true) {
+                if (size == fitFile.length) {
+                    // Only a compressed file holds more than its size on disk
+                    int b = in.read();
+                    if (b == -1) {
+                        break;
+                    }
+                    fitFile = Arrays.copyOf(fitFile, Math.max(fitFile.length * 2, READ_BUFFER_SIZE));
+                    fitFile[size++] = (byte) b;
+                }
+                int len = in.read(fitFile, size, fitFile.length - size);
+                if (len == -1) {
+                    break;
+                }
+                size += len;
+            }
+        } finally {
+            in.close();
+            LOGGER.log(Level.DEBUG, "FIT file handle successfully closed");
+        }
+        verifyIntegrity(in, null);
+
+        if (size < fitFile.length) {
+            fitFile = Arrays.copyOf(fitFile, size);
+        }
+        try {
+            messageIndex = FitMessageIndex.scan(fitFile);
+        } catch (FitRuntimeException ex) {
+            LOGGER.log(Level.ERROR, "FIT file indexing failed: " + ex.getMessage());
+            garminActivity.clear();
+            throw ex;
+        }
+
+        if (messageIndex.hasCompressedTimestamps()) {
+            LOGGER.log(Level.DEBUG,
+                    "FIT file " + inputFile.getName() + " uses compressed timestamps, decoding it fully");
+            messageIndex = null;
+            decodeFitFile(fitFile, decode, mesgBroadcaster);
+            return;
+        }
+        garminActivity.setLazyLoader(this);
+    }
+
+    // Decodes the given message type (a lap always comes with its lengths) from the index, or replays it from the
+    // cache, into the activity
+    final void materialize(final int mesgNum) {
+        LOGGER.log(Level.DEBUG, "Materializing messages of type " + mesgNum);
+        if (cachedMesgs != null) {
+            List<Mesg> mesgs = cachedMesgs.remove(mesgNum);
+            if (mesgs != null) {
+                for (Mesg mesg : mesgs) {
+                    mesgListener.onMesg(mesg);
+                }
+            }
+            return;
+        }
+
+        byte[] fitFile;
+        if (mesgNum == MesgNum.LAP) {
+            fitFile = messageIndex.extract(MesgNum.LAP, MesgNum.LENGTH);
+        } else {
+            fitFile = messageIndex.extract(mesgNum);
+        }
+
+        // The decoder keeps state from the previous file, so each materialization gets its own
+        Decode mesgDecode = new Decode();
+        MesgBroadcaster broadcaster = new MesgBroadcaster(mesgDecode);
+        addListeners(broadcaster, null);
+        lengthMessages = new ArrayList<LengthMesg>();
+        decodeFitFile(fitFile, mesgDecode, broadcaster);
+    }
+
+    private void decodeFitFile(final byte[] fitFile, final Decode fitDecode, final MesgBroadcaster broadcaster) {
+        try {
+            fitDecode.read(new ByteArrayInputStream(fitFile), new RecordColumnsListener(broadcaster), broadcaster);
+        } catch (FitRuntimeException ex) {
+            LOGGER.log(Level.ERROR, "FIT file decoding failed: " + ex.getMessage());
+            garminActivity.clear();
+            throw ex;
+        }
+    }
 
-        boolean fitIntegrityStatus = Utils.checkFitFileIntegrity(fitFile);
-        if (!fitIntegrityStatus) {
+    private void verifyIntegrity(final FitIntegrityInputStream in, final FitRuntimeException decodeException) {
+        // Roll back anything decoded so far if the trailing CRC (or header) turned out to be bad
+        if (!in.isIntegrityValid()) {
+            garminActivity.clear();
             throw new RuntimeException("FIT file integrity check failed");
         }
+        if (decodeException != null) {
+            garminActivity.clear();
+            throw decodeException;
+        }
+        LOGGER.log(Level.DEBUG, "FIT file integrity check successful");
+    }
 
-        FileInputStream in = new FileInputStream(fitFile);
+    // Hands the decoded messages on to the broadcaster, except for records when the activity keeps them in columns:
+    // those go straight into the columns, without the RecordMesg copy the broadcaster would make of each of them
+    private final class RecordColumnsListener implements MesgListener {
+        private final MesgBroadcaster broadcaster;
 
-        LOGGER.log(Level.DEBUG, "Adding event listeners");
-        mesgBroadcaster.addListener((FileIdMesgListener) reader);
-        mesgBroadcaster.addListener((LapMesgListener) reader);
-        mesgBroadcaster.addListener((LengthMesgListener) reader);
-        mesgBroadcaster.addListener((SessionMesgListener) reader);
-        mesgBroadcaster.addListener((ActivityMesgListener) reader);
-        mesgBroadcaster.addListener((EventMesgListener) reader);
-        mesgBroadcaster.addListener((DeviceInfoMesgListener) reader);
-        mesgBroadcaster.addListener((RecordMesgListener) reader);
-        mesgBroadcaster.addListener((HrMesgListener) reader);
-
-        LOGGER.log(Level.DEBUG, "Decoding FIT file: " + fitFile.getName());
-        boolean status = decode.read(in, mesgBroadcaster, mesgBroadcaster);
-        LOGGER.log(Level.DEBUG, "FIT file decoding complete for file " + fitFile.getName() + ", status: " + status);
-
-        in.close();
-        LOGGER.log(Level.DEBUG, "FIT file handle successfully closed");
+        RecordColumnsListener(final MesgBroadcaster broadcaster) {
+            this.broadcaster = broadcaster;
+        }
+
+        @Override
+        public void onMesg(final Mesg mesg) {
+            if (mesg.getNum() == MesgNum.RECORD && recordsIncluded && garminActivity.hasRecordColumns()) {
+                garminActivity.addRecordSample(mesg);
+                return;
+            }
+            broadcaster.onMesg(mesg);
+        }
     }
 
     private class DataReader implements FileIdMesgListener, LapMesgListener, LengthMesgListener, SessionMesgListener,
@@ -19,9 +19,10 @@
 package ca.disjoint.fit;
 
 import java.util.List;
-import java.util.Iterator;
 import java.util.Formatter;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.TreeMap;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Level;
@@ -39,6 +40,24 @@ import org.jline.utils.AttributedStyle;
 public final class GarminSwimActivity extends GarminActivity {
     private static final Logger LOGGER = LogManager.getLogger(GarminSwimActivity.class);
 
+    // What each lap contributed to the session stats when it was last calculated, so that an edited lap can be
+    // recalculated on its own. The session max speed is the largest of the lap max speeds, which are kept counted in
+    // a sorted map so that taking one out doesn't mean looking at every other lap.
+    private float[] lapDistances;
+    private float[] lapAvgSpeeds;
+    private float[] lapMaxSpeeds;
+    private float[] lapMovingTimes;
+    private boolean[] activeLaps;
+    private final BitSet dirtyLaps = new BitSet();
+    private final TreeMap<Float, Integer> lapMaxSpeedCounts = new TreeMap<Float, Integer>();
+    private double sessionTotalDistance;
+    private double sessionTotalSpeed;
+    private double sessionMovingTime;
+    private int numActiveLaps;
+
+    private String[] lapSummaries;
+    private String lapSummary;
+
     public GarminSwimActivity() {
         super();
     }
@@ -76,6 +95,11 @@ public final class GarminSwimActivity extends GarminActivity {
     }
 
     public float getMovingTime() {
+        // Kept up to date along with the other session stats, the laps are only walked while edits are pending
+        if (lapMovingTimes != null && lapMovingTimes.length == getGarminLaps().size() && dirtyLaps.isEmpty()) {
+            return (float) sessionMovingTime;
+        }
+
         float movingTime = 0f;
         List<GarminLap> garminLaps = getGarminLaps();
 
@@ -100,90 +124,182 @@ public final class GarminSwimActivity extends GarminActivity {
         return movingTime;
     }
 
+    // Recalculates the stats of every lap, along with the session stats
     public void recalculateActivityStats() {
         LOGGER.log(Level.DEBUG, "Recalculating Garmin activity stats");
-        float sessionTotalDistance = 0f;
-        float sessionTotalSpeed = 0f;
-        float sessionMaxSpeed = 0f;
+        int numLaps = getGarminLaps().size();
+        lapDistances = new float[numLaps];
+        lapAvgSpeeds = new float[numLaps];
+        lapMaxSpeeds = new float[numLaps];
+        lapMovingTimes = new float[numLaps];
+        activeLaps = new boolean[numLaps];
+        sessionTotalDistance = 0;
+        sessionTotalSpeed = 0;
+        sessionMovingTime = 0;
+        numActiveLaps = 0;
+        lapMaxSpeedCounts.clear();
+        lapSummaries = null;
+        lapSummary = null;
+
+        dirtyLaps.set(0, numLaps);
+        recalculateDirtyLapStats();
+    }
+
+    // Flags a lap whose lengths (or stroke) were edited, to be picked up by the next recalculateDirtyLapStats()
+    public void markLapDirty(final int lapIndex) {
+        dirtyLaps.set(lapIndex);
+        if (lapSummaries != null && lapIndex < lapSummaries.length) {
+            lapSummaries[lapIndex] = null;
+        }
+        lapSummary = null;
+    }
+
+    // Recalculates only the laps that were marked as dirty, taking each one's previous contribution out of the session
+    // stats and adding its new one back in. Falls back to recalculating everything if the stats were never calculated
+    // or the laps have been replaced since.
+    public void recalculateDirtyLapStats() {
+        if (lapDistances == null || lapDistances.length != getGarminLaps().size()) {
+            recalculateActivityStats();
+            return;
+        }
+
         float poolLength = getPoolLength();
-        int activeLaps = 0;
-        List<GarminLap> garminLaps = getGarminLaps();
+        for (int i = dirtyLaps.nextSetBit(0); i >= 0; i = dirtyLaps.nextSetBit(i + 1)) {
+            recalculateLapStats(i, poolLength);
+        }
+        LOGGER.log(Level.DEBUG, "Recalculated the stats of " + dirtyLaps.cardinality() + " laps");
+        dirtyLaps.clear();
+
+        // Update the session metrics to account for the pool length
         SessionMesg sessionMesg = getSessionMesg();
+        float sessionMaxSpeed = 0f;
+        if (!lapMaxSpeedCounts.isEmpty()) {
+            sessionMaxSpeed = lapMaxSpeedCounts.lastKey();
+        }
+        sessionMesg.setTotalDistance((float) sessionTotalDistance);
+        LOGGER.log(Level.DEBUG, "Session total speed: " + sessionTotalSpeed + ", laps: " + numActiveLaps);
+        float sessionAvgSpeed = (float) (sessionTotalSpeed / numActiveLaps);
+        LOGGER.log(Level.DEBUG, "Session avg speed: " + sessionAvgSpeed);
+        sessionMesg.setAvgSpeed(sessionAvgSpeed);
+        sessionMesg.setMaxSpeed(sessionMaxSpeed);
+        sessionMesg.setEnhancedAvgSpeed(sessionAvgSpeed);
+        sessionMesg.setEnhancedMaxSpeed(sessionMaxSpeed);
+        sessionMesg.setAvgStrokeDistance(sessionMesg.getTotalDistance() / sessionMesg.getTotalCycles());
 
-        for (GarminLap garminLap : garminLaps) {
-            int lapNumActiveLengths = 0;
-            float lapMaxSpeed = 0f;
-            LapMesg lap = garminLap.getLapMessage();
+        // Update the session message obj
+        setSessionMesg(sessionMesg);
+    }
 
-            // Ignore any "rest" laps
-            if (lap.getSwimStroke() == null) {
-                continue;
-            }
-            activeLaps++;
+    private void recalculateLapStats(final int lapIndex, final float poolLength) {
+        // Take this lap's previous contribution back out of the session stats
+        if (activeLaps[lapIndex]) {
+            sessionTotalDistance -= lapDistances[lapIndex];
+            sessionTotalSpeed -= lapAvgSpeeds[lapIndex];
+            sessionMovingTime -= lapMovingTimes[lapIndex];
+            numActiveLaps--;
+            removeLapMaxSpeed(lapMaxSpeeds[lapIndex]);
+            activeLaps[lapIndex] = false;
+        }
 
-            for (LengthMesg length : garminLap.getLengthMessages()) {
-                // Ignore any non-active lengths
-                if (length.getLengthType() != LengthType.ACTIVE) {
-                    continue;
-                }
+        GarminLap garminLap = getGarminLap(lapIndex);
+        int lapNumActiveLengths = 0;
+        float lapMaxSpeed = 0f;
+        float lapMovingTime = 0f;
+        LapMesg lap = garminLap.getLapMessage();
 
-                // Update the number of "active lengths" in this lap
-                lapNumActiveLengths++;
+        // Ignore any "rest" laps
+        if (lap.getSwimStroke() == null) {
+            return;
+        }
 
-                // Update the avg speed to reflect the pool length
-                float avgSpeed = poolLength / length.getTotalTimerTime();
-                length.setAvgSpeed(avgSpeed);
+        for (LengthMesg length : garminLap.getLengthMessages()) {
+            // Ignore any non-active lengths
+            if (length.getLengthType() != LengthType.ACTIVE) {
+                continue;
+            }
 
-                // Update the lap max speed, if applicable
-                if (avgSpeed > lapMaxSpeed) {
-                    lapMaxSpeed = avgSpeed;
-                }
+            // Update the number of "active lengths" in this lap, and the time spent moving
+            lapNumActiveLengths++;
+            lapMovingTime += length.getTotalTimerTime();
 
-                // Update the session max speed, if applicable
-                if (avgSpeed > sessionMaxSpeed) {
-                    sessionMaxSpeed = avgSpeed;
-                }
+            // Update the avg speed to reflect the pool length
+            float avgSpeed = poolLength / length.getTotalTimerTime();
+            length.setAvgSpeed(avgSpeed);
+
+            // Update the lap max speed, if applicable
+            if (avgSpeed > lapMaxSpeed) {
+                lapMaxSpeed = avgSpeed;
             }
+        }
 
-            // Set the number of active lengths for this lap
-            lap.setNumActiveLengths(lapNumActiveLengths);
+        // Set the number of active lengths for this lap
+        lap.setNumActiveLengths(lapNumActiveLengths);
+
+        // Set the total lap distance
+        float lapTotalDistance = lap.getNumActiveLengths() * poolLength;
+        lap.setTotalDistance(lapTotalDistance);
+
+        // Calculate the avg/max speed metrics for this lap
+        float lapAvgSpeed = lapTotalDistance / lap.getTotalElapsedTime();
+        LOGGER.log(Level.DEBUG, "Lap avg speed: " + lapAvgSpeed);
+        lap.setAvgSpeed(lapAvgSpeed);
+        lap.setMaxSpeed(lapMaxSpeed);
+        lap.setEnhancedAvgSpeed(lapAvgSpeed);
+        lap.setEnhancedMaxSpeed(lapMaxSpeed);
+
+        // Set the lap avg stroke distance
+        float lapAvgStrokeDistance = lap.getTotalDistance() / lap.getTotalCycles();
+        lap.setAvgStrokeDistance(lapAvgStrokeDistance);
+
+        // Add the lap's new contribution to the session stats
+        activeLaps[lapIndex] = true;
+        lapDistances[lapIndex] = lapTotalDistance;
+        lapAvgSpeeds[lapIndex] = lapAvgSpeed;
+        lapMaxSpeeds[lapIndex] = lapMaxSpeed;
+        lapMovingTimes[lapIndex] = lapMovingTime;
+        sessionTotalDistance += lapTotalDistance;
+        sessionTotalSpeed += lapAvgSpeed;
+        sessionMovingTime += lapMovingTime;
+        numActiveLaps++;
+        Integer count = lapMaxSpeedCounts.get(lapMaxSpeed);
+        if (count == null) {
+            count = 0;
+        }
+        lapMaxSpeedCounts.put(lapMaxSpeed, count + 1);
+    }
 
-            // Set the total lap distance
-            float lapTotalDistance = lap.getNumActiveLengths() * poolLength;
-            lap.setTotalDistance(lapTotalDistance);
+    private void removeLapMaxSpeed(final float lapMaxSpeed) {
+        int count = lapMaxSpeedCounts.get(lapMaxSpeed);
+        if (count == 1) {
+            lapMaxSpeedCounts.remove(lapMaxSpeed);
+        } else {
+            lapMaxSpeedCounts.put(lapMaxSpeed, count - 1);
+        }
+    }
 
-            // Calculate the avg/max speed metrics for this lap
-            float lapAvgSpeed = lapTotalDistance / lap.getTotalElapsedTime();
-            lap.setAvgSpeed(lapAvgSpeed);
-            lap.setMaxSpeed(lapMaxSpeed);
-            lap.setEnhancedAvgSpeed(lapAvgSpeed);
-            lap.setEnhancedMaxSpeed(lapMaxSpeed);
+    // Sets the lap's stroke from its lengths' strokes, i.e. their common stroke or MIXED
+    public void updateLapSwimStroke(final int lapIndex) {
+        GarminLap garminLap = getGarminLap(lapIndex);
+        List<LengthMesg> lengths = garminLap.getLengthMessages();
 
-            // Increment the session distance
-            sessionTotalDistance += lapTotalDistance;
+        // Determine the displayed length "summary" stroke (MIXED, etc)
+        SwimStroke lapSummaryStroke = null;
+        for (int i = 0; i < lengths.size(); i++) {
+            LengthMesg length = lengths.get(i);
 
-            // Increment the session speed
-            LOGGER.log(Level.DEBUG, "Lap avg speed: " + lapAvgSpeed);
-            sessionTotalSpeed += lapAvgSpeed;
+            // Initial case
+            if (lapSummaryStroke == null) {
+                lapSummaryStroke = length.getSwimStroke();
+                continue;
+            }
 
-            // Set the lap avg stroke distance
-            float lapAvgStrokeDistance = lap.getTotalDistance() / lap.getTotalCycles();
-            lap.setAvgStrokeDistance(lapAvgStrokeDistance);
+            // If the current stroke is something difference, set the summary to "mixed"
+            if (lapSummaryStroke != length.getSwimStroke()) {
+                lapSummaryStroke = SwimStroke.MIXED;
+                break;
+            }
         }
-
-        // Update the session metrics to account for the pool length
-        sessionMesg.setTotalDistance(sessionTotalDistance);
-        LOGGER.log(Level.DEBUG, "Session total speed: " + sessionTotalSpeed + ", laps: " + activeLaps);
-        float sessionAvgSpeed = sessionTotalSpeed / activeLaps;
-        LOGGER.log(Level.DEBUG, "Session avg speed: " + sessionAvgSpeed);
-        sessionMesg.setAvgSpeed(sessionAvgSpeed);
-        sessionMesg.setMaxSpeed(sessionMaxSpeed);
-        sessionMesg.setEnhancedAvgSpeed(sessionAvgSpeed);
-        sessionMesg.setEnhancedMaxSpeed(sessionMaxSpeed);
-        sessionMesg.setAvgStrokeDistance(sessionMesg.getTotalDistance() / sessionMesg.getTotalCycles());
-
-        // Update the session message obj
-        setSessionMesg(sessionMesg);
+        garminLap.getLapMessage().setSwimStroke(lapSummaryStroke);
     }
 
     public void updateSwimmingPoolLength(final float newPoolLength) {
@@ -328,11 +444,42 @@ public final class GarminSwimActivity extends GarminActivity {
         return activeSwimLaps;
     }
 
+    // Rendered once per lap and kept until the lap is marked dirty (or everything is recalculated), since the editor
+    // redraws every lap after each prompt
     public String getLapSummary(final int lapIndex) {
-        AttributedStringBuilder asb = new AttributedStringBuilder();
         List<GarminLap> garminLaps = getGarminLaps();
+        if (lapSummaries == null || lapSummaries.length != garminLaps.size()) {
+            lapSummaries = new String[garminLaps.size()];
+            lapSummary = null;
+        }
+        if (lapSummaries[lapIndex] == null) {
+            lapSummaries[lapIndex] = renderLapSummary(garminLaps.get(lapIndex));
+        }
+        return lapSummaries[lapIndex];
+    }
+
+    public String getLapSummary() {
+        if (lapSummary != null && lapSummaries != null && lapSummaries.length == getGarminLaps().size()) {
+            return lapSummary;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        List<GarminLap> garminLaps = getGarminLaps();
+
+        for (int i = 0; i < garminLaps.size(); i++) {
+            String summary = getLapSummary(i);
+            sb.append(summary);
+            if (!summary.isEmpty()) {
+                sb.append(System.lineSeparator());
+                sb.append(System.lineSeparator());
+            }
+        }
+
+        lapSummary = sb.toString();
+        return lapSummary;
+    }
 
-        GarminLap garminLap = garminLaps.get(lapIndex);
+    private static String renderLapSummary(final GarminLap garminLap) {
         LapMesg lap = garminLap.getLapMessage();
         List<LengthMesg> lengths = garminLap.getLengthMessages();
 
@@ -342,51 +489,62 @@ public final class GarminSwimActivity extends GarminActivity {
         }
 
         // Summary portion
-        int internalLapIndex = lap.getMessageIndex() + 1;
-        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
-        asb.append(String.format("%-8s ", "[Lap " + internalLapIndex + "]"));
-        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
-        asb.append(String.format("%-10s ", lap.getNumLengths() + " lengths"));
-        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
-        asb.append(String.format("%-14s ", "(" + lap.getSwimStroke() + ")"));
-        asb.append(String.format("%s ", Utils.convertFloatToStringDate(lap.getTotalTimerTime())));
-        asb.style(AttributedStyle.BOLD.foreground(AttributedStyle.CYAN));
-        asb.append(String.format("(avg %s/100m, best %s/100m)%n",
-                Utils.convertFloatToStringDate(Utils.PACE_PER_HUNDRED_METERS / lap.getAvgSpeed()),
-                Utils.convertFloatToStringDate(Utils.PACE_PER_HUNDRED_METERS / lap.getMaxSpeed())));
+        AttributedStringBuilder asb = new AttributedStringBuilder();
+        appendLapHeader(asb, lap);
+        asb.append(System.lineSeparator());
 
         // Stroke list
         asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
-        asb.append(String.format("%-8s Strokes: ", ""));
+        asb.append("         Strokes: ");
         asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
-        for (Iterator i = lengths.iterator(); i.hasNext();) {
-            LengthMesg len = (LengthMesg) i.next();
+        for (int i = 0; i < lengths.size(); i++) {
+            LengthMesg len = lengths.get(i);
+            if (i > 0) {
+                asb.append(",");
+            }
             if (len.getLengthType() != LengthType.ACTIVE) {
                 asb.append(GarminSwimStroke.getByValue(SwimStroke.INVALID.getValue()).toString());
             } else {
                 asb.append(GarminSwimStroke.getByValue(len.getSwimStroke().getValue()).toString());
             }
-            if (i.hasNext()) {
-                asb.append(",");
-            }
         }
 
         return asb.toAnsi();
     }
 
-    public String getLapSummary() {
+    // e.g. [Lap 7] 8 lengths (MIXED) 04:16 (avg 03:09/100m, best 02:11/100m)
+    @SuppressWarnings("checkstyle:MagicNumber")
+    static void appendLapHeader(final AttributedStringBuilder asb, final LapMesg lap) {
         StringBuilder sb = new StringBuilder();
-        List<GarminLap> garminLaps = getGarminLaps();
+        int internalLapIndex = lap.getMessageIndex() + 1;
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
+        sb.append("[Lap ").append(internalLapIndex).append(']');
+        appendPadded(asb, sb, 8);
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
+        sb.setLength(0);
+        sb.append(lap.getNumLengths()).append(" lengths");
+        appendPadded(asb, sb, 10);
+        asb.style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN));
+        sb.setLength(0);
+        sb.append('(').append(lap.getSwimStroke()).append(')');
+        appendPadded(asb, sb, 14);
+        sb.setLength(0);
+        DurationFormatter.appendDuration(sb, lap.getTotalTimerTime()).append(' ');
+        asb.append(sb);
+        asb.style(AttributedStyle.BOLD.foreground(AttributedStyle.CYAN));
+        sb.setLength(0);
+        sb.append("(avg ");
+        DurationFormatter.appendPace(sb, lap.getAvgSpeed()).append("/100m, best ");
+        DurationFormatter.appendPace(sb, lap.getMaxSpeed()).append("/100m)");
+        asb.append(sb);
+    }
 
-        for (int i = 0; i < garminLaps.size(); i++) {
-            String summary = getLapSummary(i);
-            sb.append(summary);
-            if (!summary.isEmpty()) {
-                sb.append(System.lineSeparator());
-                sb.append(System.lineSeparator());
-            }
+    // Left-justified within the given width, followed by a space (i.e. "%-Ns ")
+    private static void appendPadded(final AttributedStringBuilder asb, final CharSequence value, final int width) {
+        asb.append(value);
+        for (int i = value.length(); i < width; i++) {
+            asb.append(' ');
         }
-
-        return sb.toString();
+        asb.append(' ');
     }
 }
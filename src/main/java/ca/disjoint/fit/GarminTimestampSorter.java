@@ -0,0 +1,92 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.garmin.fit.Mesg;
+import com.garmin.fit.Fit;
+
+// Stable sort of FIT messages by timestamp. Every timestamp is read once up front and packed together with the
+// message's original position into a single long, so sorting those primitives needs no comparator, doesn't allocate
+// per comparison, and keeps messages with equal timestamps in their original order. Timestamps past 2^31 would
+// shift into the sign bit, so it's flipped to keep the signed sort in unsigned order; the index bits are untouched.
+public final class GarminTimestampSorter {
+    private static final Logger LOGGER = LogManager.getLogger(GarminTimestampSorter.class);
+    private static final int INDEX_BITS = 32;
+    private static final long INDEX_MASK = 0xFFFFFFFFL;
+    private static final long MAX_TIMESTAMP = 0xFFFFFFFFL;
+
+    protected GarminTimestampSorter() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static <T extends Mesg> void sort(final List<T> mesgs) {
+        int size = mesgs.size();
+        if (size < 2) {
+            return;
+        }
+
+        long[] timestamps = new long[size];
+        for (int i = 0; i < size; i++) {
+            Long timestamp = mesgs.get(i).getFieldLongValue(Fit.FIELD_NUM_TIMESTAMP);
+            if (timestamp == null) {
+                throw new RuntimeException("Unable to sort " + mesgs.get(i).getName() + " message without a timestamp");
+            }
+            if (timestamp < 0 || timestamp > MAX_TIMESTAMP) {
+                // FIT timestamps are uint32 values, anything else can't be packed
+                LOGGER.log(Level.DEBUG, "Timestamp " + timestamp + " out of range, falling back to comparator sort");
+                mesgs.sort(new GarminDateTimeComparator<T>());
+                return;
+            }
+            timestamps[i] = timestamp;
+        }
+        int[] order = sortedOrder(timestamps, size);
+
+        Object[] original = mesgs.toArray();
+        for (int i = 0; i < size; i++) {
+            @SuppressWarnings("unchecked")
+            T mesg = (T) original[order[i]];
+            mesgs.set(i, mesg);
+        }
+    }
+
+    // Stable timestamp order of the first size timestamps, as indexes into the given array
+    public static int[] sortedOrder(final long[] timestamps, final int size) {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            if (timestamps[i] < 0 || timestamps[i] > MAX_TIMESTAMP) {
+                throw new RuntimeException("Timestamp " + timestamps[i] + " is out of range");
+            }
+            keys[i] = ((timestamps[i] << INDEX_BITS) | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (int) (keys[i] & INDEX_MASK);
+        }
+        return order;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.ArrayList;
+
+import com.garmin.fit.Decode;
+import com.garmin.fit.Fit;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.MesgNum;
+import com.garmin.fit.RecordMesg;
+
+// Merges the HR samples of several sources, in priority order, into a single series. All the sources are walked
+// together one second at a time: each second, the highest priority source that is still recording (i.e. has had an
+// accepted sample within its max-gap) decides, and its sample is used if it has one for that second. A source that
+// drops out hands over to the next one. Sources are read as streams, so only the fused series is held in memory
+// (besides any preloaded sources).
+public final class HrFusion {
+    private static final Logger LOGGER = LogManager.getLogger(HrFusion.class);
+
+    private final List<HrSource> sources;
+
+    public HrFusion(final List<HrSource> sources) {
+        this.sources = sources;
+    }
+
+    // Iterates over the HR samples of a source in timestamp order
+    private abstract static class Cursor implements Closeable {
+        private long timestamp;
+        private short heartRate;
+
+        abstract boolean advance() throws IOException;
+
+        final void setSample(final long ts, final short hr) {
+            timestamp = ts;
+            heartRate = hr;
+        }
+
+        // Called once the fusion is done with the source, whether or not all of its samples were used
+        void finish() throws IOException {
+        }
+
+        public void close() throws IOException {
+        }
+    }
+
+    private static final class ColumnsCursor extends Cursor {
+        private final RecordColumns samples;
+        private final int[] order;
+        private int position = -1;
+
+        ColumnsCursor(final RecordColumns samples) {
+            this.samples = samples;
+            if (samples.isSorted()) {
+                this.order = null;
+            } else {
+                this.order = samples.getSortedOrder();
+            }
+        }
+
+        boolean advance() {
+            while (++position < samples.size()) {
+                int index = position;
+                if (order != null) {
+                    index = order[position];
+                }
+                if (samples.getHeartRate(index) != RecordColumns.MISSING_SHORT) {
+                    setSample(samples.getTimestamp(index), samples.getHeartRate(index));
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Decodes the file one byte at a time, only as far as the next record with a heart rate. The file is projected
+    // down to its HR samples on the way to the decoder, and its CRC is checked as the bytes go by.
+    private static final class FileCursor extends Cursor {
+        private final HrSource source;
+        private FitIntegrityInputStream in;
+        private FitProjectionFilter filter;
+        private InputStream fitData;
+        private Decode decode;
+        private long numSamples;
+        private long numToSkip;
+
+        FileCursor(final HrSource source) throws IOException {
+            this.source = source;
+            open(true);
+        }
+
+        private void open(final boolean projected) throws IOException {
+            in = new FitIntegrityInputStream(Utils.openFitInputStream(source.getFile()));
+            decode = new Decode();
+            if (projected) {
+                filter = new FitProjectionFilter(HrSource.getProjection());
+                fitData = filter.stream(in);
+            } else {
+                filter = null;
+                fitData = in;
+            }
+        }
+
+        boolean advance() throws IOException {
+            int b;
+            while ((b = fitData.read()) != -1) {
+                Decode.RETURN ret = decode.read((byte) b);
+                if (ret == Decode.RETURN.END_OF_FILE) {
+                    return false;
+                }
+                if (ret != Decode.RETURN.MESG || decode.getMesg().getNum() != MesgNum.RECORD) {
+                    continue;
+                }
+
+                Mesg mesg = decode.getMesg();
+                Long ts = mesg.getFieldLongValue(Fit.FIELD_NUM_TIMESTAMP);
+                Short hr = mesg.getFieldShortValue(RecordMesg.HeartRateFieldNum);
+                if (ts != null && hr != null) {
+                    if (numToSkip > 0) {
+                        numToSkip--;
+                        continue;
+                    }
+                    numSamples++;
+                    setSample(ts, hr);
+                    return true;
+                }
+            }
+
+            if (filter != null && !filter.isProjectionExact()) {
+                // Start over without the projection, skipping the samples that were already handed out
+                LOGGER.log(Level.DEBUG, "Decoding all of HR source " + source.getFile().getPath());
+                in.close();
+                open(false);
+                numToSkip = numSamples;
+                return advance();
+            }
+            return false;
+        }
+
+        // Reads the rest of the file, so that its CRC can be verified
+        @Override
+        void finish() throws IOException {
+            in.drain();
+            if (!in.isIntegrityValid()) {
+                throw new RuntimeException("FIT file integrity check failed");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class SourceState {
+        private final HrSource source;
+        private final Cursor cursor;
+        private boolean hasNext;
+        private boolean hasLast;
+        private long lastTimestamp;
+        private short lastHeartRate;
+        private long numUsed;
+        private long numRejected;
+
+        SourceState(final HrSource source, final Cursor cursor) {
+            this.source = source;
+            this.cursor = cursor;
+        }
+
+        // Takes in all the samples up to (and including) the given second
+        void consume(final long timestamp) throws IOException {
+            while (hasNext && cursor.timestamp <= timestamp) {
+                if (accept(cursor.timestamp, cursor.heartRate)) {
+                    hasLast = true;
+                    lastTimestamp = cursor.timestamp;
+                    lastHeartRate = cursor.heartRate;
+                } else {
+                    numRejected++;
+                }
+                hasNext = cursor.advance();
+            }
+        }
+
+        private boolean accept(final long timestamp, final short heartRate) {
+            if (!source.isValid(heartRate)) {
+                return false;
+            }
+            if (!hasLast) {
+                return true;
+            }
+            if (timestamp < lastTimestamp) {
+                return false;
+            }
+            long seconds = Math.max(timestamp - lastTimestamp, 1);
+            return Math.abs(heartRate - lastHeartRate) <= (long) source.getMaxDelta() * seconds;
+        }
+
+        boolean isRecording(final long timestamp) {
+            return hasLast && timestamp - lastTimestamp <= source.getMaxGap();
+        }
+    }
+
+    // Fuses the samples in [start, end], which is left with gaps wherever no source had a sample
+    public RecordColumns fuse(final long start, final long end) throws IOException {
+        List<SourceState> states = new ArrayList<SourceState>();
+        try {
+            long first = Long.MAX_VALUE;
+            for (HrSource source : sources) {
+                Cursor cursor;
+                if (source.getSamples() != null) {
+                    cursor = new ColumnsCursor(source.getSamples());
+                } else {
+                    cursor = new FileCursor(source);
+                }
+                SourceState state = new SourceState(source, cursor);
+                states.add(state);
+
+                // Skip ahead to the start, keeping the samples still within max-gap of it
+                state.hasNext = cursor.advance();
+                long from = start;
+                if (start > Long.MIN_VALUE + source.getMaxGap()) {
+                    from = start - source.getMaxGap();
+                }
+                while (state.hasNext && cursor.timestamp < from) {
+                    state.hasNext = cursor.advance();
+                }
+                if (state.hasNext) {
+                    first = Math.min(first, cursor.timestamp);
+                }
+            }
+
+            RecordColumns fused = new RecordColumns();
+            for (long ts = Math.max(first, start); ts <= end; ts++) {
+                SourceState active = null;
+                for (SourceState state : states) {
+                    state.consume(ts);
+                    if (active == null && state.isRecording(ts)) {
+                        active = state;
+                    }
+                }
+                if (active != null && active.lastTimestamp == ts) {
+                    fused.add(ts, active.lastHeartRate);
+                    active.numUsed++;
+                }
+            }
+
+            for (SourceState state : states) {
+                state.cursor.finish();
+                LOGGER.log(Level.DEBUG, String.format("HR source %s: %d samples used, %d rejected",
+                        state.source.getFile().getPath(), state.numUsed, state.numRejected));
+            }
+            return fused;
+        } finally {
+            for (SourceState state : states) {
+                state.cursor.close();
+            }
+        }
+    }
+}
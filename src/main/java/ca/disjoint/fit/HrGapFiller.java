@@ -0,0 +1,141 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Turns HR samples into a 1 Hz series, filling in every missing second between two samples with a value picked by the
+// fill strategy. This is a single pass over the (primitive) timestamp & HR columns, writing straight into the output
+// columns. Samples without a heart rate are ignored.
+public final class HrGapFiller {
+    private static final Logger LOGGER = LogManager.getLogger(HrGapFiller.class);
+
+    // Picks the heart rate for a missing second, given the samples on either side of the gap
+    public interface FillStrategy {
+        short getHeartRate(long prevTimestamp, short prevHeartRate, long nextTimestamp, short nextHeartRate,
+                long timestamp);
+    }
+
+    public enum Fill implements FillStrategy {
+        // Straight line between the two samples
+        LINEAR {
+            public short getHeartRate(final long prevTimestamp, final short prevHeartRate, final long nextTimestamp,
+                    final short nextHeartRate, final long timestamp) {
+                double fraction = (double) (timestamp - prevTimestamp) / (nextTimestamp - prevTimestamp);
+                return (short) Math.round(prevHeartRate + (nextHeartRate - prevHeartRate) * fraction);
+            }
+        },
+        // Repeat the last known heart rate
+        HOLD {
+            public short getHeartRate(final long prevTimestamp, final short prevHeartRate, final long nextTimestamp,
+                    final short nextHeartRate, final long timestamp) {
+                return prevHeartRate;
+            }
+        },
+        // Random value between the two samples (inclusive)
+        RANDOM {
+            public short getHeartRate(final long prevTimestamp, final short prevHeartRate, final long nextTimestamp,
+                    final short nextHeartRate, final long timestamp) {
+                return (short) ThreadLocalRandom.current().nextInt(Math.min(prevHeartRate, nextHeartRate),
+                        Math.max(prevHeartRate, nextHeartRate) + 1);
+            }
+        }
+    }
+
+    private final FillStrategy strategy;
+
+    public HrGapFiller(final FillStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public RecordColumns fill(final RecordColumns samples) {
+        return fill(samples, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Only fills in the [start, end] window, which is found by binary search. The samples just outside the window are
+    // still used to fill in its edges.
+    public RecordColumns fill(final RecordColumns samples, final long start, final long end) {
+        int[] order = null;
+        if (!samples.isSorted()) {
+            LOGGER.log(Level.DEBUG, "HR samples are not in timestamp order, sorting them first");
+            order = samples.getSortedOrder();
+        }
+
+        int from = Math.max(search(samples, order, start, false) - 1, 0);
+        int to = Math.min(search(samples, order, end, true) + 1, samples.size());
+        LOGGER.log(Level.DEBUG, "Filling in HR samples " + from + " to " + to + " of " + samples.size());
+
+        RecordColumns filled = new RecordColumns(Math.max(to - from, 0));
+        long prevTimestamp = 0;
+        short prevHeartRate = RecordColumns.MISSING_SHORT;
+        long numFilled = 0;
+        for (int i = from; i < to; i++) {
+            int index = getIndex(order, i);
+            short heartRate = samples.getHeartRate(index);
+            if (heartRate == RecordColumns.MISSING_SHORT) {
+                continue;
+            }
+
+            long timestamp = samples.getTimestamp(index);
+            if (prevHeartRate != RecordColumns.MISSING_SHORT) {
+                for (long ts = Math.max(prevTimestamp + 1, start); ts < timestamp && ts <= end; ts++) {
+                    filled.add(ts, strategy.getHeartRate(prevTimestamp, prevHeartRate, timestamp, heartRate, ts));
+                    numFilled++;
+                }
+            }
+            if (timestamp >= start && timestamp <= end) {
+                filled.add(timestamp, heartRate);
+            }
+            prevTimestamp = timestamp;
+            prevHeartRate = heartRate;
+        }
+
+        LOGGER.log(Level.DEBUG,
+                "Filled in " + numFilled + " missing seconds of HR data, " + filled.size() + " samples in total");
+        return filled;
+    }
+
+    private static int getIndex(final int[] order, final int position) {
+        if (order == null) {
+            return position;
+        }
+        return order[position];
+    }
+
+    // Position of the first sample at (or, if after is set, past) the given timestamp, in timestamp order
+    private static int search(final RecordColumns samples, final int[] order, final long timestamp,
+            final boolean after) {
+        int low = 0;
+        int high = samples.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long ts = samples.getTimestamp(getIndex(order, mid));
+            if (ts < timestamp || (after && ts == timestamp)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import com.garmin.fit.MesgNum;
+import com.garmin.fit.RecordMesg;
+
+// A FIT file to take HR samples from, along with the rules a sample has to pass to be used. Specified on the command
+// line as FILE[,RULE=VALUE...], e.g. "chest-strap.fit,min=40,max=200,max-delta=15,max-gap=3".
+public final class HrSource {
+    private static final Logger LOGGER = LogManager.getLogger(HrSource.class);
+    private static final int DEFAULT_MIN_HEART_RATE = 30;
+    private static final int DEFAULT_MAX_HEART_RATE = 240;
+    private static final int DEFAULT_MAX_GAP = 5;
+
+    private final File file;
+    private int minHeartRate = DEFAULT_MIN_HEART_RATE;
+    private int maxHeartRate = DEFAULT_MAX_HEART_RATE;
+    private int maxDelta = Integer.MAX_VALUE;
+    private int maxGap = DEFAULT_MAX_GAP;
+    private RecordColumns samples;
+
+    public HrSource(final File file) {
+        this.file = file;
+    }
+
+    public static HrSource parse(final String spec) {
+        String[] tokens = spec.split(",");
+        HrSource source = new HrSource(new File(tokens[0]));
+        for (int i = 1; i < tokens.length; i++) {
+            String[] rule = tokens[i].split("=", 2);
+            if (rule.length != 2) {
+                throw new RuntimeException("Invalid HR data rule \"" + tokens[i] + "\" for " + tokens[0]);
+            }
+
+            int value;
+            try {
+                value = Integer.parseInt(rule[1].trim());
+            } catch (NumberFormatException ex) {
+                throw new RuntimeException("Invalid value for HR data rule \"" + tokens[i] + "\" for " + tokens[0]);
+            }
+            if (value < 0) {
+                throw new RuntimeException("HR data rule \"" + tokens[i] + "\" for " + tokens[0] + " is negative");
+            }
+
+            String name = rule[0].trim();
+            if (name.equals("min")) {
+                source.minHeartRate = value;
+            } else if (name.equals("max")) {
+                source.maxHeartRate = value;
+            } else if (name.equals("max-delta")) {
+                source.maxDelta = value;
+            } else if (name.equals("max-gap")) {
+                source.maxGap = value;
+            } else {
+                throw new RuntimeException("Unknown HR data rule \"" + name + "\" for " + tokens[0]);
+            }
+        }
+        LOGGER.log(Level.DEBUG, "HR source " + source);
+        return source;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Heart rates outside of [min, max] are dropped
+    public int getMinHeartRate() {
+        return minHeartRate;
+    }
+
+    public int getMaxHeartRate() {
+        return maxHeartRate;
+    }
+
+    // Samples that changed by more than this many bpm per second since the previous sample are dropped
+    public int getMaxDelta() {
+        return maxDelta;
+    }
+
+    // Number of seconds the source is still considered to be recording after its last (accepted) sample
+    public int getMaxGap() {
+        return maxGap;
+    }
+
+    public boolean isValid(final short heartRate) {
+        return heartRate >= minHeartRate && heartRate <= maxHeartRate;
+    }
+
+    // Only the timestamps and heart rates of the records are needed from an HR file, everything else is skipped
+    static FitProjection getProjection() {
+        return new FitProjection().include(MesgNum.RECORD, RecordMesg.TimestampFieldNum, RecordMesg.HeartRateFieldNum);
+    }
+
+    // Decodes all the HR samples up front, so that they can be used over and over again (e.g. for a batch of swims)
+    public void preload() throws FileNotFoundException, IOException {
+        GarminGenericActivity hrActivity = new GarminGenericActivity();
+        hrActivity.enableRecordColumns();
+        GarminActivityLoader hrLoader = new GarminActivityLoader(file, hrActivity, getProjection());
+        samples = hrActivity.getRecordColumns();
+        LOGGER.log(Level.DEBUG, "Preloaded " + samples.size() + " samples from HR source " + file.getName());
+    }
+
+    // Uses the given samples rather than the ones in the file
+    public void setSamples(final RecordColumns samples) {
+        this.samples = samples;
+    }
+
+    // The preloaded samples, if any
+    public RecordColumns getSamples() {
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (min=%d, max=%d, max-delta=%d, max-gap=%d)", file.getPath(), minHeartRate,
+                maxHeartRate, maxDelta, maxGap);
+    }
+}
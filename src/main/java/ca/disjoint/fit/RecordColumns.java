@@ -0,0 +1,247 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.garmin.fit.DateTime;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.RecordMesg;
+
+// Columnar storage for record samples, one primitive array per field. This only holds on to the timestamp, heart
+// rate, cadence, speed, distance and position fields; any other record fields are dropped when a sample is added.
+// Speed & distance are kept in their raw FIT units (mm/s & cm) so that they can be written back out unchanged.
+public final class RecordColumns {
+    public static final short MISSING_SHORT = -1;
+    public static final int MISSING_INT = -1;
+    public static final int MISSING_POSITION = Integer.MAX_VALUE;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double SPEED_SCALE = 1000.0;
+    private static final double DISTANCE_SCALE = 100.0;
+
+    private long[] timestamps;
+    private short[] heartRates;
+    private short[] cadences;
+    private int[] speeds;
+    private int[] distances;
+    private int[] positionLats;
+    private int[] positionLongs;
+    private int size;
+    private boolean sorted;
+
+    public RecordColumns() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public RecordColumns(final int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        timestamps = new long[capacity];
+        heartRates = new short[capacity];
+        cadences = new short[capacity];
+        speeds = new int[capacity];
+        distances = new int[capacity];
+        positionLats = new int[capacity];
+        positionLongs = new int[capacity];
+        sorted = true;
+    }
+
+    // Takes either a RecordMesg or a record message as it comes out of the decoder
+    public void add(final Mesg mesg) {
+        ensureCapacity(size + 1);
+        timestamps[size] = mesg.getFieldLongValue(RecordMesg.TimestampFieldNum);
+        heartRates[size] = toShort(mesg.getFieldShortValue(RecordMesg.HeartRateFieldNum));
+        cadences[size] = toShort(mesg.getFieldShortValue(RecordMesg.CadenceFieldNum));
+        speeds[size] = toRaw(mesg.getFieldDoubleValue(RecordMesg.SpeedFieldNum), SPEED_SCALE);
+        distances[size] = toRaw(mesg.getFieldDoubleValue(RecordMesg.DistanceFieldNum), DISTANCE_SCALE);
+        positionLats[size] = toPosition(mesg.getFieldIntegerValue(RecordMesg.PositionLatFieldNum));
+        positionLongs[size] = toPosition(mesg.getFieldIntegerValue(RecordMesg.PositionLongFieldNum));
+
+        if (size > 0 && timestamps[size] < timestamps[size - 1]) {
+            sorted = false;
+        }
+        size++;
+    }
+
+    // Adds a sample that only has a timestamp & heart rate
+    public void add(final long timestamp, final short heartRate) {
+        ensureCapacity(size + 1);
+        timestamps[size] = timestamp;
+        heartRates[size] = heartRate;
+        cadences[size] = MISSING_SHORT;
+        speeds[size] = MISSING_INT;
+        distances[size] = MISSING_INT;
+        positionLats[size] = MISSING_POSITION;
+        positionLongs[size] = MISSING_POSITION;
+
+        if (size > 0 && timestamp < timestamps[size - 1]) {
+            sorted = false;
+        }
+        size++;
+    }
+
+    public void addAll(final RecordColumns other) {
+        if (other.size == 0) {
+            return;
+        }
+
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+        System.arraycopy(other.heartRates, 0, heartRates, size, other.size);
+        System.arraycopy(other.cadences, 0, cadences, size, other.size);
+        System.arraycopy(other.speeds, 0, speeds, size, other.size);
+        System.arraycopy(other.distances, 0, distances, size, other.size);
+        System.arraycopy(other.positionLats, 0, positionLats, size, other.size);
+        System.arraycopy(other.positionLongs, 0, positionLongs, size, other.size);
+
+        if (!other.sorted || (size > 0 && other.timestamps[0] < timestamps[size - 1])) {
+            sorted = false;
+        }
+        size += other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Whether the samples were added in (non-decreasing) timestamp order
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public void clear() {
+        size = 0;
+        sorted = true;
+    }
+
+    public long getTimestamp(final int index) {
+        return timestamps[index];
+    }
+
+    public short getHeartRate(final int index) {
+        return heartRates[index];
+    }
+
+    public short getCadence(final int index) {
+        return cadences[index];
+    }
+
+    public int getRawSpeed(final int index) {
+        return speeds[index];
+    }
+
+    public int getRawDistance(final int index) {
+        return distances[index];
+    }
+
+    public int getPositionLat(final int index) {
+        return positionLats[index];
+    }
+
+    public int getPositionLong(final int index) {
+        return positionLongs[index];
+    }
+
+    // Builds a new RecordMesg for the given sample, nothing is cached
+    public RecordMesg toRecordMesg(final int index) {
+        RecordMesg mesg = new RecordMesg();
+        mesg.setTimestamp(new DateTime(timestamps[index]));
+        if (positionLats[index] != MISSING_POSITION) {
+            mesg.setPositionLat(positionLats[index]);
+        }
+        if (positionLongs[index] != MISSING_POSITION) {
+            mesg.setPositionLong(positionLongs[index]);
+        }
+        if (heartRates[index] != MISSING_SHORT) {
+            mesg.setHeartRate(heartRates[index]);
+        }
+        if (cadences[index] != MISSING_SHORT) {
+            mesg.setCadence(cadences[index]);
+        }
+        if (distances[index] != MISSING_INT) {
+            mesg.setFieldValue(RecordMesg.DistanceFieldNum, distances[index] / DISTANCE_SCALE);
+        }
+        if (speeds[index] != MISSING_INT) {
+            mesg.setFieldValue(RecordMesg.SpeedFieldNum, speeds[index] / SPEED_SCALE);
+        }
+        return mesg;
+    }
+
+    // Stable timestamp order of the samples
+    public int[] getSortedOrder() {
+        return GarminTimestampSorter.sortedOrder(timestamps, size);
+    }
+
+    // Read-only view that materializes each RecordMesg on access. Every get() builds a new message, so changes made to
+    // one through its setters are not written back to the columns.
+    public List<RecordMesg> asRecordMessages() {
+        return new AbstractList<RecordMesg>() {
+            @Override
+            public RecordMesg get(final int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+                }
+                return toRecordMesg(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, timestamps.length + (timestamps.length >> 1));
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        heartRates = Arrays.copyOf(heartRates, newCapacity);
+        cadences = Arrays.copyOf(cadences, newCapacity);
+        speeds = Arrays.copyOf(speeds, newCapacity);
+        distances = Arrays.copyOf(distances, newCapacity);
+        positionLats = Arrays.copyOf(positionLats, newCapacity);
+        positionLongs = Arrays.copyOf(positionLongs, newCapacity);
+    }
+
+    private static short toShort(final Short value) {
+        if (value == null) {
+            return MISSING_SHORT;
+        }
+        return value;
+    }
+
+    private static int toRaw(final Double value, final double scale) {
+        if (value == null) {
+            return MISSING_INT;
+        }
+        return (int) Math.round(value * scale);
+    }
+
+    private static int toPosition(final Integer value) {
+        if (value == null) {
+            return MISSING_POSITION;
+        }
+        return value;
+    }
+}
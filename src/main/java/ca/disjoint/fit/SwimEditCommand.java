@@ -0,0 +1,205 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ca.disjoint.fit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Level;
+
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.LengthType;
+import com.garmin.fit.SwimStroke;
+
+// A stroke edit that applies to a whole range of lengths in one go:
+//
+//   [lap N[-M] [=]] [all | N | N-M | fill-invalid] STROKE
+//
+// e.g. "3-20 fr", "all br", "lap 5 = im" or "fill-invalid fr". Lengths (and laps) are numbered from 1. Without a lap,
+// the command applies to the laps the caller provides (the lap being edited, or every active lap). "fill-invalid" only
+// touches the lengths that don't have a stroke yet. STROKE is a stroke name or its abbreviation (FR, BK, BR, FL...).
+public final class SwimEditCommand {
+    private static final Logger LOGGER = LogManager.getLogger(SwimEditCommand.class);
+    private static final String ALL = "all";
+    private static final String FILL_INVALID = "fill-invalid";
+    private static final String LAP = "lap";
+
+    private final String command;
+    private final SwimStroke stroke;
+    private final int firstLap;
+    private final int lastLap;
+    private final int firstLength;
+    private final int lastLength;
+    private final boolean fillInvalid;
+
+    private SwimEditCommand(final String command, final SwimStroke stroke, final int[] laps, final int[] lengths,
+            final boolean fillInvalid) {
+        this.command = command;
+        this.stroke = stroke;
+        this.firstLap = laps[0];
+        this.lastLap = laps[1];
+        this.firstLength = lengths[0];
+        this.lastLength = lengths[1];
+        this.fillInvalid = fillInvalid;
+    }
+
+    // Whether the input looks like a command, rather than a lone lap number or stroke
+    public static boolean isCommand(final String input) {
+        String trimmed = input.trim();
+        return trimmed.split("\\s+").length > 1;
+    }
+
+    public static SwimEditCommand parse(final String input) {
+        List<String> tokens = new ArrayList<String>(
+                Arrays.asList(input.toLowerCase().replace("=", " = ").trim().split("\\s+")));
+        int[] laps = { 0, 0 };
+        int[] lengths = { 0, 0 };
+        boolean fillInvalid = false;
+
+        if (tokens.size() < 2) {
+            throw new IllegalArgumentException("Incomplete edit command \"" + input.trim() + "\"");
+        }
+        if (tokens.get(0).equals(LAP)) {
+            laps = parseRange(tokens.get(1), input);
+            tokens = tokens.subList(2, tokens.size());
+            if (!tokens.isEmpty() && tokens.get(0).equals("=")) {
+                tokens = tokens.subList(1, tokens.size());
+            }
+        }
+
+        if (tokens.isEmpty() || tokens.size() > 2) {
+            throw new IllegalArgumentException("Invalid edit command \"" + input.trim() + "\"");
+        }
+        if (tokens.size() == 2) {
+            String selector = tokens.get(0);
+            if (selector.equals(FILL_INVALID)) {
+                fillInvalid = true;
+            } else if (!selector.equals(ALL)) {
+                lengths = parseRange(selector, input);
+            }
+        }
+
+        SwimStroke stroke = parseStroke(tokens.get(tokens.size() - 1));
+        return new SwimEditCommand(input.trim(), stroke, laps, lengths, fillInvalid);
+    }
+
+    // "N" or "N-M", numbered from 1
+    private static int[] parseRange(final String range, final String input) {
+        String[] bounds = range.split("-", 2);
+        try {
+            int first = Integer.parseInt(bounds[0]);
+            int last = first;
+            if (bounds.length == 2) {
+                last = Integer.parseInt(bounds[1]);
+            }
+            if (first < 1 || last < first) {
+                throw new IllegalArgumentException("Invalid range \"" + range + "\" in \"" + input.trim() + "\"");
+            }
+            return new int[] { first, last };
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid range \"" + range + "\" in \"" + input.trim() + "\"");
+        }
+    }
+
+    public static SwimStroke parseStroke(final String input) {
+        String name = input.trim().toUpperCase();
+        for (GarminSwimStroke abbreviation : GarminSwimStroke.values()) {
+            if (abbreviation.toString().equals(name)) {
+                return SwimStroke.getByValue(abbreviation.value);
+            }
+        }
+        try {
+            return SwimStroke.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid stroke \"" + input.trim() + "\"");
+        }
+    }
+
+    public SwimStroke getStroke() {
+        return stroke;
+    }
+
+    // Whether the command names its own laps, rather than applying to the ones the caller provides
+    public boolean hasLaps() {
+        return firstLap > 0;
+    }
+
+    // Applies the edit, returning the number of lengths that were changed. Each lap that was touched is recalculated
+    // once, after all of its lengths have been set.
+    public int apply(final GarminSwimActivity activity, final List<Integer> defaultLaps) {
+        List<Integer> laps = defaultLaps;
+        if (firstLap > 0) {
+            laps = new ArrayList<Integer>();
+            List<Integer> activeLaps = activity.getActiveSwimLaps();
+            for (int lap = firstLap; lap <= lastLap; lap++) {
+                if (!activeLaps.contains(lap - 1)) {
+                    throw new IllegalArgumentException("Lap " + lap + " cannot be edited");
+                }
+                laps.add(lap - 1);
+            }
+        }
+        if (firstLength > 0 && laps.size() != 1) {
+            throw new IllegalArgumentException("A length range needs a single lap, e.g. \"lap 2 " + command + "\"");
+        }
+
+        int numChanged = 0;
+        for (int lapIndex : laps) {
+            List<LengthMesg> lengths = activity.getGarminLap(lapIndex).getLengthMessages();
+            int from = 0;
+            int to = lengths.size();
+            if (firstLength > 0) {
+                if (lastLength > lengths.size()) {
+                    throw new IllegalArgumentException(
+                            "Lap " + (lapIndex + 1) + " only has " + lengths.size() + " lengths");
+                }
+                from = firstLength - 1;
+                to = lastLength;
+            }
+
+            int numLapChanges = 0;
+            for (int i = from; i < to; i++) {
+                LengthMesg length = lengths.get(i);
+                if (fillInvalid && length.getLengthType() == LengthType.ACTIVE
+                        && length.getSwimStroke() != SwimStroke.INVALID) {
+                    continue;
+                }
+                length.setSwimStroke(stroke);
+                length.setLengthType(LengthType.ACTIVE);
+                numLapChanges++;
+            }
+            if (numLapChanges > 0) {
+                activity.updateLapSwimStroke(lapIndex);
+                activity.markLapDirty(lapIndex);
+                numChanged += numLapChanges;
+            }
+        }
+        activity.recalculateDirtyLapStats();
+
+        LOGGER.log(Level.DEBUG, "\"" + command + "\" changed " + numChanged + " lengths");
+        return numChanged;
+    }
+
+    @Override
+    public String toString() {
+        return command;
+    }
+}
@@ -29,10 +29,16 @@ import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.ParameterException;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -57,6 +63,12 @@ public class SwimEditor implements Callable<Integer> {
     @Mixin
     private ReusableOptions reusableOptionsMixin;
 
+    @Spec
+    private CommandSpec spec;
+
+    @Mixin
+    private CacheOptions cacheOptionsMixin;
+
     @Parameters(arity = "1", paramLabel = "FILE", description = "Pool swimming FIT file to process.")
     private File swimmingFitFile;
 
@@ -64,12 +76,24 @@ public class SwimEditor implements Callable<Integer> {
             "--edit" }, description = "Interactively edit the pool length, stroke types, and other attributes. (default: ${DEFAULT-VALUE})")
     private boolean editMode = false;
 
+    @Option(names = "--full-screen", description = "Edit the strokes in a full-screen editor, rather than one length at a time. Implies --edit. (default: ${DEFAULT-VALUE})")
+    private boolean fullScreen = false;
+
     @Option(names = {
             "--no-randomize-ctime" }, negatable = true, description = "Randomize the activity start time. This allows you to upload duplicate activities to Strava, Garmin Connect, and other similar services (default: ${DEFAULT-VALUE})")
     private boolean randomizeCreationTime = true;
 
-    @Option(names = "--hr-data", arity = "0..1", paramLabel = "FILE", description = "FIT file containing HR data.")
-    private File hrFitFile = null;
+    @Option(names = "--hr-data", paramLabel = "FILE[,RULE=VALUE...]", description = "FIT file containing HR data. Can be given more than once, in order of priority; each second the first source that is still recording is used. Rules: min, max, max-delta (bpm/s), max-gap (seconds).")
+    private List<String> hrDataSpecs = new ArrayList<String>();
+
+    @Option(names = "--apply", paramLabel = "SPEC", description = "Apply the pool length, stroke edits and HR data in the given edit spec file, without any prompts.")
+    private File editSpecFile = null;
+
+    @Option(names = "--journal", paramLabel = "FILE", description = "Record every edit to the given journal file as it's made. If the journal already has edits in it, they are replayed first (onto this file, or one with the same laps) and new edits are added on.")
+    private File journalFile = null;
+
+    @Option(names = "--hr-fill", paramLabel = "STRATEGY", description = "How gaps in the HR data are filled in: ${COMPLETION-CANDIDATES}. (default: ${DEFAULT-VALUE})")
+    private HrGapFiller.Fill hrFill = HrGapFiller.Fill.RANDOM;
 
     private static final Logger LOGGER = LogManager.getLogger(SwimEditor.class);
 
@@ -78,8 +102,8 @@ public class SwimEditor implements Callable<Integer> {
     private final OutputStream output;
     private final String[] cliArgs;
     private GarminSwimActivity garminSwimActivity;
-    private GarminGenericActivity hrActivity;
     private LineReader reader;
+    private EditJournal journal;
 
     public SwimEditor(final InputStream input, final OutputStream output, final Terminal terminal,
             final String[] args) {
@@ -94,39 +118,77 @@ public class SwimEditor implements Callable<Integer> {
     public Integer call() {
         Utils.setLogLevel(reusableOptionsMixin);
 
+        if (fullScreen) {
+            editMode = true;
+        }
+        if (editSpecFile != null && editMode) {
+            throw new ParameterException(spec.commandLine(), "--apply cannot be combined with interactive editing");
+        }
+        if (editSpecFile != null && journalFile != null) {
+            throw new ParameterException(spec.commandLine(), "--apply cannot be combined with --journal");
+        }
+
         try {
             float poolLength = 0f;
             garminSwimActivity = new GarminSwimActivity();
-            GarminActivityLoader gal = new GarminActivityLoader(swimmingFitFile, garminSwimActivity);
+            GarminActivityLoader gal;
+            ActivityCache cache = cacheOptionsMixin.getActivityCache();
+            if (cache != null) {
+                gal = new GarminActivityLoader(swimmingFitFile, garminSwimActivity, cache);
+            } else {
+                gal = new GarminActivityLoader(swimmingFitFile, garminSwimActivity, true);
+            }
 
             if (randomizeCreationTime) {
                 garminSwimActivity.randomizeCreationTime();
             }
 
+            if (editSpecFile != null) {
+                EditSpec editSpec = EditSpec.parse(editSpecFile);
+                if (!editSpec.getHrSources().isEmpty() && !hrDataSpecs.isEmpty()) {
+                    throw new RuntimeException("HR data is given both by --hr-data and by " + editSpecFile.getName());
+                }
+                editSpec.apply(garminSwimActivity);
+            }
+
+            boolean journalReplayed = false;
+            if (journalFile != null) {
+                journalReplayed = replayJournal();
+                journal = EditJournal.open(journalFile, garminSwimActivity, swimmingFitFile.getName());
+            }
+
             if (editMode) {
                 // Allow the user to edit the pool length
                 poolLength = readPoolLength(garminSwimActivity.getPoolLength());
                 LOGGER.log(Level.DEBUG, "User entered pool length: " + poolLength);
                 garminSwimActivity.updateSwimmingPoolLength(poolLength);
+                if (journal != null) {
+                    journal.recordPoolLength(poolLength);
+                }
                 terminal.puts(Capability.clear_screen);
                 terminal.flush();
 
                 // Allow the user to edit the individual laps/strokes
-                editSwimLaps();
+                if (fullScreen) {
+                    new FullScreenSwimEditor(terminal, garminSwimActivity, journal).run();
+                } else {
+                    editSwimLaps();
+                }
             }
 
             terminal.writer().append(garminSwimActivity.getActivitySummaryHeader());
             terminal.writer().append(garminSwimActivity.getActivitySummary());
 
             // Add the HR data to the swimming activity
-            if (hrFitFile != null) {
-                hrActivity = new GarminGenericActivity();
-                GarminActivityLoader hrLoader = new GarminActivityLoader(hrFitFile, hrActivity);
-                addHrDataToSwimActivity();
+            if (!hrDataSpecs.isEmpty()) {
+                addHrDataToSwimActivity(garminSwimActivity, getHrSources(hrDataSpecs), hrFill);
+                if (journal != null) {
+                    journal.recordHrData(hrDataSpecs, hrFill);
+                }
             }
 
             // Generate the newly updated FIT file
-            if (editMode || hrFitFile != null) {
+            if (editMode || !hrDataSpecs.isEmpty() || editSpecFile != null || journalReplayed) {
                 FitWriter fr = new FitWriter(garminSwimActivity, swimmingFitFile.getName());
                 String updatedFitFileName = fr.writeFitFile();
 
@@ -152,14 +214,44 @@ public class SwimEditor implements Callable<Integer> {
                 ex.printStackTrace();
             }
             return 1;
+        } finally {
+            closeJournal();
         }
 
         return 0;
     }
 
+    // Replays the edits already in the journal, if there are any
+    private boolean replayJournal() throws IOException {
+        if (!journalFile.exists() || journalFile.length() == 0) {
+            return false;
+        }
+
+        EditSpec journalSpec = EditSpec.parse(journalFile);
+        if (!journalSpec.getHrSources().isEmpty() && !hrDataSpecs.isEmpty()) {
+            throw new RuntimeException("HR data is given both by --hr-data and by " + journalFile.getName());
+        }
+        journalSpec.apply(garminSwimActivity);
+        LOGGER.log(Level.DEBUG, "Replayed edit journal " + journalSpec);
+        return true;
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.ERROR, "Unable to close edit journal " + journalFile.getName() + ": " + ex.getMessage());
+        }
+        journal = null;
+    }
+
     @SuppressWarnings("checkstyle:DesignForExtension")
     public int start() {
-        return new CommandLine(this).execute(cliArgs);
+        return new CommandLine(this).setCaseInsensitiveEnumValuesAllowed(true).execute(cliArgs);
     }
 
     private void editSwimLaps() {
@@ -179,7 +271,11 @@ public class SwimEditor implements Callable<Integer> {
             terminal.writer().append(System.lineSeparator());
             terminal.flush();
             editSwimLap(inputLapNumberToEdit - 1);
-            garminSwimActivity.recalculateActivityStats();
+            if (journal != null) {
+                journal.endLap();
+            }
+            garminSwimActivity.markLapDirty(inputLapNumberToEdit - 1);
+            garminSwimActivity.recalculateDirtyLapStats();
         }
     }
 
@@ -210,14 +306,26 @@ public class SwimEditor implements Callable<Integer> {
                     .append(String.format("(time %s, pace %s/100m) ",
                             Utils.convertFloatToStringDate(length.getTotalElapsedTime()),
                             Utils.convertFloatToStringDate(lengthAvgSpeed)))
-                    .style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN)).append("(Tab to complete):")
-                    .append(System.lineSeparator() + "stroke> ").toAnsi();
+                    .style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN))
+                    .append("(Tab to complete, or e.g. \"3-20 fr\"):").append(System.lineSeparator() + "stroke> ")
+                    .toAnsi();
             String userInput = "";
 
             String line = null;
             try {
                 line = lineReader.readLine(prompt, promptRightSide, (MaskingCallback) null,
                         lengthStroke.toString().toLowerCase());
+                if (SwimEditCommand.isCommand(line)) {
+                    // e.g. "3-20 fr" or "all br", which finishes off this lap in one go
+                    userInput = line.trim();
+                    SwimEditCommand command = SwimEditCommand.parse(line);
+                    int numChanged = command.apply(garminSwimActivity, Arrays.asList(lapNumber));
+                    if (journal != null) {
+                        journal.recordCommand(command, Arrays.asList(lapNumber));
+                    }
+                    LOGGER.log(Level.DEBUG, "Edit command \"" + userInput + "\" changed " + numChanged + " lengths");
+                    break;
+                }
                 ParsedLine pl = lineReader.getParser().parse(line, 0);
                 userInput = pl.words().get(0);
                 LOGGER.log(Level.DEBUG, "Raw user-entered stroke: " + userInput);
@@ -226,6 +334,9 @@ public class SwimEditor implements Callable<Integer> {
                 LOGGER.log(Level.DEBUG, "Determined entered stroke to be: " + inputStroke);
 
                 // Update the swim stroke to be the value entered in by the user
+                if (journal != null && (inputStroke != lengthStroke || length.getLengthType() != LengthType.ACTIVE)) {
+                    journal.recordLengthStroke(lapNumber, i, inputStroke);
+                }
                 length.setSwimStroke(inputStroke);
                 length.setLengthType(LengthType.ACTIVE);
             } catch (UserInterruptException e) {
@@ -234,6 +345,9 @@ public class SwimEditor implements Callable<Integer> {
                 throw new RuntimeException("");
             } catch (IllegalArgumentException e) {
                 String err = "Invalid stroke \"" + userInput + "\"";
+                if (line != null && SwimEditCommand.isCommand(line)) {
+                    err = e.getMessage();
+                }
                 LOGGER.log(Level.DEBUG, "Error: " + err);
                 promptRightSide = new AttributedStringBuilder()
                         .style(AttributedStyle.BOLD.foreground(AttributedStyle.RED)).append("ERROR: ")
@@ -242,24 +356,7 @@ public class SwimEditor implements Callable<Integer> {
             }
         }
 
-        // Determine the displayed length "summary" stroke (MIXED, etc)
-        SwimStroke lapSummaryStroke = null;
-        for (int i = 0; i < lengths.size(); i++) {
-            LengthMesg length = lengths.get(i);
-
-            // Initial case
-            if (lapSummaryStroke == null) {
-                lapSummaryStroke = length.getSwimStroke();
-                continue;
-            }
-
-            // If the current stroke is something difference, set the summary to "mixed"
-            if (lapSummaryStroke != length.getSwimStroke()) {
-                lapSummaryStroke = SwimStroke.MIXED;
-                break;
-            }
-        }
-        lap.getLapMessage().setSwimStroke(lapSummaryStroke);
+        garminSwimActivity.updateLapSwimStroke(lapNumber);
 
         // Finally replace the model with this newly updated lap (probably un-necessary?)
         garminSwimActivity.replaceGarminLap(lapNumber, lap);
@@ -268,7 +365,7 @@ public class SwimEditor implements Callable<Integer> {
     private int readSwimLapNumber() {
         LOGGER.log(Level.DEBUG, "Presenting prompt asking user to enter a swim lap number to edit");
         String prompt = new AttributedStringBuilder().style(AttributedStyle.BOLD.foreground(AttributedStyle.GREEN))
-                .append("Which Lap would you like to edit? (Ctrl+d to finish):")
+                .append("Which Lap would you like to edit? Or an edit command, e.g. \"lap 5 = im\" (Ctrl+d to finish):")
                 .style(AttributedStyle.DEFAULT.foreground(AttributedStyle.GREEN))
                 .append(System.lineSeparator() + "lap number> ").toAnsi();
         String userInput = "";
@@ -283,6 +380,11 @@ public class SwimEditor implements Callable<Integer> {
                 terminal.writer().append(garminSwimActivity.getLapSummary());
                 terminal.flush();
                 line = reader.readLine(prompt, promptRightSide, (MaskingCallback) null, null);
+                if (SwimEditCommand.isCommand(line)) {
+                    // e.g. "lap 5 = im" or "fill-invalid fr", applied to the whole activity
+                    promptRightSide = applyEditCommand(line);
+                    continue;
+                }
                 ParsedLine pl = reader.getParser().parse(line, 0);
                 userInput = pl.words().get(0);
                 LOGGER.log(Level.DEBUG, "Raw user-entered lap number: " + userInput);
@@ -318,6 +420,24 @@ public class SwimEditor implements Callable<Integer> {
         return lapNumber;
     }
 
+    // Returns the outcome, to be shown on the right side of the prompt
+    private String applyEditCommand(final String line) {
+        try {
+            SwimEditCommand command = SwimEditCommand.parse(line);
+            List<Integer> activeLaps = garminSwimActivity.getActiveSwimLaps();
+            int numChanged = command.apply(garminSwimActivity, activeLaps);
+            if (journal != null) {
+                journal.recordCommand(command, activeLaps);
+            }
+            return new AttributedStringBuilder().style(AttributedStyle.BOLD.foreground(AttributedStyle.GREEN))
+                    .append(numChanged + " lengths changed").toAnsi();
+        } catch (IllegalArgumentException ex) {
+            LOGGER.log(Level.DEBUG, "Error: " + ex.getMessage());
+            return new AttributedStringBuilder().style(AttributedStyle.BOLD.foreground(AttributedStyle.RED))
+                    .append("ERROR: ").style(AttributedStyle.BOLD).append(ex.getMessage()).toAnsi();
+        }
+    }
+
     private boolean validateLapNumberInput(final int input) {
         boolean result = false;
         LOGGER.log(Level.DEBUG, "Validating whether " + input + " is in the active laps list");
@@ -367,23 +487,34 @@ public class SwimEditor implements Callable<Integer> {
         return poolLength;
     }
 
-    private void addHrDataToSwimActivity() {
+    static List<HrSource> getHrSources(final List<String> specs) {
+        List<HrSource> sources = new ArrayList<HrSource>();
+        for (String spec : specs) {
+            sources.add(HrSource.parse(spec));
+        }
+        return sources;
+    }
+
+    // Adds the HR samples recorded during the swim (i.e. between the session's start & end) as a 1 Hz series, fused
+    // from the given sources and with any remaining gaps filled in. The HR data may well be an all-day recording, so
+    // only that window of it is used.
+    static void addHrDataToSwimActivity(final GarminSwimActivity garminSwimActivity, final List<HrSource> hrSources,
+            final HrGapFiller.FillStrategy fill) throws IOException {
         if (garminSwimActivity.getHrMessages().size() > 0) {
             throw new RuntimeException("Swimming fit file already contains HR data.");
         }
 
         LOGGER.log(Level.DEBUG, "Clearing out all RecordMesg entries in the swim activity");
         List<RecordMesg> clonedSwimRecordMsgs = garminSwimActivity.deleteRecordMessages();
+        garminSwimActivity.enableRecordColumns();
 
-        // Obtain the HR and "filled in" records, in order to account for some missing stretches
-        List<RecordMesg> hrRecords = Utils.getFilledInRecordMsgs(hrActivity.getRecordMessages());
-        DateTime activityEnd = garminSwimActivity.getSessionMesg().getTimestamp();
-        for (RecordMesg mesg : hrRecords) {
-            // Discard any HR messages after the activity has finished
-            if (mesg.getTimestamp().compareTo(activityEnd) > 0) {
-                continue;
-            }
-            garminSwimActivity.addRecordMessage(mesg);
+        DateTime startTime = garminSwimActivity.getSessionMesg().getStartTime();
+        long activityStart = Long.MIN_VALUE;
+        if (startTime != null) {
+            activityStart = startTime.getTimestamp();
         }
+        long activityEnd = garminSwimActivity.getSessionMesg().getTimestamp().getTimestamp();
+        RecordColumns hrRecords = new HrFusion(hrSources).fuse(activityStart, activityEnd);
+        garminSwimActivity.addRecordColumns(new HrGapFiller(fill).fill(hrRecords, activityStart, activityEnd));
     }
 }
@@ -0,0 +1,170 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+
+import java.net.URL;
+import java.net.URISyntaxException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import ca.disjoint.fit.ActivityCache;
+import ca.disjoint.fit.GarminActivityLoader;
+import ca.disjoint.fit.GarminSwimActivity;
+import ca.disjoint.fit.TestUtils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class ActivityCacheTest {
+    private File cacheDirectory;
+
+    private File getTestFile(final String filename) throws URISyntaxException {
+        URL url = this.getClass().getResource(filename);
+        return Paths.get(url.toURI()).toFile();
+    }
+
+    private void deleteCacheDirectory() {
+        File[] entries = cacheDirectory.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                entry.delete();
+            }
+        }
+        cacheDirectory.delete();
+    }
+
+    @Before
+    public void setUp() {
+        cacheDirectory = new File("activity-cache-test");
+        deleteCacheDirectory();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        deleteCacheDirectory();
+        TestUtils.deleteAllTestGeneratedFitFiles();
+    }
+
+    @Test
+    public void shouldServeSameActivityFromCache() throws URISyntaxException, IOException {
+        File swimFile = getTestFile("/multiple-lap-swim.fit");
+        ActivityCache cache = new ActivityCache(cacheDirectory, 1024 * 1024);
+        assertNull(cache.load(cache.getKey(swimFile)));
+
+        GarminSwimActivity decoded = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(swimFile, decoded, cache);
+        assertNotNull(cache.load(cache.getKey(swimFile)));
+
+        GarminSwimActivity cached = new GarminSwimActivity();
+        gal = new GarminActivityLoader(swimFile, cached, cache);
+
+        assertEquals(decoded.getActivitySummary(), cached.getActivitySummary());
+        assertEquals(decoded.getLapSummary(), cached.getLapSummary());
+        assertEquals(decoded.getCreationTime().getTimestamp(), cached.getCreationTime().getTimestamp());
+        assertEquals(decoded.getRecordMessages().size(), cached.getRecordMessages().size());
+        assertEquals(decoded.getEventMessages().size(), cached.getEventMessages().size());
+        assertEquals(decoded.getDeviceInfoMessages().size(), cached.getDeviceInfoMessages().size());
+        assertEquals(decoded.getHrMessages().size(), cached.getHrMessages().size());
+        for (int i = 0; i < decoded.getGarminLaps().size(); i++) {
+            assertEquals(decoded.getGarminLap(i).getLengthMessages().size(),
+                    cached.getGarminLap(i).getLengthMessages().size());
+        }
+    }
+
+    @Test
+    public void shouldKeyCacheByFileContents() throws URISyntaxException, IOException {
+        File swimFile = getTestFile("/basic-swim.fit");
+        File copiedFile = new File("copied-swim.fit");
+        Files.copy(swimFile.toPath(), copiedFile.toPath());
+        File otherFile = getTestFile("/multiple-lap-swim.fit");
+
+        ActivityCache cache = new ActivityCache(cacheDirectory, 1024 * 1024);
+        assertEquals(cache.getKey(swimFile), cache.getKey(copiedFile));
+        assertFalse(cache.getKey(swimFile).equals(cache.getKey(otherFile)));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntries() throws URISyntaxException, IOException {
+        File firstFile = getTestFile("/basic-swim.fit");
+        File secondFile = getTestFile("/multiple-lap-swim.fit");
+        ActivityCache cache = new ActivityCache(cacheDirectory, Long.MAX_VALUE);
+        GarminActivityLoader gal = new GarminActivityLoader(firstFile, new GarminSwimActivity(), cache);
+        gal = new GarminActivityLoader(secondFile, new GarminSwimActivity(), cache);
+        File firstEntry = new File(cacheDirectory, cache.getKey(firstFile) + ".snapshot");
+        File secondEntry = new File(cacheDirectory, cache.getKey(secondFile) + ".snapshot");
+        long secondSize = secondEntry.length();
+        assertTrue(firstEntry.setLastModified(0));
+        assertTrue(secondEntry.delete());
+
+        // Only large enough for the second activity, so re-caching it evicts the (older) first one
+        cache = new ActivityCache(cacheDirectory, secondSize);
+        gal = new GarminActivityLoader(secondFile, new GarminSwimActivity(), cache);
+
+        assertFalse(firstEntry.exists());
+        assertTrue(secondEntry.exists());
+    }
+
+    @Test
+    public void shouldIgnoreCorruptCacheEntries() throws URISyntaxException, IOException {
+        File swimFile = getTestFile("/basic-swim.fit");
+        ActivityCache cache = new ActivityCache(cacheDirectory, 1024 * 1024);
+        String key = cache.getKey(swimFile);
+        GarminActivityLoader gal = new GarminActivityLoader(swimFile, new GarminSwimActivity(), cache);
+
+        File entry = new File(cacheDirectory, key + ".snapshot");
+        byte[] contents = Files.readAllBytes(entry.toPath());
+        Files.write(entry.toPath(), Arrays.copyOf(contents, contents.length / 2));
+        assertNull(cache.load(key));
+
+        GarminSwimActivity activity = new GarminSwimActivity();
+        gal = new GarminActivityLoader(swimFile, activity, cache);
+        assertTrue(activity.getGarminLaps().size() > 0);
+        assertNotNull(cache.load(key));
+    }
+
+    @Test
+    public void shouldDeleteCacheEntriesThatFailTheirChecksum() throws URISyntaxException, IOException {
+        File swimFile = getTestFile("/basic-swim.fit");
+        ActivityCache cache = new ActivityCache(cacheDirectory, 1024 * 1024);
+        String key = cache.getKey(swimFile);
+        GarminActivityLoader gal = new GarminActivityLoader(swimFile, new GarminSwimActivity(), cache);
+
+        // A single flipped bit in the middle of the entry
+        File entry = new File(cacheDirectory, key + ".snapshot");
+        byte[] contents = Files.readAllBytes(entry.toPath());
+        contents[contents.length / 2] ^= 0x01;
+        Files.write(entry.toPath(), contents);
+        assertNull(cache.load(key));
+        assertFalse(entry.exists());
+
+        GarminSwimActivity activity = new GarminSwimActivity();
+        gal = new GarminActivityLoader(swimFile, activity, cache);
+        assertTrue(activity.getGarminLaps().size() > 0);
+        assertNotNull(cache.load(key));
+    }
+}
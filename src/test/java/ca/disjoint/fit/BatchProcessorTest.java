@@ -0,0 +1,184 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.fail;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.CoreMatchers.containsString;
+
+import java.net.URL;
+import java.net.URISyntaxException;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import picocli.CommandLine;
+
+import org.jline.utils.AttributedString;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.impl.DumbTerminal;
+
+import java.nio.charset.StandardCharsets;
+
+import ca.disjoint.fit.BatchProcessor;
+import ca.disjoint.fit.TestUtils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class BatchProcessorTest {
+    private BatchProcessor inst;
+    private ByteArrayInputStream inContent = null;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+    private final InputStream originalIn = System.in;
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+    private Terminal terminal;
+
+    @Before
+    public void setUp() {
+        System.setIn(inContent);
+        System.setOut(new PrintStream(outContent));
+        System.setErr(new PrintStream(errContent));
+        terminal = getCustomizedTerminal(inContent, outContent);
+    }
+
+    private Terminal getCustomizedTerminal(final InputStream inContent, final OutputStream outContent) {
+        Terminal t = null;
+        try {
+            t = new DumbTerminal("terminal", "ansi", inContent, outContent, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        return t;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        inst = null;
+        System.setIn(originalIn);
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        terminal = null;
+        TestUtils.deleteAllTestGeneratedFitFiles();
+    }
+
+    @Test
+    public void shouldFailIfNoPathProvided() {
+        String[] args = {};
+        inst = new BatchProcessor(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        assertThat(exitCode, equalTo(CommandLine.ExitCode.USAGE));
+        assertThat(errContent.toString(), startsWith("Missing required parameter"));
+    }
+
+    @Test
+    public void shouldFailIfNumberOfJobsIsInvalid() {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        String[] args = { "--jobs", "0", url.getFile() };
+        inst = new BatchProcessor(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        assertThat(exitCode, equalTo(CommandLine.ExitCode.USAGE));
+        assertThat(errContent.toString(), startsWith("The number of jobs must be at least 1"));
+    }
+
+    @Test
+    public void shouldProcessFilesAndZipArchives() {
+        URL swimUrl = this.getClass().getResource("/basic-swim.fit");
+        URL zipUrl = this.getClass().getResource("/1_2700_20190906-swim.zip");
+        URL runUrl = this.getClass().getResource("/1_2700_sample-run.fit");
+        String[] args = { "--jobs", "2", "--pool-length", "25", swimUrl.getFile(), zipUrl.getFile(), runUrl.getFile() };
+        inst = new BatchProcessor(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        String plainOutput = AttributedString.stripAnsi(outContent.toString());
+        assertThat(exitCode, equalTo(0));
+        assertThat(plainOutput, containsString("SKIPPED " + runUrl.getFile() + ": not a pool swimming activity"));
+        assertThat(plainOutput, containsString("Processed 3 files (0 failed, 1 skipped)"));
+    }
+
+    @Test
+    public void shouldReportFailedFilesWithoutAborting() throws URISyntaxException, IOException {
+        URL swimUrl = this.getClass().getResource("/basic-swim.fit");
+        byte[] contents = Files.readAllBytes(Paths.get(swimUrl.toURI()));
+        File truncatedFile = new File("truncated-swim.fit");
+        Files.write(truncatedFile.toPath(), Arrays.copyOf(contents, contents.length / 2));
+
+        String[] args = { truncatedFile.getPath(), swimUrl.getFile() };
+        inst = new BatchProcessor(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        String plainOutput = AttributedString.stripAnsi(outContent.toString());
+        assertThat(exitCode, equalTo(1));
+        assertThat(plainOutput, containsString("FAILED truncated-swim.fit"));
+        assertThat(plainOutput, containsString("Processed 2 files (1 failed, 0 skipped)"));
+    }
+
+    @Test
+    public void shouldApplyEditSpecToEveryFile() throws IOException {
+        URL swimUrl = this.getClass().getResource("/basic-swim.fit");
+        URL zipUrl = this.getClass().getResource("/1_2700_20190906-swim.zip");
+        File specFile = new File("batch-edit-spec.txt");
+        Files.write(specFile.toPath(),
+                ("pool-length = 25" + System.lineSeparator() + "edit = fill-invalid fr" + System.lineSeparator())
+                        .getBytes(StandardCharsets.UTF_8));
+
+        try {
+            String[] args = { "--apply", specFile.getPath(), swimUrl.getFile(), zipUrl.getFile() };
+            inst = new BatchProcessor(inContent, outContent, terminal, args);
+            int exitCode = inst.start();
+
+            String plainOutput = AttributedString.stripAnsi(outContent.toString());
+            assertThat(exitCode, equalTo(0));
+            assertThat(plainOutput, containsString("Processed 2 files (0 failed, 0 skipped)"));
+        } finally {
+            specFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldFailOnInvalidEditSpec() throws IOException {
+        URL swimUrl = this.getClass().getResource("/basic-swim.fit");
+        File specFile = new File("batch-edit-spec.txt");
+        Files.write(specFile.toPath(), "pool-size = 25".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            String[] args = { "--apply", specFile.getPath(), swimUrl.getFile() };
+            inst = new BatchProcessor(inContent, outContent, terminal, args);
+            int exitCode = inst.start();
+
+            assertThat(exitCode, equalTo(1));
+            assertThat(errContent.toString(), startsWith("Error: batch-edit-spec.txt:1: Unknown key \"pool-size\""));
+        } finally {
+            specFile.delete();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.ZoneId;
+
+import ca.disjoint.fit.DurationFormatter;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class DurationFormatterTest {
+    // How durations used to be formatted
+    private String formatWithDateTimeFormatter(final float value) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.of("UTC"));
+        String retval = formatter.format(Instant.ofEpochMilli((long) (value * 1000)));
+        if (retval.startsWith("00:")) {
+            retval = retval.substring(3);
+        }
+        return retval;
+    }
+
+    @Test
+    public void shouldFormatDurations() {
+        assertThat(DurationFormatter.formatDuration(0f), equalTo("00:00"));
+        assertThat(DurationFormatter.formatDuration(59.999f), equalTo("00:59"));
+        assertThat(DurationFormatter.formatDuration(351.3f), equalTo("05:51"));
+        assertThat(DurationFormatter.formatDuration(2773.603f), equalTo("46:13"));
+        assertThat(DurationFormatter.formatDuration(3600f), equalTo("01:00:00"));
+    }
+
+    @Test
+    public void shouldMatchDateTimeFormatter() {
+        float[] values = { 0f, 0.5f, 1f, 12.34f, 59.9f, 60f, 3599.999f, 3600f, 86399f, 86400f, 90061.5f, -1f, -0.5f,
+                1e9f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 100f / 0.513f, 100f / 0.76f };
+        for (float value : values) {
+            assertThat(String.valueOf(value), DurationFormatter.formatDuration(value),
+                    equalTo(formatWithDateTimeFormatter(value)));
+        }
+        for (int i = 0; i < 100000; i += 7) {
+            float value = i / 10f;
+            assertThat(DurationFormatter.formatDuration(value), equalTo(formatWithDateTimeFormatter(value)));
+        }
+    }
+
+    @Test
+    public void shouldAppendPace() {
+        StringBuilder sb = new StringBuilder("avg ");
+        DurationFormatter.appendPace(sb, 0.5f).append("/100m");
+        assertThat(sb.toString(), equalTo("avg 03:20/100m"));
+    }
+}
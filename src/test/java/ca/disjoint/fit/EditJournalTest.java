@@ -0,0 +1,125 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.After;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.containsString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.SwimStroke;
+
+import ca.disjoint.fit.EditJournal;
+import ca.disjoint.fit.EditSpec;
+import ca.disjoint.fit.GarminSwimActivity;
+import ca.disjoint.fit.SwimEditCommand;
+import ca.disjoint.fit.TestUtils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class EditJournalTest {
+    private final File journalFile = new File("test-edit-journal.txt");
+
+    private String readJournal() throws IOException {
+        return new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @After
+    public void tearDown() {
+        journalFile.delete();
+    }
+
+    @Test
+    public void shouldReplayRecordedEdits() throws IOException {
+        GarminSwimActivity activity = TestUtils.getSwimActivity(2);
+        try (EditJournal journal = EditJournal.open(journalFile, activity, "swim.fit")) {
+            journal.recordPoolLength(50f);
+            journal.recordLengthStroke(0, 0, SwimStroke.FREESTYLE);
+            journal.recordLengthStroke(0, 1, SwimStroke.BACKSTROKE);
+            journal.recordLapStroke(1, SwimStroke.IM);
+            assertThat(journal.getNumEntries(), equalTo(4));
+        }
+
+        GarminSwimActivity replayed = TestUtils.getSwimActivity(2);
+        EditSpec.parse(journalFile).apply(replayed);
+
+        assertThat(replayed.getPoolLength(), equalTo(50f));
+        List<LengthMesg> lengths = replayed.getGarminLap(0).getLengthMessages();
+        assertThat(lengths.get(0).getSwimStroke(), equalTo(SwimStroke.FREESTYLE));
+        assertThat(lengths.get(1).getSwimStroke(), equalTo(SwimStroke.BACKSTROKE));
+        assertThat(lengths.get(2).getSwimStroke(), equalTo(SwimStroke.BREASTSTROKE));
+        assertThat(replayed.getGarminLap(0).getLapMessage().getSwimStroke(), equalTo(SwimStroke.MIXED));
+        assertThat(replayed.getGarminLap(1).getLapMessage().getSwimStroke(), equalTo(SwimStroke.IM));
+    }
+
+    @Test
+    public void shouldRecordLengthCommandsAgainstTheirLap() throws IOException {
+        GarminSwimActivity activity = TestUtils.getSwimActivity(2);
+        try (EditJournal journal = EditJournal.open(journalFile, activity, "swim.fit")) {
+            journal.recordCommand(SwimEditCommand.parse("3-4 fr"), Arrays.asList(1));
+            journal.recordCommand(SwimEditCommand.parse("fill-invalid bk"), activity.getActiveSwimLaps());
+        }
+
+        String contents = readJournal();
+        assertThat(contents, containsString("edit = lap 2 3-4 fr\n"));
+        assertThat(contents, containsString("edit = fill-invalid bk\n"));
+    }
+
+    @Test
+    public void shouldAppendToAnExistingJournal() throws IOException {
+        GarminSwimActivity activity = TestUtils.getSwimActivity(2);
+        try (EditJournal journal = EditJournal.open(journalFile, activity, "swim.fit")) {
+            journal.recordLapStroke(0, SwimStroke.FREESTYLE);
+        }
+        try (EditJournal journal = EditJournal.open(journalFile, activity, "swim.fit")) {
+            journal.recordLapStroke(1, SwimStroke.BUTTERFLY);
+        }
+
+        String contents = readJournal();
+        assertThat(contents.split("laps = ", -1).length, equalTo(2));
+        assertThat(contents, containsString("laps = 4,4\n"));
+
+        GarminSwimActivity replayed = TestUtils.getSwimActivity(2);
+        EditSpec.parse(journalFile).apply(replayed);
+        assertThat(replayed.getGarminLap(0).getLapMessage().getSwimStroke(), equalTo(SwimStroke.FREESTYLE));
+        assertThat(replayed.getGarminLap(1).getLapMessage().getSwimStroke(), equalTo(SwimStroke.BUTTERFLY));
+    }
+
+    @Test
+    public void shouldOnlyReplayOntoTheSameLaps() throws IOException {
+        try (EditJournal journal = EditJournal.open(journalFile, TestUtils.getSwimActivity(2), "swim.fit")) {
+            journal.recordLapStroke(0, SwimStroke.FREESTYLE);
+        }
+
+        try {
+            EditSpec.parse(journalFile).apply(TestUtils.getSwimActivity(3));
+            fail("Journal was replayed onto a different lap structure");
+        } catch (RuntimeException ex) {
+            assertThat(ex.getMessage(), containsString("laps 4,4"));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.After;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.containsString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.garmin.fit.SwimStroke;
+
+import ca.disjoint.fit.EditSpec;
+import ca.disjoint.fit.GarminSwimActivity;
+import ca.disjoint.fit.HrGapFiller;
+import ca.disjoint.fit.TestUtils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class EditSpecTest {
+    private final File specFile = new File("test-edit-spec.txt");
+
+    private EditSpec parse(final String contents) throws IOException {
+        Files.write(specFile.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return EditSpec.parse(specFile);
+    }
+
+    @After
+    public void tearDown() {
+        specFile.delete();
+    }
+
+    @Test
+    public void shouldParseEditSpec() throws IOException {
+        EditSpec spec = parse("# fix up the pool length" + System.lineSeparator() + "pool-length = 25"
+                + System.lineSeparator() + System.lineSeparator() + "edit = lap 2 = im" + System.lineSeparator()
+                + "edit = fill-invalid fr" + System.lineSeparator() + "hr-data = strap.fit,max-gap=3"
+                + System.lineSeparator() + "hr-fill = linear" + System.lineSeparator());
+
+        assertThat(spec.getPoolLength(), equalTo(25f));
+        assertThat(spec.getEdits().size(), equalTo(2));
+        assertThat(spec.getEdits().get(0).getStroke(), equalTo(SwimStroke.IM));
+        assertThat(spec.getHrSources().size(), equalTo(1));
+        assertThat(spec.getHrSources().get(0).getMaxGap(), equalTo(3));
+        assertThat(spec.getHrFill(), equalTo(HrGapFiller.Fill.LINEAR));
+    }
+
+    @Test
+    public void shouldReportTheLineOfAnError() throws IOException {
+        try {
+            parse("pool-length = 25" + System.lineSeparator() + "edit = all lambada" + System.lineSeparator());
+            fail("Invalid stroke was not rejected");
+        } catch (RuntimeException ex) {
+            assertThat(ex.getMessage(), containsString("test-edit-spec.txt:2"));
+        }
+    }
+
+    @Test
+    public void shouldApplyEditSpec() throws IOException {
+        EditSpec spec = parse("pool-length = 50" + System.lineSeparator() + "edit = lap 2 = im" + System.lineSeparator()
+                + "edit = lap 1 1-2 fr" + System.lineSeparator());
+        GarminSwimActivity activity = TestUtils.getSwimActivity(2);
+        spec.apply(activity);
+
+        assertThat(activity.getPoolLength(), equalTo(50f));
+        assertThat(activity.getTotalDistance(), equalTo(400f));
+        assertThat(activity.getGarminLap(0).getLapMessage().getSwimStroke(), equalTo(SwimStroke.MIXED));
+        assertThat(activity.getGarminLap(1).getLapMessage().getSwimStroke(), equalTo(SwimStroke.IM));
+    }
+
+    @Test
+    public void shouldLeaveUnspecifiedSettingsAlone() throws IOException {
+        EditSpec spec = parse("edit = all fr" + System.lineSeparator());
+        GarminSwimActivity activity = TestUtils.getSwimActivity(2);
+        spec.apply(activity);
+
+        assertNull(spec.getPoolLength());
+        assertThat(activity.getPoolLength(), equalTo(25f));
+        assertThat(activity.getGarminLap(1).getLapMessage().getSwimStroke(), equalTo(SwimStroke.FREESTYLE));
+    }
+
+    @Test
+    public void shouldCheckTheLapStructure() throws IOException {
+        EditSpec spec = parse("laps = 4, 4" + System.lineSeparator() + "edit = all fr" + System.lineSeparator());
+        assertThat(spec.getLapStructure(), equalTo("4,4"));
+        spec.apply(TestUtils.getSwimActivity(2));
+
+        spec = parse("laps = 4,4,4" + System.lineSeparator() + "edit = all fr" + System.lineSeparator());
+        try {
+            spec.apply(TestUtils.getSwimActivity(2));
+            fail("Spec was applied to a different lap structure");
+        } catch (RuntimeException ex) {
+            assertThat(ex.getMessage(), containsString("laps 4,4,4"));
+        }
+    }
+}
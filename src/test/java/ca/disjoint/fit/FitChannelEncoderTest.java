@@ -0,0 +1,156 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.After;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.containsString;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.garmin.fit.Decode;
+import com.garmin.fit.DateTime;
+import com.garmin.fit.Fit;
+import com.garmin.fit.FileIdMesg;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.MesgDefinition;
+import com.garmin.fit.MesgListener;
+import com.garmin.fit.RecordMesg;
+
+import ca.disjoint.fit.FitChannelEncoder;
+import ca.disjoint.fit.TestUtils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class FitChannelEncoderTest {
+    private final File fitFile = new File("channel-encoder-test.fit");
+
+    @After
+    public void tearDown() throws IOException {
+        TestUtils.deleteAllTestGeneratedFitFiles();
+    }
+
+    private FileChannel openChannel() throws IOException {
+        return FileChannel.open(fitFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    private void writeMessages(final FitChannelEncoder encoder, final int numRecords) {
+        FileIdMesg fileId = new FileIdMesg();
+        fileId.setTimeCreated(new DateTime(943140000L));
+        encoder.write(fileId);
+        for (int i = 0; i < numRecords; i++) {
+            RecordMesg record = new RecordMesg();
+            record.setTimestamp(new DateTime(943140000L + i));
+            record.setHeartRate((short) (100 + (i % 60)));
+            encoder.write(record);
+        }
+    }
+
+    private long encode(final int numRecords, final boolean verify) throws IOException {
+        try (FileChannel channel = openChannel()) {
+            FitChannelEncoder encoder = new FitChannelEncoder(channel, Fit.ProtocolVersion.V2_0, verify);
+            writeMessages(encoder, numRecords);
+            return encoder.close();
+        }
+    }
+
+    private int countMessages() throws IOException {
+        AtomicInteger numMesgs = new AtomicInteger();
+        try (InputStream in = new FileInputStream(fitFile)) {
+            new Decode().read(in, new MesgListener() {
+                public void onMesg(final Mesg mesg) {
+                    numMesgs.incrementAndGet();
+                }
+            });
+        }
+        return numMesgs.get();
+    }
+
+    @Test
+    public void shouldWriteValidFitFileAcrossManyChunks() throws IOException {
+        long fileSize = encode(50000, false);
+
+        assertThat(fileSize, equalTo(fitFile.length()));
+        assertTrue("Encoded file should span several chunks", fileSize > 4 * 64 * 1024);
+        try (InputStream in = new FileInputStream(fitFile)) {
+            assertTrue("FIT file integrity check failed", new Decode().checkFileIntegrity(in));
+        }
+        assertThat(countMessages(), equalTo(50001));
+    }
+
+    @Test
+    public void shouldWriteValidFitFileWithoutData() throws IOException {
+        long fileSize = encode(0, false);
+
+        assertThat(fileSize, equalTo(fitFile.length()));
+        assertThat(countMessages(), equalTo(1));
+        try (InputStream in = new FileInputStream(fitFile)) {
+            assertTrue("FIT file integrity check failed", new Decode().checkFileIntegrity(in));
+        }
+    }
+
+    @Test
+    public void shouldVerifyEncodedDataWhileWriting() throws IOException {
+        long fileSize = encode(50000, true);
+
+        assertThat(fileSize, equalTo(fitFile.length()));
+        try (InputStream in = new FileInputStream(fitFile)) {
+            assertTrue("FIT file integrity check failed", new Decode().checkFileIntegrity(in));
+        }
+        assertThat(countMessages(), equalTo(50001));
+    }
+
+    @Test
+    public void shouldFailVerificationOfCorruptedData() throws IOException {
+        try (FileChannel channel = openChannel()) {
+            FitChannelEncoder encoder = new FitChannelEncoder(channel, Fit.ProtocolVersion.V2_0, true);
+            writeMessages(encoder, 100);
+
+            // A data message for a local message type that was never defined
+            encoder.write(new RecordMesg() {
+                @Override
+                public void write(final OutputStream out, final MesgDefinition mesgDef) {
+                    try {
+                        out.write(0x0F);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+
+            try {
+                encoder.close();
+                fail("Corrupted FIT data passed verification");
+            } catch (RuntimeException ex) {
+                assertThat(ex.getMessage(), containsString("failed verification"));
+            }
+        }
+        assertThat(fitFile.length(), equalTo(14L));
+    }
+}
@@ -19,13 +19,20 @@
 
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
 
 import java.net.URL;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.PrintStream;
@@ -35,6 +42,11 @@ import java.io.IOException;
 
 import picocli.CommandLine;
 
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import com.garmin.fit.FileIdMesg;
+
 import org.jline.utils.AttributedString;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.impl.DumbTerminal;
@@ -42,6 +54,7 @@ import org.jline.terminal.impl.DumbTerminal;
 import java.nio.charset.StandardCharsets;
 
 import ca.disjoint.fit.FitDumper;
+import ca.disjoint.fit.FitMessageDumper;
 import ca.disjoint.fit.TestUtils;
 
 @SuppressWarnings("checkstyle:MagicNumber")
@@ -136,4 +149,74 @@ public class FitDumperTest {
         String plainOutput = AttributedString.stripAnsi(outContent.toString());
         assertThat(plainOutput, startsWith("Generic activity loaded successfully, see log file for details."));
     }
+
+    @Test
+    public void shouldCountDumpedMessagesInVerboseMode() {
+        long numMesgsBefore = FitMessageDumper.getNumMesgsDumped();
+        URL url = this.getClass().getResource("/1_2700_sample-run.fit");
+        String[] args = { "-v", url.getFile() };
+        inst = new FitDumper(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        assertThat(exitCode, equalTo(0));
+        assertTrue(FitMessageDumper.getNumMesgsDumped() > numMesgsBefore);
+        assertTrue(FitMessageDumper.getNumFieldsDumped() > 0);
+        assertThat(FitMessageDumper.getMesgCounts().keySet(), hasItem("FileIdMesg"));
+    }
+
+    @Test
+    public void shouldNotDumpMessagesWhenDebugLoggingDisabled() {
+        Configurator.setRootLevel(Level.WARN);
+        long numMesgsBefore = FitMessageDumper.getNumMesgsDumped();
+        long numFieldsBefore = FitMessageDumper.getNumFieldsDumped();
+
+        FitMessageDumper.dump(new FileIdMesg());
+
+        assertThat(FitMessageDumper.getNumMesgsDumped(), equalTo(numMesgsBefore));
+        assertThat(FitMessageDumper.getNumFieldsDumped(), equalTo(numFieldsBefore));
+    }
+
+    @Test
+    public void shouldStreamFilteredMessagesAsNdjson() {
+        URL url = this.getClass().getResource("/1_2700_sample-run.fit");
+        String[] args = { "--format", "ndjson", "--type", "file_id,session", url.getFile() };
+        inst = new FitDumper(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        String output = outContent.toString();
+        assertThat(exitCode, equalTo(0));
+        assertThat(output, startsWith("{\"source\":"));
+        assertThat(output, containsString("\"message\":\"file_id\""));
+        assertThat(output, containsString("\"message\":\"session\""));
+        assertThat(output, not(containsString("\"message\":\"record\"")));
+        for (String line : output.split(System.lineSeparator())) {
+            assertThat(line, startsWith("{"));
+            assertTrue(line.endsWith("}}"));
+        }
+    }
+
+    @Test
+    public void shouldStreamSelectedFieldsAsCsvToFile() throws IOException {
+        URL url = this.getClass().getResource("/1_2700_20190906-swim.zip");
+        File csvFile = new File("dump-test.csv");
+        String[] args = { "-f", "csv", "-o", csvFile.getPath(), "--type", "record", "--field", "timestamp",
+                url.getFile() };
+        inst = new FitDumper(inContent, outContent, terminal, args);
+
+        try {
+            int exitCode = inst.start();
+            List<String> lines = Files.readAllLines(csvFile.toPath());
+
+            assertThat(exitCode, equalTo(0));
+            assertThat(outContent.toString(), equalTo(""));
+            assertThat(lines.get(0), equalTo("source,sequence,message,field,value,units"));
+            assertTrue(lines.size() > 1);
+            for (String line : lines.subList(1, lines.size())) {
+                assertThat(line, containsString("1_2700_20190906-swim.zip!"));
+                assertThat(line, containsString(",record,timestamp,"));
+            }
+        } finally {
+            csvFile.delete();
+        }
+    }
 }
@@ -0,0 +1,153 @@
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.garmin.fit.DateTime;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.EventMesg;
+import com.garmin.fit.DeviceInfoMesg;
+import com.garmin.fit.RecordMesg;
+import com.garmin.fit.LapMesg;
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.ActivityMesg;
+import com.garmin.fit.SessionMesg;
+
+import ca.disjoint.fit.FitMessageMerger;
+import ca.disjoint.fit.GarminDateTimeComparator;
+import ca.disjoint.fit.GarminLap;
+import ca.disjoint.fit.RecordColumns;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class FitMessageMergerTest {
+    private static final long START = 943140000L;
+
+    private List<Mesg> merge(final FitMessageMerger merger) {
+        List<Mesg> merged = new ArrayList<Mesg>();
+        while (merger.hasNext()) {
+            merged.add(merger.next());
+        }
+        return merged;
+    }
+
+    private void assertSameMesgs(final List<Mesg> actual, final List<Mesg> expected) {
+        assertThat(actual.size(), equalTo(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void shouldMatchStableSortOfAllMessages() {
+        List<EventMesg> events = new ArrayList<EventMesg>();
+        for (long ts : new long[] { 0, 10, 10, 60, 120 }) {
+            EventMesg event = new EventMesg();
+            event.setTimestamp(new DateTime(START + ts));
+            events.add(event);
+        }
+
+        // Device info messages are not always in timestamp order
+        List<DeviceInfoMesg> devices = new ArrayList<DeviceInfoMesg>();
+        for (long ts : new long[] { 0, 120, 0, 10 }) {
+            DeviceInfoMesg device = new DeviceInfoMesg();
+            device.setTimestamp(new DateTime(START + ts));
+            devices.add(device);
+        }
+
+        List<RecordMesg> records = new ArrayList<RecordMesg>();
+        for (long ts = 0; ts <= 120; ts += 5) {
+            RecordMesg record = new RecordMesg();
+            record.setTimestamp(new DateTime(START + ts));
+            records.add(record);
+        }
+
+        List<GarminLap> laps = new ArrayList<GarminLap>();
+        List<Mesg> lapMesgs = new ArrayList<Mesg>();
+        for (int lap = 0; lap < 3; lap++) {
+            List<LengthMesg> lengths = new ArrayList<LengthMesg>();
+            for (int length = 1; length <= lap; length++) {
+                LengthMesg lengthMesg = new LengthMesg();
+                lengthMesg.setTimestamp(new DateTime(START + lap * 40 + length * 10));
+                lengths.add(lengthMesg);
+                lapMesgs.add(lengthMesg);
+            }
+            LapMesg lapMesg = new LapMesg();
+            lapMesg.setTimestamp(new DateTime(START + lap * 40 + 30));
+            laps.add(new GarminLap(lapMesg, lengths));
+            lapMesgs.add(lapMesg);
+        }
+
+        ActivityMesg activity = new ActivityMesg();
+        activity.setTimestamp(new DateTime(START + 120));
+        SessionMesg session = new SessionMesg();
+        session.setTimestamp(new DateTime(START + 120));
+
+        List<Mesg> expected = new ArrayList<Mesg>();
+        expected.addAll(events);
+        expected.addAll(devices);
+        expected.addAll(records);
+        expected.addAll(lapMesgs);
+        expected.add(activity);
+        expected.add(session);
+        expected.sort(new GarminDateTimeComparator<Mesg>());
+
+        FitMessageMerger merger = new FitMessageMerger();
+        merger.addMessages(events);
+        merger.addMessages(devices);
+        merger.addMessages(records);
+        merger.addLaps(laps);
+        merger.addMessages(Arrays.asList(activity, session));
+
+        assertSameMesgs(merge(merger), expected);
+    }
+
+    @Test
+    public void shouldMergeRecordColumnsInOrder() {
+        RecordColumns columns = new RecordColumns();
+        for (long ts = 0; ts < 10; ts++) {
+            RecordMesg record = new RecordMesg();
+            record.setTimestamp(new DateTime(START + ts));
+            record.setHeartRate((short) (100 + ts));
+            columns.add(record);
+        }
+        EventMesg event = new EventMesg();
+        event.setTimestamp(new DateTime(START + 5));
+
+        FitMessageMerger merger = new FitMessageMerger();
+        merger.addMessages(Arrays.asList(event));
+        merger.addRecords(columns);
+        List<Mesg> merged = merge(merger);
+
+        assertThat(merged.size(), equalTo(11));
+        assertSame(event, merged.get(5));
+        for (int i = 0; i < merged.size(); i++) {
+            if (i == 5) {
+                continue;
+            }
+            RecordMesg record = (RecordMesg) merged.get(i);
+            assertThat(record.getHeartRate(), equalTo(columns.getHeartRate(i - (i / 6))));
+        }
+    }
+}
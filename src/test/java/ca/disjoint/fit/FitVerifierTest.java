@@ -0,0 +1,140 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.fail;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+
+import java.net.URL;
+import java.net.URISyntaxException;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import picocli.CommandLine;
+
+import org.jline.utils.AttributedString;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.impl.DumbTerminal;
+
+import java.nio.charset.StandardCharsets;
+
+import ca.disjoint.fit.FitVerifier;
+import ca.disjoint.fit.TestUtils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class FitVerifierTest {
+    private FitVerifier inst;
+    private ByteArrayInputStream inContent = null;
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+    private final InputStream originalIn = System.in;
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+    private Terminal terminal;
+
+    @Before
+    public void setUp() {
+        System.setIn(inContent);
+        System.setOut(new PrintStream(outContent));
+        System.setErr(new PrintStream(errContent));
+        terminal = getCustomizedTerminal(inContent, outContent);
+    }
+
+    private Terminal getCustomizedTerminal(final InputStream inContent, final OutputStream outContent) {
+        Terminal t = null;
+        try {
+            t = new DumbTerminal("terminal", "ansi", inContent, outContent, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        return t;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        inst = null;
+        System.setIn(originalIn);
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        terminal = null;
+        TestUtils.deleteAllTestGeneratedFitFiles();
+    }
+
+    @Test
+    public void shouldFailIfNoPathProvided() {
+        String[] args = {};
+        inst = new FitVerifier(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        assertThat(exitCode, equalTo(CommandLine.ExitCode.USAGE));
+        assertThat(errContent.toString(), startsWith("Missing required parameter"));
+    }
+
+    @Test
+    public void shouldVerifyDirectoriesAndZipArchives() throws URISyntaxException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        File resourceDirectory = Paths.get(url.toURI()).toFile().getParentFile();
+        String[] args = { "--jobs", "3", resourceDirectory.getPath() };
+        inst = new FitVerifier(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        String plainOutput = AttributedString.stripAnsi(outContent.toString());
+        assertThat(exitCode, equalTo(0));
+        assertThat(plainOutput,
+                containsString("OK         " + new File(resourceDirectory, "basic-swim.fit").getPath()));
+        assertThat(plainOutput, containsString("1_2700_20190906-swim.zip!"));
+        assertThat(plainOutput, containsString("All files passed verification"));
+    }
+
+    @Test
+    public void shouldReportCorruptAndTruncatedFiles() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        byte[] contents = Files.readAllBytes(Paths.get(url.toURI()));
+        File truncatedFile = new File("truncated-swim.fit");
+        Files.write(truncatedFile.toPath(), Arrays.copyOf(contents, contents.length / 2));
+        File corruptFile = new File("corrupt-swim.fit");
+        contents[contents.length / 2] ^= 0xFF;
+        Files.write(corruptFile.toPath(), contents);
+
+        String[] args = { "--quiet", truncatedFile.getPath(), corruptFile.getPath(), url.getFile() };
+        inst = new FitVerifier(inContent, outContent, terminal, args);
+        int exitCode = inst.start();
+
+        String plainOutput = AttributedString.stripAnsi(outContent.toString());
+        assertThat(exitCode, equalTo(1));
+        assertThat(plainOutput, containsString("TRUNCATED  truncated-swim.fit"));
+        assertThat(plainOutput, containsString("CORRUPT    corrupt-swim.fit"));
+        assertThat(plainOutput, not(containsString("OK ")));
+        assertThat(plainOutput, containsString("2 files failed verification:"));
+    }
+}
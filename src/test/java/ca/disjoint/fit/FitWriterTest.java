@@ -17,7 +17,10 @@
     along with this program.  If not, see <https://www.gnu.org/licenses/>.
 */
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.junit.After;
 
@@ -33,8 +36,11 @@ import ca.disjoint.fit.FitWriter;
 import ca.disjoint.fit.TestUtils;
 import ca.disjoint.fit.GarminSwimActivity;
 import ca.disjoint.fit.GarminActivityLoader;
+import ca.disjoint.fit.Utils;
 
+import com.garmin.fit.EventMesg;
 import com.garmin.fit.HrMesg;
+import com.garmin.fit.RecordMesg;
 
 @SuppressWarnings("checkstyle:MagicNumber")
 public class FitWriterTest {
@@ -103,4 +109,128 @@ public class FitWriterTest {
         validateHrMesgRecords("/1_1765-20151021-sample-swim-with-hr.fit", true);
         validateHrMesgRecords("/1_1765-20151123-sample-swim-with-hr.fit", true);
     }
+
+    @Test
+    public void shouldWriteRecordColumns() throws URISyntaxException, FileNotFoundException, IOException {
+        URL url = this.getClass().getResource("/1_2700_20190621-swim.fit");
+        File inputFitFile = Paths.get(url.toURI()).toFile();
+        GarminSwimActivity original = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(inputFitFile, original);
+
+        GarminSwimActivity columnar = new GarminSwimActivity();
+        columnar.enableRecordColumns();
+        gal = new GarminActivityLoader(inputFitFile, columnar);
+        assertEquals(original.getRecordMessages().size(), columnar.getRecordColumns().size());
+
+        FitWriter fr = new FitWriter(columnar, inputFitFile.getName());
+        File outputFitFile = new File(fr.writeFitFile());
+        GarminSwimActivity written = new GarminSwimActivity();
+        gal = new GarminActivityLoader(outputFitFile, written);
+
+        assertEquals(original.getRecordMessages().size(), written.getRecordMessages().size());
+        for (int i = 0; i < original.getRecordMessages().size(); i++) {
+            RecordMesg expected = original.getRecordMessages().get(i);
+            RecordMesg actual = written.getRecordMessages().get(i);
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getHeartRate(), actual.getHeartRate());
+            assertEquals(expected.getDistance(), actual.getDistance());
+            assertEquals(expected.getSpeed(), actual.getSpeed());
+        }
+        assertEquals(original.getGarminLaps().size(), written.getGarminLaps().size());
+    }
+
+    private int countTemporaryFiles(final File directory) {
+        int numTempFiles = 0;
+        for (String name : directory.getAbsoluteFile().list()) {
+            if (name.endsWith(".tmp")) {
+                numTempFiles++;
+            }
+        }
+        return numTempFiles;
+    }
+
+    @Test
+    public void shouldNotLeaveTemporaryFilesBehind() throws URISyntaxException, FileNotFoundException, IOException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        File inputFitFile = Paths.get(url.toURI()).toFile();
+        GarminSwimActivity garminSwimActivity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(inputFitFile, garminSwimActivity);
+        int numTempFiles = countTemporaryFiles(new File("."));
+
+        FitWriter fr = new FitWriter(garminSwimActivity, inputFitFile.getName());
+        File outputFitFile = new File(fr.writeFitFile());
+
+        assertTrue("Updated fit file did not get created", outputFitFile.exists());
+        assertTrue(Utils.checkFitFileIntegrity(outputFitFile));
+        assertEquals(numTempFiles, countTemporaryFiles(new File(".")));
+    }
+
+    @Test
+    public void shouldNotLeavePartialFileBehindOnFailure() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        File inputFitFile = Paths.get(url.toURI()).toFile();
+        GarminSwimActivity garminSwimActivity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(inputFitFile, garminSwimActivity);
+        int numTempFiles = countTemporaryFiles(new File("."));
+
+        // An event without a timestamp can't be merged in, which fails the write part way through
+        garminSwimActivity.addEventMessage(new EventMesg());
+        String expectedFileName = "basic-swim-" + garminSwimActivity.getCreationTime().getTimestamp() + ".fit";
+
+        FitWriter fr = new FitWriter(garminSwimActivity, inputFitFile.getName());
+        try {
+            fr.writeFitFile();
+            fail("Writing an event without a timestamp should fail");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getMessage().contains("without a timestamp"));
+        }
+
+        assertFalse("Partial fit file should not exist", new File(expectedFileName).exists());
+        assertEquals(numTempFiles, countTemporaryFiles(new File(".")));
+    }
+
+    @Test
+    public void shouldNotOverwriteAnExistingFile() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        File inputFitFile = Paths.get(url.toURI()).toFile();
+        GarminSwimActivity garminSwimActivity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(inputFitFile, garminSwimActivity);
+        String baseName = "basic-swim-" + garminSwimActivity.getCreationTime().getTimestamp();
+
+        String first = new FitWriter(garminSwimActivity, inputFitFile.getName()).writeFitFile();
+        long firstSize = new File(first).length();
+        try {
+            new FitWriter(garminSwimActivity, inputFitFile.getName()).writeFitFile();
+            fail("Existing FIT file was not detected");
+        } catch (RuntimeException ex) {
+            assertEquals("File \"" + baseName + ".fit\" already exists and will not be overwritten", ex.getMessage());
+        }
+
+        assertEquals(firstSize, new File(first).length());
+        assertTrue(Utils.checkFitFileIntegrity(new File(first)));
+        assertFalse("Numbered fit file should not exist", new File(baseName + "-1.fit").exists());
+    }
+
+    @Test
+    public void shouldNumberTakenNamesWhenAsked() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        File inputFitFile = Paths.get(url.toURI()).toFile();
+        GarminSwimActivity garminSwimActivity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(inputFitFile, garminSwimActivity);
+        String baseName = "basic-swim-" + garminSwimActivity.getCreationTime().getTimestamp();
+
+        FitWriter firstWriter = new FitWriter(garminSwimActivity, inputFitFile.getName());
+        firstWriter.setNumberTakenNames(true);
+        String first = firstWriter.writeFitFile();
+        FitWriter secondWriter = new FitWriter(garminSwimActivity, inputFitFile.getName());
+        secondWriter.setNumberTakenNames(true);
+        String second = secondWriter.writeFitFile();
+
+        assertEquals(baseName + ".fit", first);
+        assertFalse(firstWriter.isNumbered());
+        assertEquals(baseName + "-1.fit", second);
+        assertTrue(secondWriter.isNumbered());
+        assertTrue(Utils.checkFitFileIntegrity(new File(first)));
+        assertTrue(Utils.checkFitFileIntegrity(new File(second)));
+    }
 }
@@ -0,0 +1,223 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.After;
+
+import java.net.URL;
+import java.net.URISyntaxException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import ca.disjoint.fit.GarminSwimActivity;
+import ca.disjoint.fit.GarminActivityLoader;
+import ca.disjoint.fit.TestUtils;
+import ca.disjoint.fit.FitFileInputStream;
+import ca.disjoint.fit.FitProjection;
+import ca.disjoint.fit.GarminGenericActivity;
+
+import com.garmin.fit.MesgNum;
+import com.garmin.fit.RecordMesg;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class GarminActivityLoaderTest {
+    private GarminSwimActivity activity;
+
+    private byte[] readTestFile(final String filename) throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource(filename);
+        return Files.readAllBytes(Paths.get(url.toURI()));
+    }
+
+    private void assertLoadFails(final byte[] contents, final String filename) throws IOException {
+        File fitFile = new File(filename);
+        Files.write(fitFile.toPath(), contents);
+
+        activity = new GarminSwimActivity();
+        try {
+            GarminActivityLoader gal = new GarminActivityLoader(fitFile, activity);
+            fail("Expected the integrity check to fail for " + filename);
+        } catch (RuntimeException ex) {
+            assertEquals("FIT file integrity check failed", ex.getMessage());
+        }
+
+        // Nothing from the partially decoded file should remain in the activity
+        assertNull(activity.getFileIdMesg());
+        assertNull(activity.getSessionMesg());
+        assertTrue(activity.getGarminLaps().isEmpty());
+        assertTrue(activity.getRecordMessages().isEmpty());
+    }
+
+    private byte[] readFully(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int count;
+        while ((count = in.read(buf, 0, buf.length)) != -1) {
+            out.write(buf, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        activity = null;
+        TestUtils.deleteAllTestGeneratedFitFiles();
+    }
+
+    @Test
+    public void shouldLoadValidFitFile() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        activity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(Paths.get(url.toURI()).toFile(), activity);
+        assertEquals(2, activity.getNumTotalPoolLaps());
+    }
+
+    @Test
+    public void shouldRollBackActivityOnFileCrcMismatch() throws URISyntaxException, IOException {
+        byte[] contents = readTestFile("/basic-swim.fit");
+
+        // Flip the bits of the trailing CRC, leaving the message contents decodable
+        contents[contents.length - 1] = (byte) ~contents[contents.length - 1];
+        assertLoadFails(contents, "corrupt-crc.fit");
+    }
+
+    @Test
+    public void shouldRollBackActivityOnTruncatedFile() throws URISyntaxException, IOException {
+        byte[] contents = readTestFile("/basic-swim.fit");
+        assertLoadFails(Arrays.copyOf(contents, contents.length / 2), "truncated.fit");
+    }
+
+    @Test
+    public void shouldReadSameBytesFromMappedAndHeapBuffers() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/multiple-lap-swim.fit");
+        File fitFile = Paths.get(url.toURI()).toFile();
+
+        FitFileInputStream mapped = new FitFileInputStream(fitFile, 0);
+        FitFileInputStream heap = new FitFileInputStream(fitFile, Long.MAX_VALUE);
+        assertTrue(mapped.isMapped());
+        assertFalse(heap.isMapped());
+        assertArrayEquals(readTestFile("/multiple-lap-swim.fit"), readFully(mapped));
+        assertArrayEquals(readTestFile("/multiple-lap-swim.fit"), readFully(heap));
+    }
+
+    @Test
+    public void shouldLoadGzippedFitFile() throws URISyntaxException, IOException {
+        File gzFile = new File("basic-swim.fit.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzFile.toPath()))) {
+            out.write(readTestFile("/basic-swim.fit"));
+        }
+
+        try {
+            activity = new GarminSwimActivity();
+            GarminActivityLoader gal = new GarminActivityLoader(gzFile, activity);
+            assertEquals(2, activity.getNumTotalPoolLaps());
+        } finally {
+            gzFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldLoadZippedFitFile() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/1_2700_20190906-swim.zip");
+        activity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(Paths.get(url.toURI()).toFile(), activity);
+        assertTrue(activity.getGarminLaps().size() > 0);
+    }
+
+    @Test
+    public void shouldOnlyLoadProjectedMessagesAndFields() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/1_2347_20190621-hr.fit");
+        File hrFile = Paths.get(url.toURI()).toFile();
+
+        GarminGenericActivity fullActivity = new GarminGenericActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(hrFile, fullActivity);
+
+        GarminGenericActivity hrActivity = new GarminGenericActivity();
+        FitProjection projection = new FitProjection().include(MesgNum.RECORD, RecordMesg.HeartRateFieldNum);
+        gal = new GarminActivityLoader(hrFile, hrActivity, projection);
+
+        assertNull(hrActivity.getFileIdMesg());
+        assertTrue(hrActivity.getEventMessages().isEmpty());
+        assertTrue(hrActivity.getDeviceInfoMessages().isEmpty());
+        assertEquals(fullActivity.getRecordMessages().size(), hrActivity.getRecordMessages().size());
+        for (int i = 0; i < hrActivity.getRecordMessages().size(); i++) {
+            RecordMesg full = fullActivity.getRecordMessages().get(i);
+            RecordMesg projected = hrActivity.getRecordMessages().get(i);
+            assertEquals(full.getTimestamp(), projected.getTimestamp());
+            assertEquals(full.getHeartRate(), projected.getHeartRate());
+            assertNull(projected.getDistance());
+        }
+    }
+
+    @Test
+    public void shouldLazilyLoadSameMessagesAsFullLoad() throws URISyntaxException, IOException {
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        File swimFile = Paths.get(url.toURI()).toFile();
+
+        GarminSwimActivity fullActivity = new GarminSwimActivity();
+        GarminActivityLoader gal = new GarminActivityLoader(swimFile, fullActivity);
+
+        activity = new GarminSwimActivity();
+        gal = new GarminActivityLoader(swimFile, activity, true);
+
+        assertEquals(fullActivity.getActivitySummary(), activity.getActivitySummary());
+        assertEquals(fullActivity.getCreationTime().getTimestamp(), activity.getCreationTime().getTimestamp());
+        assertEquals(fullActivity.getGarminLaps().size(), activity.getGarminLaps().size());
+        for (int i = 0; i < activity.getGarminLaps().size(); i++) {
+            assertEquals(fullActivity.getGarminLap(i).getLengthMessages().size(),
+                    activity.getGarminLap(i).getLengthMessages().size());
+        }
+        assertEquals(fullActivity.getRecordMessages().size(), activity.getRecordMessages().size());
+        assertEquals(fullActivity.getEventMessages().size(), activity.getEventMessages().size());
+        assertEquals(fullActivity.getDeviceInfoMessages().size(), activity.getDeviceInfoMessages().size());
+        assertEquals(fullActivity.getActivityMesg().getTimestamp().getTimestamp(),
+                activity.getActivityMesg().getTimestamp().getTimestamp());
+    }
+
+    @Test
+    public void shouldRollBackLazyActivityOnFileCrcMismatch() throws URISyntaxException, IOException {
+        byte[] contents = readTestFile("/basic-swim.fit");
+        contents[contents.length - 1] ^= 0xFF;
+        File fitFile = new File("lazy-crc-mismatch.fit");
+        Files.write(fitFile.toPath(), contents);
+
+        activity = new GarminSwimActivity();
+        try {
+            GarminActivityLoader gal = new GarminActivityLoader(fitFile, activity, true);
+            fail("Expected the integrity check to fail");
+        } catch (RuntimeException ex) {
+            assertEquals("FIT file integrity check failed", ex.getMessage());
+        }
+        assertNull(activity.getSessionMesg());
+        assertTrue(activity.getGarminLaps().isEmpty());
+    }
+}
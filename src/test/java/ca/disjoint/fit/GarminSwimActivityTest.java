@@ -33,7 +33,10 @@ import java.io.IOException;
 import ca.disjoint.fit.GarminSwimActivity;
 import ca.disjoint.fit.GarminActivityLoader;
 
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.LengthType;
 import com.garmin.fit.Sport;
+import com.garmin.fit.SwimStroke;
 import com.garmin.fit.SubSport;
 
 import org.jline.utils.AttributedString;
@@ -221,4 +224,51 @@ public class GarminSwimActivityTest {
                 + AttributedString.stripAnsi(System.lineSeparator()) + "         Strokes: FR,BR,INV";
         assertThat(AttributedString.stripAnsi(activity.getLapSummary(5)), equalTo(lap6));
     }
+
+    @Test
+    public void shouldOnlyRecalculateDirtyLaps() {
+        setUpSwimData("/multiple-lap-swim.fit");
+        activity.recalculateActivityStats();
+
+        // Turn lap 7 into all freestyle, and compare against recalculating everything
+        for (LengthMesg length : activity.getGarminLap(6).getLengthMessages()) {
+            length.setSwimStroke(SwimStroke.FREESTYLE);
+            length.setLengthType(LengthType.ACTIVE);
+        }
+        activity.getGarminLap(6).getLapMessage().setSwimStroke(SwimStroke.FREESTYLE);
+        activity.markLapDirty(6);
+        activity.recalculateDirtyLapStats();
+        float totalDistance = activity.getTotalDistance();
+        float avgSpeed = activity.getAvgSpeed();
+        float maxSpeed = activity.getMaxSpeed();
+        float movingTime = activity.getMovingTime();
+        String summary = activity.getActivitySummary();
+
+        activity.recalculateActivityStats();
+        assertEquals(activity.getTotalDistance(), totalDistance, 0.00);
+        assertEquals(activity.getAvgSpeed(), avgSpeed, 0.0001);
+        assertEquals(activity.getMaxSpeed(), maxSpeed, 0.0001);
+        assertEquals(activity.getMovingTime(), movingTime, 0.001);
+        assertEquals(activity.getActivitySummary(), summary);
+    }
+
+    @Test
+    public void shouldReRenderOnlyDirtyLapSummaries() {
+        setUpSwimData("/multiple-lap-swim.fit");
+        activity.recalculateActivityStats();
+        String firstLap = activity.getLapSummary(0);
+        String seventhLap = activity.getLapSummary(6);
+        assertTrue(firstLap == activity.getLapSummary(0));
+
+        activity.getGarminLap(6).getLapMessage().setSwimStroke(SwimStroke.BREASTSTROKE);
+        activity.markLapDirty(6);
+        activity.recalculateDirtyLapStats();
+        assertTrue(firstLap == activity.getLapSummary(0));
+        assertEquals(
+                "[Lap 7]  8 lengths  (BREASTSTROKE) 04:16 (avg 03:09/100m, best 02:11/100m)" + System.lineSeparator()
+                        + "         Strokes: BR,BR,BR,BR,BR,BR,FR,BR",
+                AttributedString.stripAnsi(activity.getLapSummary(6)));
+        assertTrue(activity.getLapSummary().contains(firstLap));
+        assertTrue(!activity.getLapSummary().contains(seventhLap));
+    }
 }
@@ -0,0 +1,113 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import com.garmin.fit.DateTime;
+import com.garmin.fit.Mesg;
+import com.garmin.fit.EventMesg;
+import com.garmin.fit.RecordMesg;
+
+import ca.disjoint.fit.GarminDateTimeComparator;
+import ca.disjoint.fit.GarminTimestampSorter;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class GarminTimestampSorterTest {
+    private RecordMesg getRecordMesg(final long timestamp, final short heartRate) {
+        RecordMesg mesg = new RecordMesg();
+        mesg.setTimestamp(new DateTime(timestamp));
+        mesg.setHeartRate(heartRate);
+        return mesg;
+    }
+
+    @Test
+    public void shouldSortMessagesByTimestamp() {
+        List<RecordMesg> records = new ArrayList<RecordMesg>();
+        long[] timestamps = { 943140000L, 943139990L, 943140005L, 943139995L, 943140001L };
+        for (long ts : timestamps) {
+            records.add(getRecordMesg(ts, (short) 120));
+        }
+
+        GarminTimestampSorter.sort(records);
+
+        assertThat(records.get(0).getTimestamp().getTimestamp(), equalTo(943139990L));
+        assertThat(records.get(1).getTimestamp().getTimestamp(), equalTo(943139995L));
+        assertThat(records.get(2).getTimestamp().getTimestamp(), equalTo(943140000L));
+        assertThat(records.get(3).getTimestamp().getTimestamp(), equalTo(943140001L));
+        assertThat(records.get(4).getTimestamp().getTimestamp(), equalTo(943140005L));
+    }
+
+    @Test
+    public void shouldSortTimestampsPastTheSignBit() {
+        List<RecordMesg> records = new ArrayList<RecordMesg>();
+        long[] timestamps = { 0xFFFFFFF0L, 0x7FFFFFFFL, 0x80000000L, 943140000L };
+        for (long ts : timestamps) {
+            records.add(getRecordMesg(ts, (short) 120));
+        }
+
+        GarminTimestampSorter.sort(records);
+
+        assertThat(records.get(0).getTimestamp().getTimestamp(), equalTo(943140000L));
+        assertThat(records.get(1).getTimestamp().getTimestamp(), equalTo(0x7FFFFFFFL));
+        assertThat(records.get(2).getTimestamp().getTimestamp(), equalTo(0x80000000L));
+        assertThat(records.get(3).getTimestamp().getTimestamp(), equalTo(0xFFFFFFF0L));
+    }
+
+    @Test
+    public void shouldReturnStableIndexOrder() {
+        long[] timestamps = { 0x80000000L, 943140000L, 0x80000000L, 943139990L, 0L };
+
+        int[] order = GarminTimestampSorter.sortedOrder(timestamps, 4);
+
+        assertThat(order.length, equalTo(4));
+        assertThat(order[0], equalTo(3));
+        assertThat(order[1], equalTo(1));
+        assertThat(order[2], equalTo(0));
+        assertThat(order[3], equalTo(2));
+    }
+
+    @Test
+    public void shouldKeepEqualTimestampsInOriginalOrder() {
+        List<Mesg> mesgs = new ArrayList<Mesg>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                EventMesg event = new EventMesg();
+                event.setTimestamp(new DateTime(943140000L + (i % 7)));
+                mesgs.add(event);
+            } else {
+                mesgs.add(getRecordMesg(943140000L + (i % 7), (short) i));
+            }
+        }
+        List<Mesg> expected = new ArrayList<Mesg>(mesgs);
+        expected.sort(new GarminDateTimeComparator<Mesg>());
+
+        GarminTimestampSorter.sort(mesgs);
+
+        assertThat(mesgs.size(), equalTo(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), mesgs.get(i));
+        }
+    }
+}
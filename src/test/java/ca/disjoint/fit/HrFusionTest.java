@@ -0,0 +1,131 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import ca.disjoint.fit.HrFusion;
+import ca.disjoint.fit.HrSource;
+import ca.disjoint.fit.RecordColumns;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class HrFusionTest {
+    private static final long START = 943140000L;
+
+    private HrSource getSource(final String spec, final long[] offsets, final short[] heartRates) {
+        RecordColumns samples = new RecordColumns();
+        for (int i = 0; i < offsets.length; i++) {
+            samples.add(START + offsets[i], heartRates[i]);
+        }
+        HrSource source = HrSource.parse(spec);
+        source.setSamples(samples);
+        return source;
+    }
+
+    private void assertSamples(final RecordColumns fused, final long[] offsets, final short[] heartRates) {
+        assertThat(fused.size(), equalTo(offsets.length));
+        for (int i = 0; i < offsets.length; i++) {
+            assertThat(fused.getTimestamp(i), equalTo(START + offsets[i]));
+            assertThat(fused.getHeartRate(i), equalTo(heartRates[i]));
+        }
+    }
+
+    @Test
+    public void shouldParseSourceRules() {
+        HrSource source = HrSource.parse("strap.fit,min=40,max=200,max-delta=15,max-gap=3");
+        assertThat(source.getFile(), equalTo(new File("strap.fit")));
+        assertThat(source.getMinHeartRate(), equalTo(40));
+        assertThat(source.getMaxHeartRate(), equalTo(200));
+        assertThat(source.getMaxDelta(), equalTo(15));
+        assertThat(source.getMaxGap(), equalTo(3));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void shouldRejectUnknownRules() {
+        HrSource.parse("strap.fit,foo=1");
+    }
+
+    @Test
+    public void shouldPreferTheFirstSource() throws IOException {
+        HrSource strap = getSource("strap.fit", new long[] { 0, 1, 2 }, new short[] { 100, 101, 102 });
+        HrSource watch = getSource("watch.fit", new long[] { 0, 1, 2 }, new short[] { 90, 91, 92 });
+        RecordColumns fused = new HrFusion(Arrays.asList(strap, watch)).fuse(START, START + 2);
+
+        assertSamples(fused, new long[] { 0, 1, 2 }, new short[] { 100, 101, 102 });
+    }
+
+    @Test
+    public void shouldFallBackOnDropouts() throws IOException {
+        HrSource strap = getSource("strap.fit,max-gap=2", new long[] { 0, 1, 7, 8 },
+                new short[] { 100, 101, 107, 108 });
+        HrSource watch = getSource("watch.fit", new long[] { 0, 2, 4, 5, 6, 7, 8 },
+                new short[] { 90, 92, 94, 95, 96, 97, 98 });
+        RecordColumns fused = new HrFusion(Arrays.asList(strap, watch)).fuse(START, START + 8);
+
+        // The strap is still considered to be recording for 2 seconds after its last sample, so the watch only takes
+        // over at 4
+        assertSamples(fused, new long[] { 0, 1, 4, 5, 6, 7, 8 }, new short[] { 100, 101, 94, 95, 96, 107, 108 });
+    }
+
+    @Test
+    public void shouldApplyTheQualityRules() throws IOException {
+        HrSource strap = getSource("strap.fit,min=40,max=200,max-delta=10", new long[] { 0, 1, 2, 3, 4 },
+                new short[] { 100, 250, 150, 20, 105 });
+        RecordColumns fused = new HrFusion(Arrays.asList(strap)).fuse(START, START + 4);
+
+        assertSamples(fused, new long[] { 0, 4 }, new short[] { 100, 105 });
+    }
+
+    @Test
+    public void shouldOnlyFuseTheGivenWindow() throws IOException {
+        HrSource strap = getSource("strap.fit", new long[] { 0, 3, 1, 2, 4, 5 },
+                new short[] { 100, 103, 101, 102, 104, 105 });
+        RecordColumns fused = new HrFusion(Arrays.asList(strap)).fuse(START + 2, START + 4);
+
+        assertSamples(fused, new long[] { 2, 3, 4 }, new short[] { 102, 103, 104 });
+    }
+
+    @Test
+    public void shouldCheckTheIntegrityOfSourcesThatWereNotPreloaded() throws IOException, URISyntaxException {
+        File hrFile = Paths.get(this.getClass().getResource("/1_2347_20190621-hr.fit").toURI()).toFile();
+        File corruptFile = new File("corrupt-hr-source.fit");
+        byte[] bytes = Files.readAllBytes(hrFile.toPath());
+        bytes[bytes.length - 1] = (byte) ~bytes[bytes.length - 1];
+        Files.write(corruptFile.toPath(), bytes);
+
+        try {
+            // Only the first second of the file is fused, its file CRC is checked all the same
+            new HrFusion(Arrays.asList(new HrSource(corruptFile))).fuse(0, 1);
+            fail("Corrupt HR source was not rejected");
+        } catch (RuntimeException ex) {
+            assertThat(ex.getMessage(), equalTo("FIT file integrity check failed"));
+        } finally {
+            corruptFile.delete();
+        }
+    }
+}
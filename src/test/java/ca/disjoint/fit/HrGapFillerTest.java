@@ -0,0 +1,141 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.garmin.fit.DateTime;
+import com.garmin.fit.RecordMesg;
+
+import ca.disjoint.fit.HrGapFiller;
+import ca.disjoint.fit.RecordColumns;
+import ca.disjoint.fit.Utils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class HrGapFillerTest {
+    private static final long START = 943140000L;
+
+    private RecordColumns getSamples(final long[] offsets, final short[] heartRates) {
+        RecordColumns samples = new RecordColumns();
+        for (int i = 0; i < offsets.length; i++) {
+            samples.add(START + offsets[i], heartRates[i]);
+        }
+        return samples;
+    }
+
+    private void assertOneHertz(final RecordColumns filled, final long first, final long last) {
+        assertThat(filled.size(), equalTo((int) (last - first + 1)));
+        for (int i = 0; i < filled.size(); i++) {
+            assertThat(filled.getTimestamp(i), equalTo(START + first + i));
+        }
+    }
+
+    @Test
+    public void shouldInterpolateLinearly() {
+        RecordColumns samples = getSamples(new long[] { 0, 1, 5 }, new short[] { 100, 100, 120 });
+        RecordColumns filled = new HrGapFiller(HrGapFiller.Fill.LINEAR).fill(samples);
+
+        assertOneHertz(filled, 0, 5);
+        short[] expected = { 100, 100, 105, 110, 115, 120 };
+        for (int i = 0; i < expected.length; i++) {
+            assertThat(filled.getHeartRate(i), equalTo(expected[i]));
+        }
+    }
+
+    @Test
+    public void shouldHoldLastHeartRate() {
+        RecordColumns samples = getSamples(new long[] { 0, 4 }, new short[] { 90, 150 });
+        RecordColumns filled = new HrGapFiller(HrGapFiller.Fill.HOLD).fill(samples);
+
+        assertOneHertz(filled, 0, 4);
+        short[] expected = { 90, 90, 90, 90, 150 };
+        for (int i = 0; i < expected.length; i++) {
+            assertThat(filled.getHeartRate(i), equalTo(expected[i]));
+        }
+    }
+
+    @Test
+    public void shouldPickRandomHeartRatesWithinBounds() {
+        RecordColumns samples = getSamples(new long[] { 0, 100 }, new short[] { 150, 130 });
+        RecordColumns filled = new HrGapFiller(HrGapFiller.Fill.RANDOM).fill(samples);
+
+        assertOneHertz(filled, 0, 100);
+        for (int i = 0; i < filled.size(); i++) {
+            assertTrue(filled.getHeartRate(i) >= 130 && filled.getHeartRate(i) <= 150);
+        }
+    }
+
+    @Test
+    public void shouldSortSamplesAndSkipMissingHeartRates() {
+        RecordColumns samples = getSamples(new long[] { 10, 0, 5, 7 },
+                new short[] { 110, 100, RecordColumns.MISSING_SHORT, 107 });
+        RecordColumns filled = new HrGapFiller(HrGapFiller.Fill.LINEAR).fill(samples);
+
+        assertOneHertz(filled, 0, 10);
+        assertTrue(filled.isSorted());
+        assertThat(filled.getHeartRate(5), equalTo((short) 105));
+        assertThat(filled.getHeartRate(7), equalTo((short) 107));
+        assertThat(filled.getHeartRate(10), equalTo((short) 110));
+    }
+
+    @Test
+    public void shouldFillInRecordMessages() {
+        RecordMesg first = new RecordMesg();
+        first.setTimestamp(new DateTime(START + 3));
+        first.setHeartRate((short) 120);
+        RecordMesg second = new RecordMesg();
+        second.setTimestamp(new DateTime(START));
+        second.setHeartRate((short) 120);
+        RecordMesg noHr = new RecordMesg();
+        noHr.setTimestamp(new DateTime(START + 10));
+
+        List<RecordMesg> filled = Utils.getFilledInRecordMsgs(Arrays.asList(first, second, noHr));
+
+        assertThat(filled.size(), equalTo(4));
+        for (int i = 0; i < filled.size(); i++) {
+            assertThat(filled.get(i).getTimestamp().getTimestamp(), equalTo(START + i));
+            assertThat(filled.get(i).getHeartRate(), equalTo((short) 120));
+        }
+    }
+
+    @Test
+    public void shouldOnlyFillInsideWindow() {
+        RecordColumns samples = getSamples(new long[] { 0, 100, 200, 300 }, new short[] { 80, 100, 120, 140 });
+        RecordColumns filled = new HrGapFiller(HrGapFiller.Fill.HOLD).fill(samples, START + 150, START + 250);
+
+        assertOneHertz(filled, 150, 250);
+        assertThat(filled.getHeartRate(0), equalTo((short) 100));
+        assertThat(filled.getHeartRate(49), equalTo((short) 100));
+        assertThat(filled.getHeartRate(50), equalTo((short) 120));
+        assertThat(filled.getHeartRate(100), equalTo((short) 120));
+    }
+
+    @Test
+    public void shouldReturnNothingOutsideRecording() {
+        RecordColumns samples = getSamples(new long[] { 0, 10 }, new short[] { 80, 100 });
+
+        assertThat(new HrGapFiller(HrGapFiller.Fill.LINEAR).fill(samples, START + 20, START + 30).size(), equalTo(0));
+        assertThat(new HrGapFiller(HrGapFiller.Fill.LINEAR).fill(samples, START - 30, START - 20).size(), equalTo(0));
+    }
+}
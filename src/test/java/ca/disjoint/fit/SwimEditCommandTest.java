@@ -0,0 +1,121 @@
+
+/*
+    Activity Manager
+    Copyright (C) 2019 - Marvin Pinto
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+import org.junit.Before;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.LengthType;
+import com.garmin.fit.SwimStroke;
+
+import ca.disjoint.fit.GarminSwimActivity;
+import ca.disjoint.fit.SwimEditCommand;
+import ca.disjoint.fit.TestUtils;
+
+@SuppressWarnings("checkstyle:MagicNumber")
+public class SwimEditCommandTest {
+    private GarminSwimActivity activity;
+
+    private List<SwimStroke> getStrokes(final int lapIndex) {
+        List<SwimStroke> strokes = new ArrayList<SwimStroke>();
+        for (LengthMesg length : activity.getGarminLap(lapIndex).getLengthMessages()) {
+            strokes.add(length.getSwimStroke());
+        }
+        return strokes;
+    }
+
+    @Before
+    public void setUp() {
+        activity = TestUtils.getSwimActivity(2);
+        activity.recalculateActivityStats();
+    }
+
+    @Test
+    public void shouldRecognizeCommands() {
+        assertTrue(SwimEditCommand.isCommand("3-20 fr"));
+        assertTrue(SwimEditCommand.isCommand(" lap 5 = im "));
+        assertFalse(SwimEditCommand.isCommand("freestyle"));
+        assertFalse(SwimEditCommand.isCommand("5"));
+    }
+
+    @Test
+    public void shouldParseStrokes() {
+        assertThat(SwimEditCommand.parse("all fr").getStroke(), equalTo(SwimStroke.FREESTYLE));
+        assertThat(SwimEditCommand.parse("lap 2=butterfly").getStroke(), equalTo(SwimStroke.BUTTERFLY));
+        assertThat(SwimEditCommand.parse("fill-invalid BK").getStroke(), equalTo(SwimStroke.BACKSTROKE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidStrokes() {
+        SwimEditCommand.parse("all lambada");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidRanges() {
+        SwimEditCommand.parse("5-3 fr");
+    }
+
+    @Test
+    public void shouldEditARangeOfLengths() {
+        int numChanged = SwimEditCommand.parse("2-3 fr").apply(activity, Arrays.asList(0));
+
+        assertThat(numChanged, equalTo(2));
+        assertThat(getStrokes(0), equalTo(Arrays.asList(SwimStroke.BREASTSTROKE, SwimStroke.FREESTYLE,
+                SwimStroke.FREESTYLE, SwimStroke.BREASTSTROKE)));
+        assertThat(activity.getGarminLap(0).getLapMessage().getSwimStroke(), equalTo(SwimStroke.MIXED));
+        assertThat(activity.getGarminLap(1).getLapMessage().getSwimStroke(), equalTo(SwimStroke.BREASTSTROKE));
+    }
+
+    @Test
+    public void shouldEditAWholeLap() {
+        int numChanged = SwimEditCommand.parse("lap 2 = im").apply(activity, activity.getActiveSwimLaps());
+
+        assertThat(numChanged, equalTo(4));
+        assertThat(activity.getGarminLap(1).getLapMessage().getSwimStroke(), equalTo(SwimStroke.IM));
+        assertThat(activity.getGarminLap(0).getLapMessage().getSwimStroke(), equalTo(SwimStroke.BREASTSTROKE));
+    }
+
+    @Test
+    public void shouldOnlyFillInvalidLengths() {
+        LengthMesg idle = activity.getGarminLap(1).getLengthMessages().get(2);
+        idle.setLengthType(LengthType.IDLE);
+        activity.markLapDirty(1);
+        activity.recalculateDirtyLapStats();
+        assertThat(activity.getGarminLap(1).getLapMessage().getNumActiveLengths(), equalTo(3));
+
+        int numChanged = SwimEditCommand.parse("fill-invalid fr").apply(activity, activity.getActiveSwimLaps());
+        assertThat(numChanged, equalTo(1));
+        assertThat(idle.getSwimStroke(), equalTo(SwimStroke.FREESTYLE));
+        assertThat(activity.getGarminLap(1).getLapMessage().getNumActiveLengths(), equalTo(4));
+        assertThat(activity.getTotalDistance(), equalTo(200f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireASingleLapForLengthRanges() {
+        SwimEditCommand.parse("2-3 fr").apply(activity, activity.getActiveSwimLaps());
+    }
+}
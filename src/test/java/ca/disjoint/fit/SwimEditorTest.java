@@ -27,6 +27,7 @@ import org.junit.After;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.CoreMatchers.containsString;
 
 import java.net.URL;
 import java.io.ByteArrayOutputStream;
@@ -47,6 +48,7 @@ import org.jline.terminal.impl.DumbTerminal;
 
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 
 import ca.disjoint.fit.SwimEditor;
 import ca.disjoint.fit.TestUtils;
@@ -259,6 +261,46 @@ public class SwimEditorTest {
         assertTrue("Output did not contain \"Strokes: FR,BR,BR,BR,BR,BR\" - output: " + plainOutput, matches);
     }
 
+    @Test
+    public void shouldEditSwimmingLapsFullScreen() throws IOException, InterruptedException {
+        StringBuilder sb = new StringBuilder();
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        String[] args = { "--verbose", "--full-screen", url.getFile() };
+
+        PipedInputStream pin = new PipedInputStream();
+        PipedOutputStream pout = new PipedOutputStream();
+        pout.connect(pin);
+        terminal = getCustomizedTerminal(pin, outContent);
+
+        Thread th = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                    // Enter to accept the preset pool length of 22.86
+                    sb.append("\n");
+                    // Move down from lap #1 to its first length and set it to freestyle
+                    sb.append("j1");
+                    // Done editing
+                    sb.append("q");
+                    pout.write(sb.toString().getBytes());
+                    pout.flush();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        th.start();
+
+        inst = new SwimEditor(pin, outContent, terminal, args);
+        int exitCode = inst.start();
+        th.join();
+
+        String plainOutput = AttributedString.stripAnsi(outContent.toString());
+        assertThat(exitCode, equalTo(CommandLine.ExitCode.OK));
+        boolean matches = TestUtils.doesRegexPatternMatch(".*Strokes:.*FR,BR,BR,BR,BR,BR.*", plainOutput);
+        assertTrue("Output did not contain \"Strokes: FR,BR,BR,BR,BR,BR\" - output: " + plainOutput, matches);
+    }
+
     @Test
     public void shouldCreateUpdatedFitFile() throws IOException, InterruptedException {
         StringBuilder sb = new StringBuilder();
@@ -298,6 +340,62 @@ public class SwimEditorTest {
         assertTrue("Updated fit file " + filepath + " did not get created", updatedFitFile.exists());
     }
 
+    @Test
+    public void shouldRecordAndReplayEditJournal() throws IOException, InterruptedException {
+        StringBuilder sb = new StringBuilder();
+        URL url = this.getClass().getResource("/basic-swim.fit");
+        File journalFile = new File("test-swim-journal.txt");
+        String[] args = { "--no-randomize-ctime", "--verbose", "--edit", "--journal", journalFile.getPath(),
+                url.getFile() };
+
+        PipedInputStream pin = new PipedInputStream();
+        PipedOutputStream pout = new PipedOutputStream();
+        pout.connect(pin);
+        terminal = getCustomizedTerminal(pin, outContent);
+
+        Thread th = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                    // Enter to accept the preset pool length of 22.86
+                    sb.append("\n");
+                    // Change every length to freestyle, then -1 to simulate ctrl+d
+                    sb.append("all fr\n");
+                    sb.append("-1\n");
+                    pout.write(sb.toString().getBytes());
+                    pout.flush();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        th.start();
+
+        try {
+            inst = new SwimEditor(pin, outContent, terminal, args);
+            int exitCode = inst.start();
+            th.join();
+            assertThat(exitCode, equalTo(CommandLine.ExitCode.OK));
+
+            String journal = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+            assertThat(journal, containsString("pool-length = 22.86"));
+            assertThat(journal, containsString("edit = all fr"));
+
+            // Replaying the journal, without editing, writes out the edited file all the same
+            TestUtils.deleteAllTestGeneratedFitFiles();
+            String[] replayArgs = { "--no-randomize-ctime", "--verbose", "--journal", journalFile.getPath(),
+                    url.getFile() };
+            inst = new SwimEditor(inContent, outContent, getCustomizedTerminal(inContent, outContent), replayArgs);
+            assertThat(inst.start(), equalTo(CommandLine.ExitCode.OK));
+
+            String filepath = System.getProperty("java.io.tmpdir") + FileSystems.getDefault().getSeparator()
+                    + "maven-tests/basic-swim-899638839.fit";
+            assertTrue("Updated fit file " + filepath + " did not get created", new File(filepath).exists());
+        } finally {
+            journalFile.delete();
+        }
+    }
+
     @Test
     public void shouldNotCreateUpdatedFitFile() throws IOException, InterruptedException {
         URL url = this.getClass().getResource("/basic-swim.fit");
@@ -30,7 +30,16 @@ import java.nio.file.FileVisitor;
 import java.nio.file.FileVisitResult;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.garmin.fit.LapMesg;
+import com.garmin.fit.LengthMesg;
+import com.garmin.fit.LengthType;
+import com.garmin.fit.SessionMesg;
+import com.garmin.fit.SwimStroke;
+
+@SuppressWarnings("checkstyle:MagicNumber")
 public final class TestUtils {
     protected TestUtils() {
         throw new UnsupportedOperationException();
@@ -72,4 +81,35 @@ public final class TestUtils {
                         System.getProperty("java.io.tmpdir") + FileSystems.getDefault().getSeparator() + "maven-tests"),
                 matcherVisitor);
     }
+
+    // A swim in a 25m pool, with each lap made up of 4 breaststroke lengths of 30s and 20 strokes each
+    public static GarminSwimActivity getSwimActivity(final int numLaps) {
+        GarminSwimActivity activity = new GarminSwimActivity();
+        SessionMesg session = new SessionMesg();
+        session.setPoolLength(25f);
+        session.setTotalCycles(80L * numLaps);
+        activity.setSessionMesg(session);
+
+        for (int lapIndex = 0; lapIndex < numLaps; lapIndex++) {
+            LapMesg lap = new LapMesg();
+            lap.setMessageIndex(lapIndex);
+            lap.setSwimStroke(SwimStroke.BREASTSTROKE);
+            lap.setNumLengths(4);
+            lap.setTotalElapsedTime(120f);
+            lap.setTotalTimerTime(120f);
+            lap.setTotalCycles(80L);
+
+            List<LengthMesg> lengths = new ArrayList<LengthMesg>();
+            for (int i = 0; i < 4; i++) {
+                LengthMesg length = new LengthMesg();
+                length.setSwimStroke(SwimStroke.BREASTSTROKE);
+                length.setLengthType(LengthType.ACTIVE);
+                length.setTotalElapsedTime(30f);
+                length.setTotalTimerTime(30f);
+                lengths.add(length);
+            }
+            activity.addGarminLap(lap, lengths);
+        }
+        return activity;
+    }
 }